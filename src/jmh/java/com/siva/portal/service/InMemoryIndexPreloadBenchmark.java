@@ -0,0 +1,76 @@
+package com.siva.portal.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preload of a fresh index: the sorted bulk build of {@link InMemoryIndex#preloadEntries} against
+ * merging the same entries one by one from the root. Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InMemoryIndexPreloadBenchmark {
+
+	@Param({"200000"})
+	int entries;
+
+	private List<InMemoryIndex.Entry> data;
+
+	@Setup
+	public void setup() {
+		data = randomEntries(entries, 42);
+	}
+
+	@Benchmark
+	public InMemoryIndex bulk() {
+		InMemoryIndex idx = new InMemoryIndex();
+		idx.preloadEntries(data);
+		return idx;
+	}
+
+	@Benchmark
+	public InMemoryIndex oneByOne() {
+		InMemoryIndex idx = new InMemoryIndex();
+		preloadEntriesOneByOne(idx, data);
+		return idx;
+	}
+
+	/** The per-entry path: into a non-empty index every value is merged walking from the root. */
+	static void preloadEntriesOneByOne(InMemoryIndex idx, List<InMemoryIndex.Entry> entries) {
+		idx.preloadEntries(entries.subList(0, 1));
+		idx.preloadEntries(entries.subList(1, entries.size()));
+	}
+
+	/** Values over a small alphabet so prefixes are heavily shared; includes duplicate norms. */
+	static List<InMemoryIndex.Entry> randomEntries(int n, long seed) {
+		Random rnd = new Random(seed);
+		String alphabet = "abekmnoqrtz";
+		List<InMemoryIndex.Entry> out = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			StringBuilder sb = new StringBuilder();
+			int len = 2 + rnd.nextInt(10);
+			for (int j = 0; j < len; j++) sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+			String value = rnd.nextInt(8) == 0 ? sb.toString().toUpperCase() : sb.toString();
+			out.add(new InMemoryIndex.Entry(value, null, 1 + rnd.nextInt(20), 1_000L + rnd.nextInt(5_000)));
+		}
+		return out;
+	}
+}
@@ -1,10 +1,25 @@
 // config/LookupConfig.java
 package com.siva.portal.configuration;
 
+import com.siva.portal.service.LookupService;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
+@EnableConfigurationProperties(LookupProperties.class)
 public class LookupConfig {
   public LookupConfig() {}
   public static final String COLLECTION = "lookup_values"; // same as earlier
+  public static final String SYNC_STATE_COLLECTION = "lookup_sync_state"; // change-stream resume tokens per node
+
+  /**
+   * Holds readiness until the lookup warm-up is done (or times out). Boot moves ReadinessState to
+   * ACCEPTING_TRAFFIC only after the runners return; the web server and liveness are up meanwhile.
+   */
+  @Bean
+  public ApplicationRunner lookupWarmupGate(LookupService lookups) {
+    return args -> lookups.awaitWarmup();
+  }
 }
@@ -0,0 +1,124 @@
+// config/LookupProperties.java
+package com.siva.portal.configuration;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tunables for the lookup indexes, bound from {@code portal.lookup.*}. */
+@Data
+@ConfigurationProperties(prefix = "portal.lookup")
+public class LookupProperties {
+
+  /** Serve a cold key as empty (flagged as loading) instead of blocking reads on its fetch. */
+  private boolean serveWhileLoading = false;
+  /** Threads fetching buckets for reads that do not wait for them. */
+  private int loaderThreads = 4;
+
+  private Cache cache = new Cache();
+  private Warmup warmup = new Warmup();
+  private WriteBehind writeBehind = new WriteBehind();
+  private Storage storage = new Storage();
+  private Metrics metrics = new Metrics();
+  private Sync sync = new Sync();
+
+  @Data
+  public static class Cache {
+    /** Estimated heap for all resident indexes; least recently used keys are evicted above it (0 = no cap). */
+    private DataSize maxBytes = DataSize.ofMegabytes(256);
+  }
+
+  @Data
+  public static class Warmup {
+    /** Load the hot keys and up to max-keys other buckets at startup; readiness waits for it. Off = only the default key. */
+    private boolean enabled = true;
+    /** Buckets fetched from Mongo at the same time. */
+    private int concurrency = 4;
+    /** Keys loaded first (hot keys) and never evicted; the rest are discovered from the collection. */
+    private List<String> keys = new ArrayList<>();
+    /** Cap on discovered keys (0 = all); explicitly listed keys always load. Discovered keys are evictable. */
+    private int maxKeys = 100;
+    /** Readiness waits at most this long; keys still loading finish in the background. */
+    private Duration timeout = Duration.ofSeconds(60);
+  }
+
+  @Data
+  public static class WriteBehind {
+    /** Pending ops are persisted as deltas; a bucket that keeps changing is fully rewritten once per interval. */
+    private Duration compactionInterval = Duration.ofHours(6);
+    /** Drain lanes; a key always persists on the same lane (0 = min(4, cores)). Size with the Mongo pool. */
+    private int drainThreads = 0;
+    /** Coalescing window for a key that is written rarely (a lone add persists about this fast). */
+    private Duration minFlushDelay = Duration.ofMillis(20);
+    /** Widest coalescing window, reached as a key's write rate rises. */
+    private Duration maxFlushDelay = Duration.ofSeconds(1);
+    /** A key with this many distinct pending ops is drained at once instead of at the end of its window. */
+    private int maxOpsPerFlush = 500;
+    /** Upper bound for the final flush when the app shuts down; what is left stays in the journal. */
+    private Duration shutdownTimeout = Duration.ofSeconds(20);
+    private Journal journal = new Journal();
+    private Overflow overflow = new Overflow();
+
+    @Data
+    public static class Journal {
+      /** Journal adds/deletes to local disk (fsynced) before acknowledging them; replayed on startup. */
+      private boolean enabled = true;
+      /** Directory for journal segments; must survive restarts of the process (e.g. a volume). */
+      private String dir = "data/lookup-journal";
+      /** Segment size before rolling; whole segments are deleted once their ops reach Mongo. */
+      private DataSize segmentSize = DataSize.ofMegabytes(16);
+    }
+
+    @Data
+    public static class Overflow {
+      /** What an add/delete does once a limit below is reached (e.g. during a long Mongo outage). */
+      private Policy policy = Policy.SPILL;
+      /** Distinct pending adds+deletes per key. */
+      private int maxPendingPerKey = 2000;
+      /** Estimated heap held by pending ops across all keys. */
+      private DataSize maxPendingBytes = DataSize.ofMegabytes(64);
+      /** BLOCK: how long a writer waits for a drain to free room before it is rejected. */
+      private Duration blockTimeout = Duration.ofSeconds(2);
+
+      public enum Policy {
+        /** Wait up to block-timeout for room, then reject. */
+        BLOCK,
+        /** Keep the op only in the journal and rewrite the bucket from memory once Mongo is back. */
+        SPILL,
+        /** Fail the request (HTTP 429). */
+        REJECT,
+        /** Discard the op and count it; memory keeps the change, Mongo never gets it. */
+        DROP
+      }
+    }
+  }
+
+  @Data
+  public static class Storage {
+    /** Chunk documents per key (by hash of norm); 1 = one document per key. Keys migrate on load. */
+    private int chunks = 1;
+    /**
+     * Load buckets and write deltas through the Mongo reactive-streams driver, so cold loads and
+     * drains do not hold a thread while Mongo works. Full rewrites and migrations stay blocking.
+     */
+    private boolean async = false;
+  }
+
+  @Data
+  public static class Metrics {
+    /** Distinct lookup keys used as meter tags; later keys are tagged "_other" to bound cardinality. */
+    private int maxKeyTags = 20;
+  }
+
+  @Data
+  public static class Sync {
+    /** Apply other nodes' writes to resident indexes from a Mongo change stream (needs a replica set). */
+    private boolean enabled = false;
+    /** Name under which this node's resume position is saved; blank = HOSTNAME, else the host name. */
+    private String nodeId = "";
+  }
+}
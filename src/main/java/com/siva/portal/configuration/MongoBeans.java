@@ -1,14 +1,32 @@
 // config/MongoBeans.java
 package com.siva.portal.configuration;
 import com.siva.portal.database.AbstractMongoDataSource;
+import com.siva.portal.database.MongoCommandTags;
+import com.siva.portal.database.MongoConnectionHealthIndicator;
+import io.micrometer.core.instrument.binder.mongodb.MongoCommandTagsProvider;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
+@EnableConfigurationProperties(MongoConnectionProperties.class)
 public class MongoBeans {
 
   @Bean
-  public com.siva.portal.repo.LookupValueDao lookupValueDao(AbstractMongoDataSource ds) {
-    return new com.siva.portal.repo.MongoLookupValueDao(ds);
+  public com.siva.portal.repo.LookupValueDao lookupValueDao(AbstractMongoDataSource ds, LookupProperties props) {
+    return new com.siva.portal.repo.MongoLookupValueDao(ds, props.getStorage().getChunks(), props.getStorage().isAsync());
+  }
+
+  /** Shared with Spring Boot's Mongo metrics so both clients tag mongodb.driver.commands the same way. */
+  @Bean
+  public MongoCommandTagsProvider mongoCommandTagsProvider() {
+    return new MongoCommandTags();
+  }
+
+  /** Shows up as {@code mongoConnection} under /actuator/health; replaces Boot's ping-based mongo check. */
+  @Bean
+  public HealthIndicator mongoConnectionHealthIndicator(AbstractMongoDataSource ds) {
+    return new MongoConnectionHealthIndicator(ds);
   }
 }
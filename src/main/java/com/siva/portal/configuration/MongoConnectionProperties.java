@@ -0,0 +1,57 @@
+// config/MongoConnectionProperties.java
+package com.siva.portal.configuration;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Mongo client settings for {@link com.siva.portal.database.AbstractMongoDataSource}, bound from
+ * {@code portal.mongo.*}. Pool and timeout values here win over the same options in the URI.
+ */
+@Data
+@ConfigurationProperties(prefix = "portal.mongo")
+public class MongoConnectionProperties {
+
+  private String uri = "mongodb://localhost:27017/";
+  private String database = "portal";
+  /** TCP connect timeout for new connections. */
+  private Duration connectTimeout = Duration.ofSeconds(10);
+  /** How long an operation waits for a usable server before it fails. */
+  private Duration serverSelectionTimeout = Duration.ofSeconds(30);
+
+  private Pool pool = new Pool();
+  private Health health = new Health();
+  private Metrics metrics = new Metrics();
+
+  @Data
+  public static class Pool {
+    /** Connections per server; size with the write-behind drain lanes plus request threads. */
+    private int maxSize = 100;
+    /** Connections kept open even when idle. */
+    private int minSize = 0;
+    /** How long an operation waits for a free connection before it fails. */
+    private Duration maxWaitTime = Duration.ofSeconds(10);
+    /** Idle connections are closed after this (0 = never). */
+    private Duration maxIdleTime = Duration.ofMinutes(5);
+    /** Connections being established at the same time, per server. */
+    private int maxConnecting = 2;
+  }
+
+  @Data
+  public static class Health {
+    /** Driver heartbeat per server; liveness is updated from these, never pinged per call. */
+    private Duration heartbeatFrequency = Duration.ofSeconds(10);
+    /** How often the background reconnect checks the client. */
+    private Duration checkInterval = Duration.ofSeconds(10);
+    /** Rebuild the client after no writable server was seen for this long (0 = never). */
+    private Duration rebuildAfter = Duration.ofMinutes(5);
+  }
+
+  @Data
+  public static class Metrics {
+    /** Publish driver command timers and pool gauges/checkout timers to the MeterRegistry. */
+    private boolean enabled = true;
+  }
+}
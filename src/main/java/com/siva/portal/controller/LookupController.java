@@ -1,11 +1,16 @@
 // controller/LookupController.java
 package com.siva.portal.controller;
 
+import com.siva.portal.service.InMemoryIndex;
 import com.siva.portal.service.LookupService;
+import com.siva.portal.service.WriteBehindOverflowException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/api/lookup")
@@ -17,14 +22,19 @@ public class LookupController {
   }
 
   // ---- SUGGEST ----
+  static final String LOADING_HEADER = "X-Lookup-Loading";
+
   @GetMapping({"", "/{key}"})
-  public List<String> suggest(@PathVariable(name = "key", required = false) String key,
-                              @RequestParam(defaultValue = "") String q,
-                              @RequestParam(defaultValue = "8") int limit,
-                              @RequestParam(name = "contains", defaultValue = "false") boolean contains) {
+  public ResponseEntity<List<String>> suggest(@PathVariable(name = "key", required = false) String key,
+                                              @RequestParam(defaultValue = "") String q,
+                                              @RequestParam(defaultValue = "8") int limit,
+                                              @RequestParam(name = "contains", defaultValue = "false") boolean contains) {
     String k = key == null ? LookupService.DEFAULT_KEY : key;
     int lim = Math.max(1, Math.min(50, limit));
-    return contains ? service.suggestContains(k, q, lim) : service.suggest(k, q, lim);
+    List<String> out = contains ? service.suggestContains(k, q, lim) : service.suggest(k, q, lim);
+    // flag suggestions served while the key's bucket is still being fetched
+    if (service.isLoading(k)) return ResponseEntity.ok().header(LOADING_HEADER, "true").body(out);
+    return ResponseEntity.ok(out);
   }
 
   // ---- ADD ----
@@ -52,11 +62,32 @@ public class LookupController {
     return ResponseEntity.noContent().build();
   }
 
+  // ---- FOOTPRINT ----
+  @GetMapping({"/footprint", "/{key}/footprint"})
+  public InMemoryIndex.Footprint footprint(@PathVariable(required = false) String key) {
+    return service.footprint(key == null ? LookupService.DEFAULT_KEY : key);
+  }
+
+  // ---- WARM-UP ----
+  @GetMapping("/warmup")
+  public LookupService.WarmupReport warmup() {
+    return service.warmupReport();
+  }
+
+  // ---- BACKPRESSURE ----
+  // write-behind queue is full (overflow policy REJECT, or BLOCK timed out)
+  @ExceptionHandler(WriteBehindOverflowException.class)
+  public ResponseEntity<Map<String, String>> overflow(WriteBehindOverflowException e) {
+    return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+            .header(HttpHeaders.RETRY_AFTER, "1")
+            .body(Map.of("error", e.getMessage()));
+  }
+
   @GetMapping({"/suggest", "/{key}/suggest"})
-  public List<String> suggestAction(@PathVariable(required = false) String key,
-                                    @RequestParam(defaultValue = "") String q,
-                                    @RequestParam(defaultValue = "8") int limit,
-                                    @RequestParam(name = "contains", defaultValue = "false") boolean contains) {
+  public ResponseEntity<List<String>> suggestAction(@PathVariable(required = false) String key,
+                                                    @RequestParam(defaultValue = "") String q,
+                                                    @RequestParam(defaultValue = "8") int limit,
+                                                    @RequestParam(name = "contains", defaultValue = "false") boolean contains) {
     return suggest(key, q, limit, contains);
   }
 
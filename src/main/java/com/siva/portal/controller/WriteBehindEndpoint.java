@@ -0,0 +1,33 @@
+// controller/WriteBehindEndpoint.java
+package com.siva.portal.controller;
+
+import com.siva.portal.service.LookupService;
+import com.siva.portal.service.WriteBehindStore;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint {@code /actuator/writebehind}: write-behind queue totals, overflow counters
+ * and the deepest keys (pending ops, age of the oldest op, backoff). Time series for the same
+ * data are the {@code lookup.writebehind.*} meters under {@code /actuator/metrics}.
+ */
+@Component
+@Endpoint(id = "writebehind")
+public class WriteBehindEndpoint {
+  private static final int DEFAULT_TOP = 20;
+  private static final int MAX_TOP = 500;
+
+  private final LookupService service;
+
+  public WriteBehindEndpoint(LookupService service) {
+    this.service = service;
+  }
+
+  @ReadOperation
+  public WriteBehindStore.Stats stats(@Nullable Integer top) {
+    int n = top == null ? DEFAULT_TOP : Math.max(0, Math.min(MAX_TOP, top));
+    return service.writeBehindStats(n);
+  }
+}
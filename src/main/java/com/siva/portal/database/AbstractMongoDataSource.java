@@ -1,70 +1,204 @@
 package com.siva.portal.database;
 
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
 import com.mongodb.client.*;
+import com.siva.portal.configuration.MongoConnectionProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.mongodb.MongoCommandTagsProvider;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsCommandListener;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsConnectionPoolListener;
+import jakarta.annotation.PreDestroy;
 import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.mongodb.core.SimpleMongoClientDatabaseFactory;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
+/**
+ * One pooled Mongo client for the app. Liveness comes from the driver's heartbeat events
+ * ({@link MongoConnectionHealth}), so handing out a collection never costs a round trip; the
+ * driver reconnects servers by itself, and a background check creates the client if that failed
+ * at startup or rebuilds it after a long outage. Callers should fetch collections per operation
+ * so a rebuilt client is picked up. Once no writable server has been seen for longer than the
+ * server-selection timeout, handing out a collection fails fast instead of letting every call wait
+ * that timeout out ({@link #isAlive()} replaces the old per-call ping).
+ * With a {@link MeterRegistry} the client publishes {@code mongodb.driver.commands} timers (tagged
+ * by command, collection and {@link MongoCommandTags#origin() origin}), the
+ * {@code mongodb.driver.pool.*} gauges and {@code portal.mongo.pool.checkout} wait times.
+ * A reactive-streams client for non-blocking callers is created on first use, with the same
+ * settings; its commands are tagged {@code origin=async}.
+ */
 @Configuration
 public abstract class AbstractMongoDataSource {
-    private static final String DEFAULT_MONGO_URI = "mongodb://localhost:27017/";
-    private static final String DEFAULT_DATABASE_NAME = "portal"; // Replace with your DB name
+    private static final Logger log = LoggerFactory.getLogger(AbstractMongoDataSource.class);
 
-    protected MongoClient mongoClient;
-    protected MongoDatabase database;
+    private final MongoConnectionProperties props;
+    private final MeterRegistry meters;
+    private final MongoCommandTagsProvider commandTags;
+    private final MongoConnectionHealth health = new MongoConnectionHealth();
+    private final ScheduledExecutorService reconnector;
 
-    public AbstractMongoDataSource() {
-        String uri = getenvOrDefault("MONGODB_URI", DEFAULT_MONGO_URI);
-        String db  = getenvOrDefault("MONGODB_DB", DEFAULT_DATABASE_NAME);
-        mongoClient = MongoClients.create(uri);
-        database = mongoClient.getDatabase(db);
+    protected volatile MongoClient mongoClient;
+    protected volatile MongoDatabase database;
+    private volatile com.mongodb.reactivestreams.client.MongoClient reactiveClient;
+
+    public AbstractMongoDataSource(MongoConnectionProperties props) {
+        this(props, null, null);
+    }
+
+    /** {@code meters} may be null (no driver metrics); {@code commandTags} defaults to {@link MongoCommandTags}. */
+    public AbstractMongoDataSource(MongoConnectionProperties props, MeterRegistry meters,
+                                   MongoCommandTagsProvider commandTags) {
+        this.props = props;
+        this.meters = props.getMetrics().isEnabled() ? meters : null;
+        this.commandTags = commandTags != null ? commandTags : new MongoCommandTags();
+        connect();
+        reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mongo-reconnect");
+            t.setDaemon(true);
+            return t;
+        });
+        long every = Math.max(1_000, props.getHealth().getCheckInterval().toMillis());
+        reconnector.scheduleWithFixedDelay(this::checkConnection, every, every, TimeUnit.MILLISECONDS);
     }
 
     public MongoCollection<Document> getCollection(String collectionName) {
-        if(this.database == null || !isConnectionAlive()) mongoDatabaseFactory();
-        return database.getCollection(collectionName);
+        MongoDatabase db = database;
+        if (db == null) throw new IllegalStateException("Mongo client is not available yet; reconnecting in the background");
+        checkAvailable();
+        return db.getCollection(collectionName);
     }
 
-    private boolean isConnectionAlive() {
-        try {
-            if(this.database == null) return false;
-            Document ping = new Document("ping", 1);
-            this.database.runCommand(ping);
-            return true;
-        } catch (Exception e) {
-            return false;
+    /** A collection on the reactive-streams client; fetch it per operation, like {@link #getCollection}. */
+    public com.mongodb.reactivestreams.client.MongoCollection<Document> getReactiveCollection(String collectionName) {
+        checkAvailable();
+        var client = reactiveClient;
+        if (client == null) client = reactiveClient();
+        return client.getDatabase(props.getDatabase()).getCollection(collectionName);
+    }
+
+    /** Cached liveness: a writable server answered the last heartbeat. */
+    public boolean isAlive() {
+        return health.isAlive();
+    }
+
+    /** Liveness with heartbeat detail, as shown by {@link MongoConnectionHealthIndicator}. */
+    public MongoConnectionHealth.Status health() {
+        return health.status();
+    }
+
+    /**
+     * Fails fast while Mongo is known to be down: a short blip is left to the driver's server
+     * selection, but past that timeout a call would only wait it out and fail anyway.
+     */
+    private void checkAvailable() {
+        if (isAlive()) return;
+        long down = health.downForMillis();
+        if (down > props.getServerSelectionTimeout().toMillis()) {
+            throw new IllegalStateException("No writable Mongo server for " + down + " ms; reconnecting in the background");
+        }
+    }
+
+    /** Settings built from {@code portal.mongo.*}; subclasses may add to them in {@link #customize}. */
+    protected MongoClientSettings settings() {
+        return settings(false);
+    }
+
+    /** The reactive client shares the settings but not the health listeners (the sync client's heartbeats cover the same servers). */
+    private MongoClientSettings settings(boolean reactive) {
+        var pool = props.getPool();
+        var builder = MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(props.getUri()))
+                .applyToConnectionPoolSettings(b -> b
+                        .maxSize(pool.getMaxSize())
+                        .minSize(pool.getMinSize())
+                        .maxWaitTime(pool.getMaxWaitTime().toMillis(), TimeUnit.MILLISECONDS)
+                        .maxConnectionIdleTime(pool.getMaxIdleTime().toMillis(), TimeUnit.MILLISECONDS)
+                        .maxConnecting(pool.getMaxConnecting()))
+                .applyToClusterSettings(b -> b
+                        .serverSelectionTimeout(props.getServerSelectionTimeout().toMillis(), TimeUnit.MILLISECONDS))
+                .applyToServerSettings(b -> b
+                        .heartbeatFrequency(props.getHealth().getHeartbeatFrequency().toMillis(), TimeUnit.MILLISECONDS))
+                .applyToSocketSettings(b -> b
+                        .connectTimeout((int) props.getConnectTimeout().toMillis(), TimeUnit.MILLISECONDS));
+        if (!reactive) {
+            builder.applyToClusterSettings(b -> b.addClusterListener(health))
+                    .applyToServerSettings(b -> b.addServerMonitorListener(health));
         }
+        if (meters != null) {
+            // the reactive client reports on driver threads, so its work cannot be told apart by thread name
+            MongoCommandTagsProvider tags = reactive ? new MongoCommandTags(MongoCommandTags.ASYNC) : commandTags;
+            Supplier<String> origin = reactive ? () -> MongoCommandTags.ASYNC : MongoCommandTags::origin;
+            // new listener instances per client: the pool listener drops its gauges when a rebuilt client's old pools close
+            builder.addCommandListener(new MongoMetricsCommandListener(meters, tags))
+                    .applyToConnectionPoolSettings(b -> b
+                            .addConnectionPoolListener(new MongoMetricsConnectionPoolListener(meters))
+                            .addConnectionPoolListener(new MongoPoolCheckoutListener(meters, origin)));
+        }
+        customize(builder);
+        return builder.build();
     }
 
-    private void mongoDatabaseFactory() {
+    protected void customize(MongoClientSettings.Builder builder) {
+    }
+
+    private synchronized void connect() {
         try {
-            if(this.database != null) return;
-            if(this.mongoClient == null) {
-                String uri = getenvOrDefault("MONGODB_URI", DEFAULT_MONGO_URI);
-                this.mongoClient = MongoClients.create(uri);
-            }
-            String db = getenvOrDefault("MONGODB_DB", DEFAULT_DATABASE_NAME);
-            this.database = new SimpleMongoClientDatabaseFactory(this.mongoClient, db).getMongoDatabase();
-        } catch (Exception e) {
-            e.printStackTrace();
+            health.reset();
+            MongoClient client = MongoClients.create(settings());
+            MongoClient old = mongoClient;
+            mongoClient = client;
+            database = client.getDatabase(props.getDatabase());
+            if (old != null) old.close(); // operations still running on it fail and are retried by their callers
+            closeReactive(); // recreated on next use
+        } catch (RuntimeException e) {
+            log.warn("AbstractMongoDataSource: could not create the Mongo client; retrying in the background", e);
         }
     }
 
-    private String getenvOrDefault(String key, String def) {
+    private synchronized com.mongodb.reactivestreams.client.MongoClient reactiveClient() {
+        if (reactiveClient == null) {
+            reactiveClient = com.mongodb.reactivestreams.client.MongoClients.create(settings(true));
+        }
+        return reactiveClient;
+    }
+
+    private synchronized void closeReactive() {
+        var client = reactiveClient;
+        reactiveClient = null;
+        if (client != null) client.close();
+    }
+
+    private void checkConnection() {
         try {
-            String v = System.getenv(key);
-            return (v == null || v.isBlank()) ? def : v;
-        } catch (SecurityException se) {
-            return def;
+            if (mongoClient == null) {
+                connect();
+                return;
+            }
+            long rebuildAfter = props.getHealth().getRebuildAfter().toMillis();
+            long down = health.downForMillis();
+            if (rebuildAfter > 0 && down >= rebuildAfter) {
+                log.warn("AbstractMongoDataSource: no writable server for {} ms (last error: {}); rebuilding the client",
+                        down, health.status().lastError());
+                connect();
+            }
+        } catch (RuntimeException e) {
+            log.warn("AbstractMongoDataSource: connection check failed", e);
         }
     }
 
+    @PreDestroy
     public void close() {
-        if (mongoClient != null) {
-            mongoClient.close();
+        reconnector.shutdownNow();
+        MongoClient client = mongoClient;
+        if (client != null) {
+            client.close();
         }
+        closeReactive();
     }
 }
@@ -1,9 +1,17 @@
 // LocalMongoDataSource.java
 package com.siva.portal.database;
 
+import com.siva.portal.configuration.MongoConnectionProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.mongodb.MongoCommandTagsProvider;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Component;
 
 @Component
 public class LocalMongoDataSource extends AbstractMongoDataSource {
-    // Implement required methods here
+
+    public LocalMongoDataSource(MongoConnectionProperties props, ObjectProvider<MeterRegistry> meters,
+                                ObjectProvider<MongoCommandTagsProvider> commandTags) {
+        super(props, meters.getIfAvailable(), commandTags.getIfAvailable());
+    }
 }
@@ -0,0 +1,60 @@
+// MongoCommandTags.java
+package com.siva.portal.database;
+
+import com.mongodb.event.CommandEvent;
+import com.mongodb.event.CommandStartedEvent;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.mongodb.DefaultMongoCommandTagsProvider;
+import io.micrometer.core.instrument.binder.mongodb.MongoCommandTagsProvider;
+
+/**
+ * Tags for {@code mongodb.driver.commands}: Micrometer's defaults (command, collection, cluster,
+ * server, status) plus {@code origin}, the kind of thread that issued the command. The sync driver
+ * reports commands and pool checkouts on the calling thread, so the thread name tells write-behind
+ * drains apart from index loads without threading anything through the DAO.
+ * Also registered as a bean, so Spring Boot's own Mongo client publishes the same tag keys.
+ * The reactive client reports on driver threads instead, so its commands get a fixed origin.
+ */
+public class MongoCommandTags implements MongoCommandTagsProvider {
+
+    public static final String WRITE_BEHIND = "writebehind";
+    public static final String LOAD = "load";
+    public static final String SYNC = "sync";
+    public static final String REQUEST = "request";
+    public static final String OTHER = "other";
+    public static final String ASYNC = "async";
+
+    private final DefaultMongoCommandTagsProvider defaults = new DefaultMongoCommandTagsProvider();
+    private final String fixedOrigin; // null = from the calling thread
+
+    public MongoCommandTags() {
+        this(null);
+    }
+
+    public MongoCommandTags(String fixedOrigin) {
+        this.fixedOrigin = fixedOrigin;
+    }
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+        defaults.commandStarted(event); // remembers the collection name for the matching succeeded/failed event
+    }
+
+    @Override
+    public Iterable<Tag> commandTags(CommandEvent event) {
+        return Tags.of(defaults.commandTags(event)).and("origin", fixedOrigin != null ? fixedOrigin : origin());
+    }
+
+    /** Origin of work on the current thread; a small fixed set so the series stay bounded. */
+    public static String origin() {
+        String name = Thread.currentThread().getName();
+        if (name.startsWith("lookup-writebehind")) return WRITE_BEHIND;
+        // cold keys loaded inline on a request thread show up as request
+        if (name.startsWith("lookup-loader") || name.startsWith("lookup-warmup")
+                || name.startsWith("lookup-chunk-read") || name.startsWith("lookup-migrate")) return LOAD;
+        if (name.startsWith("lookup-change-stream")) return SYNC;
+        if (name.startsWith("http-nio") || name.startsWith("https-")) return REQUEST;
+        return OTHER;
+    }
+}
@@ -0,0 +1,80 @@
+// MongoConnectionHealth.java
+package com.siva.portal.database;
+
+import com.mongodb.connection.ClusterDescription;
+import com.mongodb.event.ClusterDescriptionChangedEvent;
+import com.mongodb.event.ClusterListener;
+import com.mongodb.event.ServerHeartbeatFailedEvent;
+import com.mongodb.event.ServerHeartbeatSucceededEvent;
+import com.mongodb.event.ServerMonitorListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection liveness from the driver's own monitoring: the cluster is alive while it has a
+ * writable server, as reported by the heartbeat threads. Reading it costs nothing, unlike a ping.
+ */
+public class MongoConnectionHealth implements ClusterListener, ServerMonitorListener {
+
+    private static final Logger log = LoggerFactory.getLogger(MongoConnectionHealth.class);
+
+    public record Status(boolean alive, long downForMillis, long lastHeartbeatAgeMillis,
+                         long roundTripMillis, String lastError) {}
+
+    private volatile boolean alive;
+    private volatile long downSinceNanos = System.nanoTime(); // until the first server answers
+    private volatile long lastHeartbeatNanos;
+    private volatile long roundTripNanos;
+    private volatile String lastError;
+
+    @Override
+    public void clusterDescriptionChanged(ClusterDescriptionChangedEvent event) {
+        ClusterDescription now = event.getNewDescription();
+        boolean up = now.hasWritableServer();
+        if (up == alive) return;
+        alive = up;
+        if (up) {
+            log.info("MongoConnectionHealth: connected ({})", now.getShortDescription());
+            downSinceNanos = 0;
+        } else {
+            log.warn("MongoConnectionHealth: no writable server ({}); last error: {}", now.getShortDescription(), lastError);
+            downSinceNanos = System.nanoTime();
+        }
+    }
+
+    @Override
+    public void serverHeartbeatSucceeded(ServerHeartbeatSucceededEvent event) {
+        lastHeartbeatNanos = System.nanoTime();
+        roundTripNanos = event.getElapsedTime(TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void serverHeartbeatFailed(ServerHeartbeatFailedEvent event) {
+        lastError = event.getThrowable().toString();
+    }
+
+    public boolean isAlive() {
+        return alive;
+    }
+
+    /** How long no writable server has been seen; 0 while alive. */
+    public long downForMillis() {
+        long since = downSinceNanos;
+        return alive || since == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+    }
+
+    public Status status() {
+        long hb = lastHeartbeatNanos;
+        return new Status(alive, downForMillis(),
+                hb == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - hb),
+                TimeUnit.NANOSECONDS.toMillis(roundTripNanos), lastError);
+    }
+
+    /** A new client starts out down until its first server answers. */
+    void reset() {
+        alive = false;
+        downSinceNanos = System.nanoTime();
+    }
+}
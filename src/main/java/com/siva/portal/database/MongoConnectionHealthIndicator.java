@@ -0,0 +1,29 @@
+// MongoConnectionHealthIndicator.java
+package com.siva.portal.database;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+
+/**
+ * {@code /actuator/health} component for the app's Mongo client, read from the cached heartbeat
+ * state ({@link AbstractMongoDataSource#health()}), so a health probe never waits on Mongo.
+ */
+public class MongoConnectionHealthIndicator implements HealthIndicator {
+
+    private final AbstractMongoDataSource dataSource;
+
+    public MongoConnectionHealthIndicator(AbstractMongoDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public Health health() {
+        MongoConnectionHealth.Status s = dataSource.health();
+        Health.Builder builder = s.alive() ? Health.up() : Health.down();
+        builder.withDetail("downForMillis", s.downForMillis())
+                .withDetail("lastHeartbeatAgeMillis", s.lastHeartbeatAgeMillis())
+                .withDetail("roundTripMillis", s.roundTripMillis());
+        if (s.lastError() != null) builder.withDetail("lastError", s.lastError());
+        return builder.build();
+    }
+}
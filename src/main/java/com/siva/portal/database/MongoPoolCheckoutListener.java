@@ -0,0 +1,56 @@
+// MongoPoolCheckoutListener.java
+package com.siva.portal.database;
+
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolListener;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Times connection checkouts ({@code portal.mongo.pool.checkout}), tagged by server, outcome and
+ * origin (see {@link MongoCommandTags}). Micrometer's pool listener only reports sizes; this
+ * shows who is waiting for a connection and for how long once the pool is saturated.
+ */
+final class MongoPoolCheckoutListener implements ConnectionPoolListener {
+
+    static final String NAME = "portal.mongo.pool.checkout";
+
+    private final MeterRegistry registry;
+    private final Supplier<String> origin;
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    MongoPoolCheckoutListener(MeterRegistry registry, Supplier<String> origin) {
+        this.registry = registry;
+        this.origin = origin;
+    }
+
+    @Override
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+        record(event.getConnectionId().getServerId().getAddress().toString(), "success",
+                event.getElapsedTime(TimeUnit.NANOSECONDS));
+    }
+
+    @Override
+    public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+        record(event.getServerId().getAddress().toString(), event.getReason().name().toLowerCase(),
+                event.getElapsedTime(TimeUnit.NANOSECONDS));
+    }
+
+    private void record(String server, String outcome, long nanos) {
+        String origin = this.origin.get();
+        timers.computeIfAbsent(server + '|' + outcome + '|' + origin, k -> Timer.builder(NAME)
+                        .description("Time spent waiting for a pooled Mongo connection")
+                        .tag("server.address", server)
+                        .tag("outcome", outcome)
+                        .tag("origin", origin)
+                        .publishPercentileHistogram()
+                        .register(registry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
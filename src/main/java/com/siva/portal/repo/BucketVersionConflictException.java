@@ -0,0 +1,17 @@
+// repo/BucketVersionConflictException.java
+package com.siva.portal.repo;
+
+/** Thrown when a bucket rewrite finds the stored bucket changed since this node last read or wrote it. */
+public class BucketVersionConflictException extends RuntimeException {
+
+  private final String key;
+
+  public BucketVersionConflictException(String key, String message) {
+    super(message);
+    this.key = key;
+  }
+
+  public String getKey() {
+    return key;
+  }
+}
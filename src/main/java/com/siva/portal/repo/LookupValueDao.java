@@ -1,15 +1,102 @@
 // repo/LookupValueDao.java
 package com.siva.portal.repo;
 
+import java.io.Closeable;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public interface LookupValueDao {
   void ensureIndexes();
   List<String> findAllValues(String key);
   void upsertBucket(String key, List<DocValue> values) throws Exception;
+  /**
+   * Applies coalesced changes to a bucket in place instead of rewriting it: deletes pull by norm,
+   * adds push values whose norm is not stored yet, increments bump the stored frequency.
+   */
+  void applyDelta(String key, Delta delta) throws Exception;
+  /**
+   * Applies several keys' deltas with as few round trips as possible. Returns the failures by
+   * key; a key that is absent was applied. Default: one {@link #applyDelta} per key.
+   */
+  default Map<String, Exception> applyDeltas(Map<String, Delta> deltas) {
+    Map<String, Exception> failures = new HashMap<>();
+    deltas.forEach((key, delta) -> {
+      try {
+        applyDelta(key, delta);
+      } catch (Exception e) {
+        failures.put(key, e);
+      }
+    });
+    return failures;
+  }
   Optional<Bucket> getBucket(String key);
+  /**
+   * Feeds a bucket's values to the sink one by one, ideally in ascending norm order and without
+   * holding the whole bucket in memory. Returns false if the key has no bucket.
+   * Default: {@link #getBucket}.
+   */
+  default boolean streamBucket(String key, Consumer<DocValue> sink) throws Exception {
+    var bucket = getBucket(key);
+    bucket.ifPresent(b -> b.values().forEach(sink));
+    return bucket.isPresent();
+  }
+  /**
+   * Non-blocking {@link #streamBucket}: the sink gets one value at a time, possibly on a driver
+   * thread, and the future completes once the whole bucket was fed. Default: the blocking call,
+   * on the caller's thread.
+   */
+  default CompletableFuture<Boolean> streamBucketAsync(String key, Consumer<DocValue> sink) {
+    try {
+      return CompletableFuture.completedFuture(streamBucket(key, sink));
+    } catch (Exception e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+  /**
+   * Non-blocking {@link #applyDeltas}; completes with the failures by key, possibly on a driver
+   * thread. Default: the blocking call, on the caller's thread.
+   */
+  default CompletableFuture<Map<String, Exception>> applyDeltasAsync(Map<String, Delta> deltas) {
+    try {
+      return CompletableFuture.completedFuture(applyDeltas(deltas));
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+  /** Keys of all bucket documents (used for startup warm-up). */
+  List<String> listKeys();
+  /**
+   * Tails bucket changes made by other nodes until the returned handle is closed.
+   * {@code consumerId} names the saved resume position, so a restart continues from it, and tags
+   * the writes this DAO makes from now on, so they are not reported back to it.
+   */
+  default Closeable watchChanges(String consumerId, ChangeListener listener) {
+    throw new UnsupportedOperationException("change notifications are not supported by " + getClass().getSimpleName());
+  }
+
+  /** Receives bucket changes from {@link #watchChanges}, one at a time on the watcher thread. */
+  interface ChangeListener {
+    /** A bucket document was rewritten; carries its whole stored contents. */
+    void onChange(BucketChange change);
+    /** Another node applied a delta to the key's bucket (see {@link #applyDelta}). */
+    void onDelta(String key, Delta delta);
+    /** Changes may have been missed (the resume position expired); cached buckets are stale. */
+    void onGap();
+  }
 
   record DocValue(String value, String norm, int frequency, long createdAt) {}
   record Bucket(String key, List<DocValue> values) {}
+  /** A stored bucket document as it is after a change; it holds every stored value whose norm {@code covers} accepts. */
+  record BucketChange(String key, List<DocValue> values, Predicate<String> covers) {}
+  record Delta(List<DocValue> adds, Map<String, Integer> increments, Set<String> deletes) {
+    public boolean isEmpty() {
+      return adds.isEmpty() && increments.isEmpty() && deletes.isEmpty();
+    }
+  }
 }
@@ -0,0 +1,220 @@
+// repo/MongoBucketChangeStream.java
+package com.siva.portal.repo;
+
+import com.mongodb.MongoServerException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Tails the lookup collection's change stream on a daemon thread and hands other nodes' bucket
+ * changes to a {@link LookupValueDao.ChangeListener}.
+ * - A delta write tags its create-if-missing update with a {@code change} field (origin node,
+ *   key, and the delta's adds, increments and deletes). That field arrives in the event's
+ *   updateDescription and is handed over as a delta, so no event needs the full document looked
+ *   up. The pull/push updates that follow it are untagged and filtered out on the server, like
+ *   every write tagged with this consumer's id (its own).
+ * - A rewrite replaces the document; replace events carry it whole and are handed over as such.
+ *   An invalidate (collection dropped or renamed) restarts the stream from now and reports a gap.
+ * - The resume token is saved per consumer in {@code lookup_sync_state} about once a second and
+ *   on close, so a restarted node continues where it stopped.
+ * - After an error the stream reopens from the last token with backoff; if the oplog no longer
+ *   reaches back that far it restarts from now and reports a gap.
+ * - Deletes are not forwarded: buckets are only deleted when they move to another layout, and the
+ *   replacement documents arrive as their own events.
+ * Needs a replica set; a single node is enough (mongod --replSet rs0, then rs.initiate()).
+ */
+final class MongoBucketChangeStream implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MongoBucketChangeStream.class);
+  private static final long SAVE_INTERVAL_MS = 1_000;
+  private static final long MIN_BACKOFF_MS = 500;
+  private static final long MAX_BACKOFF_MS = 30_000;
+  private static final long STATE_TTL_DAYS = 30; // forget positions of nodes that are gone
+  // InvalidResumeToken, ChangeStreamFatalError, ChangeStreamHistoryLost
+  private static final Set<Integer> RESUME_LOST = Set.of(260, 280, 286);
+
+  private final Supplier<MongoCollection<Document>> col;   // per use: the data source may rebuild its client
+  private final Supplier<MongoCollection<Document>> state;
+  private final String consumerId;
+  private final LookupValueDao.ChangeListener listener;
+  private final Function<Document, LookupValueDao.BucketChange> toChange; // null = not a bucket in the current layout
+  private final Function<Document, LookupValueDao.Delta> toDelta;         // from a write's change field
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  // owned by the watcher thread
+  private BsonDocument token;
+  private BsonDocument savedToken;
+  private long savedAtMs;
+  private boolean gap;
+
+  MongoBucketChangeStream(Supplier<MongoCollection<Document>> col, Supplier<MongoCollection<Document>> state,
+                          String consumerId,
+                          LookupValueDao.ChangeListener listener,
+                          Function<Document, LookupValueDao.BucketChange> toChange,
+                          Function<Document, LookupValueDao.Delta> toDelta) {
+    this.col = col;
+    this.state = state;
+    this.consumerId = consumerId;
+    this.listener = listener;
+    this.toChange = toChange;
+    this.toDelta = toDelta;
+    try {
+      state.get().createIndex(Indexes.ascending("updatedAt"), new IndexOptions().expireAfter(STATE_TTL_DAYS, TimeUnit.DAYS));
+      var saved = state.get().find(Filters.eq("_id", consumerId)).first();
+      if (saved != null && saved.get("token") instanceof Document t) {
+        token = savedToken = BsonDocument.parse(t.toJson());
+      }
+    } catch (RuntimeException e) {
+      LOG.warn("MongoBucketChangeStream: could not read the saved position for '{}'; starting from now", consumerId, e);
+    }
+    LOG.info("MongoBucketChangeStream: watching as '{}' from {}", consumerId, token == null ? "now" : "the saved position");
+    this.thread = new Thread(this::run, "lookup-change-stream");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void close() {
+    running = false; // the cursor wakes up at least every maxAwaitTime
+    try {
+      thread.join(5_000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    long backoff = MIN_BACKOFF_MS;
+    while (running) {
+      try (var cursor = open()) {
+        backoff = MIN_BACKOFF_MS;
+        if (gap) {
+          gap = false;
+          listener.onGap(); // the new cursor is open, so nothing after this point is missed
+        }
+        while (running) {
+          var event = cursor.tryNext();
+          if (event != null && event.getOperationType() == OperationType.INVALIDATE) {
+            // the stream ends here and cannot be resumed after this event
+            LOG.warn("MongoBucketChangeStream: change stream invalidated (collection dropped or renamed); restarting from now");
+            token = null;
+            gap = true;
+            break;
+          }
+          if (event != null) dispatch(event);
+          var t = cursor.getResumeToken();
+          if (t != null) token = t;
+          save(false);
+        }
+      } catch (MongoServerException e) {
+        if (RESUME_LOST.contains(e.getCode())) {
+          LOG.warn("MongoBucketChangeStream: saved position is no longer available ({}); restarting from now", e.getCode());
+          token = null;
+          gap = true;
+        } else {
+          backoff = pause(e, backoff);
+        }
+      } catch (RuntimeException e) {
+        backoff = pause(e, backoff);
+      }
+    }
+    save(true);
+  }
+
+  private MongoChangeStreamCursor<ChangeStreamDocument<Document>> open() {
+    var watch = col.get().watch(pipeline(consumerId)).maxAwaitTime(1, TimeUnit.SECONDS);
+    if (token != null) watch = watch.resumeAfter(token);
+    return watch.cursor();
+  }
+
+  /** Other origins' tagged deltas and inserts/rewrites, plus invalidations. */
+  static List<Bson> pipeline(String origin) {
+    return List.of(Aggregates.match(Filters.or(
+            Filters.and(Filters.eq("operationType", "update"),
+                    Filters.exists("updateDescription.updatedFields.change"),
+                    Filters.ne("updateDescription.updatedFields.change.origin", origin)),
+            Filters.and(Filters.in("operationType", List.of("insert", "replace")),
+                    Filters.ne("fullDocument.change.origin", origin)),
+            Filters.eq("operationType", "invalidate"))));
+  }
+
+  /** A tagged delta goes over as a delta; a rewrite (or an untagged insert) as the whole document. */
+  private void dispatch(ChangeStreamDocument<Document> event) {
+    var doc = event.getFullDocument(); // present for inserts and replaces only
+    Document change = null;
+    if (event.getOperationType() == OperationType.UPDATE) {
+      var updated = event.getUpdateDescription() == null ? null : event.getUpdateDescription().getUpdatedFields();
+      if (updated != null && updated.isDocument("change")) change = decode(updated.getDocument("change"));
+    } else if (doc != null && doc.get("change") instanceof Document c) {
+      change = c;
+    }
+    String key = null;
+    try {
+      if (change != null && !change.getBoolean("rewrite", false)) {
+        key = change.getString("key");
+        if (key != null) listener.onDelta(key, toDelta.apply(change));
+      } else if (doc != null) {
+        var full = toChange.apply(doc);
+        if (full == null) return;
+        key = full.key();
+        listener.onChange(full);
+      }
+    } catch (RuntimeException e) {
+      LOG.warn("MongoBucketChangeStream: listener failed for key={}", key, e);
+    }
+  }
+
+  private static Document decode(BsonDocument bson) {
+    return new DocumentCodec().decode(new BsonDocumentReader(bson), DecoderContext.builder().build());
+  }
+
+  private long pause(RuntimeException e, long backoff) {
+    if (!running) return backoff;
+    LOG.warn("MongoBucketChangeStream: change stream failed, reopening in {} ms ({})", backoff, e.toString());
+    try {
+      Thread.sleep(backoff);
+    } catch (InterruptedException ie) {
+      running = false;
+    }
+    return Math.min(backoff * 2, MAX_BACKOFF_MS);
+  }
+
+  private void save(boolean force) {
+    long now = System.currentTimeMillis();
+    if (token == null || token.equals(savedToken) || (!force && now - savedAtMs < SAVE_INTERVAL_MS)) return;
+    try {
+      state.get().replaceOne(Filters.eq("_id", consumerId),
+              new Document("_id", consumerId).append("token", token).append("updatedAt", new Date(now)),
+              new ReplaceOptions().upsert(true));
+      savedToken = token;
+      savedAtMs = now;
+    } catch (RuntimeException e) {
+      LOG.debug("MongoBucketChangeStream: could not save the resume token", e);
+      savedAtMs = now; // retry on the next interval
+    }
+  }
+}
@@ -1,36 +1,152 @@
 // repo/MongoLookupValueDao.java
 package com.siva.portal.repo;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 import com.siva.portal.configuration.LookupConfig;
 import com.siva.portal.database.AbstractMongoDataSource;
+import jakarta.annotation.PreDestroy;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+/**
+ * Bucket storage for lookup values. With {@code chunks == 1} a key is one document
+ * {@code {key, values[]}} (the original layout). With {@code chunks > 1} a key is split by hash
+ * of norm across chunk documents {@code {bucket, chunk, chunks, values[]}}, so no key hits the
+ * 16 MB document limit and writes only touch the chunks that changed. Loading a key migrates it
+ * to the configured layout (legacy doc → chunks, or a different chunk count → re-chunked).
+ * Every document carries a {@code version} (missing = 0) that each delta increments; full
+ * rewrites are conditional on it and throw {@link BucketVersionConflictException} when another
+ * node wrote in between.
+ * Each write also records its origin and, for a delta, what it changes in a {@code change} field,
+ * which other nodes' change streams apply ({@link MongoBucketChangeStream}).
+ * With {@code async} on, loads and delta writes also run on the reactive-streams driver
+ * ({@link #streamBucketAsync}, {@link #applyDeltasAsync}), so neither holds a thread while Mongo
+ * works; full rewrites and migrations stay blocking.
+ */
 public class MongoLookupValueDao implements LookupValueDao {
 
   private static final Logger LOG = LoggerFactory.getLogger(MongoLookupValueDao.class);
-  private final MongoCollection<Document> col;
+  private static final long UNKNOWN_HASH = Long.MIN_VALUE;
+  private static final long UNKNOWN_VERSION = -1;
+  private static final int DELTA_PHASES = 3; // create-if-missing, pulls, pushes + increments
+  private static final int STREAM_BATCH = 1000; // values per cursor batch when streaming a bucket
+  private static final long MIGRATION_GRACE_SECONDS = 5; // running migrations may finish on close
+  private static final Bson HEAD_FIELDS = Projections.include("key", "bucket", "chunk", "chunks", "version");
+
+  private final AbstractMongoDataSource ds; // collections are fetched per operation, so a rebuilt client is used
+  private final int chunks;
+  private final ExecutorService chunkReads; // null for the single-document layout
+  private final boolean async;
+  private final ExecutorService migrations; // blocking migrations found by async loads; null unless async
+  // per key, a content hash of each chunk as last read or written; unchanged chunks are not rewritten
+  private final Map<String, long[]> chunkHashes = new ConcurrentHashMap<>();
+  // per key, the stored version of each document (index = chunk) as this node last read or wrote
+  // it; deltas bump it, and a rewrite only succeeds if nobody else changed the document since
+  private final Map<String, long[]> versions = new ConcurrentHashMap<>();
+  // tags this node's writes in their change field; the consumer id once it watches changes itself
+  private volatile String origin = UUID.randomUUID().toString();
+  private final AtomicLong writeSeq = new AtomicLong(); // makes every change field differ, so each shows as updated
+  // set once ensureIndexes() succeeded; until then the first writes retry it (Mongo may be down at boot)
+  private volatile boolean indexesReady;
+  private final ReentrantLock indexLock = new ReentrantLock();
 
   public MongoLookupValueDao(AbstractMongoDataSource ds) {
-    this.col = ds.getCollection(LookupConfig.COLLECTION);
-    ensureIndexes();
+    this(ds, 1);
+  }
+
+  public MongoLookupValueDao(AbstractMongoDataSource ds, int chunks) {
+    this(ds, chunks, false);
+  }
+
+  public MongoLookupValueDao(AbstractMongoDataSource ds, int chunks, boolean async) {
+    this.ds = ds;
+    this.chunks = Math.max(1, chunks);
+    this.async = async;
+    if (async) {
+      var threads = new AtomicInteger();
+      this.migrations = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "lookup-migrate-" + threads.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+    } else {
+      this.migrations = null;
+    }
+    if (this.chunks > 1) {
+      var threads = new AtomicInteger();
+      this.chunkReads = Executors.newFixedThreadPool(Math.min(this.chunks, 8), r -> {
+        Thread t = new Thread(r, "lookup-chunk-read-" + threads.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+    } else {
+      this.chunkReads = null;
+    }
+    // no ensureIndexes() here: with Mongo down it would fail bean creation. LookupService calls it
+    // at init and a failure there is retried by the first write (ensureIndexesLazily)
+  }
+
+  /**
+   * Stops the chunk-read and migration pools on context close (before the Mongo client closes).
+   * A migration cut short is redone the next time its key loads.
+   */
+  @PreDestroy
+  public void close() {
+    if (chunkReads != null) chunkReads.shutdownNow();
+    if (migrations != null) {
+      migrations.shutdown();
+      try {
+        if (!migrations.awaitTermination(MIGRATION_GRACE_SECONDS, TimeUnit.SECONDS)) migrations.shutdownNow();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        migrations.shutdownNow();
+      }
+    }
   }
 
   @Override
@@ -39,7 +155,7 @@ public class MongoLookupValueDao implements LookupValueDao {
     //    since bucket documents don't have 'norm' at top level and a unique index on
     //    a missing field would allow only one such document.
     try {
-      for (Document ix : col.listIndexes()) {
+      for (Document ix : col().listIndexes()) {
         boolean unique = Boolean.TRUE.equals(ix.get("unique"));
         @SuppressWarnings("unchecked")
         Document keyDoc = (Document) ix.get("key");
@@ -49,7 +165,7 @@ public class MongoLookupValueDao implements LookupValueDao {
           if (hasNorm && !hasKey) {
             String name = ix.getString("name");
             if (name != null && !name.isBlank()) {
-              col.dropIndex(name);
+              col().dropIndex(name);
               LOG.info("Dropped legacy unique index '{}' on 'norm'", name);
             }
           }
@@ -67,19 +183,41 @@ public class MongoLookupValueDao implements LookupValueDao {
     ));
 
     var opts = new IndexOptions().unique(true).partialFilterExpression(filter);
-    col.createIndex(Indexes.ascending("key"), opts);
+    col().createIndex(Indexes.ascending("key"), opts);
+
+    // 3) Chunk documents are addressed by (bucket, chunk); they carry no top-level 'key'
+    var chunkOpts = new IndexOptions().unique(true)
+            .partialFilterExpression(new Document("bucket", new Document("$type", "string")));
+    col().createIndex(Indexes.ascending("bucket", "chunk"), chunkOpts);
+    indexesReady = true;
+  }
+
+  /**
+   * Creates the indexes on the first write after a startup that could not (Mongo unreachable).
+   * Best effort: a write never waits for another thread's attempt, and a failure is retried by
+   * the next write.
+   */
+  private void ensureIndexesLazily() {
+    if (indexesReady || !indexLock.tryLock()) return;
+    try {
+      if (!indexesReady) ensureIndexes();
+    } catch (RuntimeException e) {
+      LOG.debug("Index creation still failing; retrying on the next write", e);
+    } finally {
+      indexLock.unlock();
+    }
   }
 
   @Override
   public List<String> findAllValues(String key) {
-    var doc = col.find(Filters.eq("key", key)).limit(1).first();
+    var doc = col().find(Filters.eq("key", key)).limit(1).first();
     if (doc != null) {
       var arr = (List<Document>) doc.getOrDefault("values", List.of());
       return arr.stream().map(d -> d.getString("value")).filter(Objects::nonNull).toList();
     }
 
-    // Fallback for legacy: collect distinct 'value' from docs without a 'key' field
-    var cursor = col.find(new Document("key", new Document("$exists", false)));
+    // Fallback for legacy: collect distinct 'value' from docs without a 'key' field (chunk docs excluded)
+    var cursor = col().find(Filters.and(Filters.exists("key", false), Filters.exists("bucket", false)));
     List<String> out = new ArrayList<>();
     for (var d : cursor) {
       var v = d.getString("value");
@@ -90,47 +228,590 @@ public class MongoLookupValueDao implements LookupValueDao {
 
   @Override
   public Optional<Bucket> getBucket(String key) {
-    var d = col.find(Filters.eq("key", key)).limit(1).first();
-    if (d == null) return Optional.empty();
+    // Read both layouts: the legacy document and any chunk documents (from this or another chunk count)
+    Document legacy;
+    List<Document> chunkDocs = new ArrayList<>();
+    if (chunks == 1) {
+      legacy = null;
+      for (var d : col().find(Filters.or(Filters.eq("key", key), Filters.eq("bucket", key)))) {
+        if (d.containsKey("bucket")) chunkDocs.add(d);
+        else legacy = d;
+      }
+    } else {
+      // one query per chunk, in parallel, plus the legacy document
+      var legacyF = CompletableFuture.supplyAsync(() -> col().find(Filters.eq("key", key)).limit(1).first(), chunkReads);
+      List<CompletableFuture<Document>> parts = new ArrayList<>(chunks);
+      for (int i = 0; i < chunks; i++) {
+        var filter = chunkFilter(key, i);
+        parts.add(CompletableFuture.supplyAsync(() -> col().find(filter).limit(1).first(), chunkReads));
+      }
+      legacy = legacyF.join();
+      for (var f : parts) {
+        var d = f.join();
+        if (d != null) chunkDocs.add(d);
+      }
+      // chunks written under a larger chunk count are past our range
+      boolean resized = chunkDocs.stream().anyMatch(d -> d.getInteger("chunks", chunks) != chunks);
+      if (resized) col().find(Filters.and(Filters.eq("bucket", key), Filters.gte("chunk", chunks))).into(chunkDocs);
+    }
+    long[] seen = new long[chunks];
+    if (chunks == 1) {
+      if (legacy != null) seen[0] = versionOf(legacy);
+    } else {
+      for (var d : chunkDocs) {
+        int c = d.getInteger("chunk", -1);
+        if (c >= 0 && c < chunks) seen[c] = versionOf(d); // same address, whatever chunk count wrote it
+      }
+    }
+    versions.put(key, seen);
+    if (legacy == null && chunkDocs.isEmpty()) return Optional.empty();
 
-    @SuppressWarnings("unchecked")
-    var arr = (List<Document>) d.getOrDefault("values", List.of());
+    // Merge; chunk documents are the newer layout and win over the legacy document
+    Map<String, DocValue> byNorm = new LinkedHashMap<>();
+    if (legacy != null) {
+      for (var v : toValues(legacy)) byNorm.put(normOf(v), v);
+    }
+    for (var d : chunkDocs) {
+      for (var v : toValues(d)) byNorm.put(normOf(v), v);
+    }
+    var values = new ArrayList<>(byNorm.values());
 
-    var values = arr.stream().map(x -> new DocValue(
-            x.getString("value"),
-            x.getString("norm"),
-            x.getInteger("frequency", 1),
-            safeToEpochMillis(x.get("createdAt"))
-    )).collect(Collectors.toList());
+    boolean migrate = chunks == 1
+            ? !chunkDocs.isEmpty()
+            : legacy != null || chunkDocs.stream().anyMatch(d -> d.getInteger("chunks", chunks) != chunks);
+    if (migrate) {
+      try {
+        chunkHashes.remove(key);
+        upsertBucket(key, values); // writes the configured layout
+        if (chunks == 1) {
+          col().deleteMany(Filters.eq("bucket", key));
+        } else {
+          if (legacy != null) col().deleteOne(Filters.eq("key", key));
+          col().deleteMany(Filters.and(Filters.eq("bucket", key), Filters.gte("chunk", chunks)));
+        }
+        LOG.info("Migrated lookup bucket '{}' to {} chunk(s), {} values", key, chunks, values.size());
+      } catch (Exception e) {
+        LOG.warn("Failed to migrate lookup bucket '{}' to {} chunk(s); will retry on next load", key, chunks, e);
+      }
+    } else if (chunks > 1) {
+      chunkHashes.put(key, hashChunks(byChunk(values)));
+    }
+    return Optional.of(new Bucket(key, values));
+  }
+
+  /**
+   * Streams the bucket through an aggregation cursor ({@code $unwind} of the values, sorted by
+   * norm, spilling to disk on the server if needed), so only one cursor batch is held at a time.
+   * A key still in another layout goes through {@link #getBucket}, which migrates it.
+   */
+  @Override
+  public boolean streamBucket(String key, Consumer<DocValue> sink) {
+    List<Document> heads = col().find(ofKey(key)).projection(HEAD_FIELDS).into(new ArrayList<Document>());
+    if (needsMigration(heads)) {
+      var bucket = getBucket(key);
+      bucket.ifPresent(b -> b.values().forEach(sink));
+      return bucket.isPresent();
+    }
+    versions.put(key, versionsOf(heads)); // read before the values, so a write in between shows as a conflict
+    if (heads.isEmpty()) return false;
 
-    return Optional.of(new Bucket(d.getString("key"), values));
+    var hasher = new ChunkHasher();
+    for (var x : col().aggregate(valuesPipeline(key)).allowDiskUse(true).batchSize(STREAM_BATCH)) {
+      sink.accept(hasher.add(toValue(x)));
+    }
+    hasher.save(key);
+    return true;
+  }
+
+  /** {@link #streamBucket} on the reactive client; a key that needs migrating is loaded on a blocking thread. */
+  @Override
+  public CompletableFuture<Boolean> streamBucketAsync(String key, Consumer<DocValue> sink) {
+    if (!async) return LookupValueDao.super.streamBucketAsync(key, sink);
+    List<Document> heads = new ArrayList<>(); // filled and read on driver threads, one signal at a time
+    return Publishers.forEach(rcol().find(ofKey(key)).projection(HEAD_FIELDS), STREAM_BATCH, heads::add)
+            .thenCompose(done -> {
+              if (needsMigration(heads)) {
+                return CompletableFuture.supplyAsync(() -> {
+                  var bucket = getBucket(key);
+                  bucket.ifPresent(b -> b.values().forEach(sink));
+                  return bucket.isPresent();
+                }, migrations);
+              }
+              versions.put(key, versionsOf(heads));
+              if (heads.isEmpty()) return CompletableFuture.completedFuture(false);
+
+              var hasher = new ChunkHasher();
+              return Publishers.forEach(rcol().aggregate(valuesPipeline(key)).allowDiskUse(true).batchSize(STREAM_BATCH),
+                              STREAM_BATCH, x -> sink.accept(hasher.add(toValue(x))))
+                      .thenApply(streamed -> {
+                        hasher.save(key);
+                        return true;
+                      });
+            });
+  }
+
+  private static Bson ofKey(String key) {
+    return Filters.or(Filters.eq("key", key), Filters.eq("bucket", key));
+  }
+
+  /** True if any of the key's documents (projected to {@link #HEAD_FIELDS}) is not in the configured layout. */
+  private boolean needsMigration(List<Document> heads) {
+    for (var d : heads) {
+      boolean migrate = chunks == 1
+              ? d.containsKey("bucket")
+              : !d.containsKey("bucket") || d.getInteger("chunks", chunks) != chunks;
+      if (migrate) return true;
+    }
+    return false;
+  }
+
+  private long[] versionsOf(List<Document> heads) {
+    long[] seen = new long[chunks];
+    for (var d : heads) {
+      int c = chunks == 1 ? 0 : d.getInteger("chunk", -1);
+      if (c >= 0 && c < chunks) seen[c] = versionOf(d);
+    }
+    return seen;
+  }
+
+  private static List<Bson> valuesPipeline(String key) {
+    return List.of(
+            Aggregates.match(ofKey(key)),
+            Aggregates.unwind("$values"),
+            Aggregates.replaceRoot("$values"),
+            Aggregates.sort(Sorts.ascending("norm")));
+  }
+
+  /** Chunk hashes as List.hashCode() of each chunk in stored (norm) order, for skip-unchanged writes. */
+  private final class ChunkHasher {
+    private final long[] hashes = chunks > 1 ? new long[chunks] : null;
+
+    ChunkHasher() {
+      if (hashes != null) Arrays.fill(hashes, 1);
+    }
+
+    DocValue add(DocValue v) {
+      if (hashes != null) {
+        int c = chunkOf(normOf(v));
+        hashes[c] = (int) (31 * hashes[c] + v.hashCode());
+      }
+      return v;
+    }
+
+    void save(String key) {
+      if (hashes != null) chunkHashes.put(key, hashes);
+    }
+  }
+
+  @Override
+  public List<String> listKeys() {
+    // Same filters as the partial unique indexes, so distinct() can be answered from them
+    Set<String> out = new LinkedHashSet<>();
+    for (String k : col().distinct("key", Filters.and(Filters.exists("key"), Filters.type("key", "string")), String.class)) {
+      if (k != null && !k.isBlank()) out.add(k);
+    }
+    for (String k : col().distinct("bucket", Filters.type("bucket", "string"), String.class)) {
+      if (k != null && !k.isBlank()) out.add(k);
+    }
+    return new ArrayList<>(out);
+  }
+
+  /** Change stream on the collection; see {@link MongoBucketChangeStream}. Requires a replica set. */
+  @Override
+  public Closeable watchChanges(String consumerId, ChangeListener listener) {
+    origin = consumerId;
+    return new MongoBucketChangeStream(this::col, () -> ds.getCollection(LookupConfig.SYNC_STATE_COLLECTION),
+            consumerId, listener, this::toChange, MongoLookupValueDao::toDelta);
+  }
+
+  /**
+   * A changed document as a bucket change, or null if it is not in the configured layout (a
+   * key mid-migration: the documents it moves to arrive as their own events).
+   */
+  private BucketChange toChange(Document d) {
+    if (chunks == 1) {
+      String key = d.getString("key");
+      return key == null ? null : new BucketChange(key, toValues(d), norm -> true);
+    }
+    String bucket = d.getString("bucket");
+    if (bucket == null || d.getInteger("chunks", chunks) != chunks) return null;
+    int chunk = d.getInteger("chunk", 0);
+    return new BucketChange(bucket, toValues(d), norm -> chunkOf(norm) == chunk);
+  }
+
+  /**
+   * The {@code change} field of a write: its origin, a sequence number, the key, and either the
+   * delta applied to this document or {@code rewrite: true} for a full replacement.
+   */
+  static Document changeOf(String origin, long seq, String key, Delta delta) {
+    var change = new Document("origin", origin).append("seq", seq).append("key", key);
+    if (delta == null) return change.append("rewrite", true);
+    List<Document> incs = new ArrayList<>(delta.increments().size());
+    delta.increments().forEach((norm, n) -> incs.add(new Document("norm", norm).append("n", n))); // norms may not be field names
+    return change
+            .append("adds", delta.adds().stream().map(MongoLookupValueDao::toDoc).collect(Collectors.toList()))
+            .append("incs", incs)
+            .append("deletes", new ArrayList<>(delta.deletes()));
+  }
+
+  /** The delta recorded in a write's {@code change} field. */
+  static Delta toDelta(Document change) {
+    List<DocValue> adds = new ArrayList<>();
+    for (var x : change.getList("adds", Document.class, List.of())) adds.add(toValue(x));
+    Map<String, Integer> incs = new LinkedHashMap<>();
+    for (var x : change.getList("incs", Document.class, List.of())) {
+      String norm = x.getString("norm");
+      if (norm != null) incs.merge(norm, x.getInteger("n", 0), Integer::sum);
+    }
+    Set<String> deletes = new LinkedHashSet<>(change.getList("deletes", String.class, List.of()));
+    return new Delta(adds, incs, deletes);
+  }
+
+  private Document changeOf(String key, Delta delta) {
+    return changeOf(origin, writeSeq.incrementAndGet(), key, delta);
   }
 
   @Override
   public void upsertBucket(String key, List<DocValue> values) throws Exception {
-    var valuesDocs = values.stream().map(v -> new Document()
-            .append("value", v.value())
-            .append("norm", v.norm())
-            .append("frequency", v.frequency())
-            .append("createdAt", Instant.ofEpochMilli(v.createdAt()))
-    ).collect(Collectors.toList());
+    ensureIndexesLazily();
+    if (chunks > 1) {
+      upsertChunks(key, values);
+      return;
+    }
+    var valuesDocs = values.stream().map(MongoLookupValueDao::toDoc).collect(Collectors.toList());
 
     var doc = new Document()
             .append("key", key)
             .append("values", valuesDocs)
             .append("updatedAt", Instant.now());
 
-    col.replaceOne(Filters.eq("key", key), doc, new ReplaceOptions().upsert(true));
+    replaceVersioned(key, 0, Filters.eq("key", key), doc);
+  }
+
+  /** Replaces only the chunk documents whose contents differ from what was last read or written. */
+  private void upsertChunks(String key, List<DocValue> values) {
+    var parts = byChunk(values);
+    var hashes = hashChunks(parts);
+    var known = chunkHashes.get(key);
+    var now = Instant.now();
+    for (int i = 0; i < chunks; i++) {
+      if (known != null && known[i] == hashes[i]) continue;
+      var doc = new Document()
+              .append("bucket", key)
+              .append("chunk", i)
+              .append("chunks", chunks)
+              .append("values", parts.get(i).stream().map(MongoLookupValueDao::toDoc).collect(Collectors.toList()))
+              .append("updatedAt", now);
+      replaceVersioned(key, i, chunkFilter(key, i), doc);
+      if (known != null) known[i] = hashes[i]; // record progress in case a later chunk fails
+    }
+    chunkHashes.put(key, hashes);
+  }
+
+  /**
+   * Replaces one document of the key if its stored version is still the one this node last saw,
+   * and records the new version. A missing document counts as version 0 and is inserted; if
+   * another node inserted it first the unique index rejects ours. Throws
+   * {@link BucketVersionConflictException} when the version moved or is unknown.
+   */
+  private void replaceVersioned(String key, int doc, Bson address, Document replacement) {
+    long[] known = versions.get(key);
+    long expected = known == null ? UNKNOWN_VERSION : known[doc];
+    if (expected == UNKNOWN_VERSION) throw new BucketVersionConflictException(key, "stored version of '" + key + "' unknown");
+    replacement.append("version", expected + 1).append("change", changeOf(key, null));
+    Bson filter = expected == 0
+            ? Filters.and(address, Filters.or(Filters.exists("version", false), Filters.eq("version", 0)))
+            : Filters.and(address, Filters.eq("version", expected));
+    try {
+      var result = col().replaceOne(filter, replacement, new ReplaceOptions().upsert(expected == 0));
+      if (result.getMatchedCount() == 0 && result.getUpsertedId() == null) {
+        known[doc] = UNKNOWN_VERSION;
+        throw new BucketVersionConflictException(key, "'" + key + "' changed since version " + expected);
+      }
+    } catch (MongoWriteException e) {
+      if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) throw e;
+      known[doc] = UNKNOWN_VERSION;
+      throw new BucketVersionConflictException(key, "'" + key + "' was created by another node");
+    }
+    known[doc] = expected + 1;
+  }
+
+  /**
+   * One ordered bulkWrite covering the touched document(s). Pulls and guarded pushes are
+   * idempotent, so a retried delta does not duplicate values; only increments can be re-applied
+   * by a retry after a partial failure (periodic compaction rewrites the authoritative frequencies).
+   */
+  @Override
+  public void applyDelta(String key, Delta delta) throws Exception {
+    if (delta.isEmpty()) return;
+    ensureIndexesLazily();
+    List<WriteModel<Document>> ops = new ArrayList<>();
+    for (var phase : deltaPhases(key, delta)) ops.addAll(phase);
+    boolean applied = false;
+    try {
+      col().bulkWrite(ops, new BulkWriteOptions().ordered(true));
+      applied = true;
+    } finally {
+      afterDelta(key, delta, applied);
+    }
+  }
+
+  /**
+   * Many keys in one unordered bulkWrite per phase (create, pull, push + inc) instead of a round
+   * trip per key: phases keep each key's ops in order, and within a phase no two ops depend on
+   * each other. A key whose op fails (mapped back from the bulk error indexes) skips its later
+   * phases and is reported, so only that key retries.
+   */
+  @Override
+  public Map<String, Exception> applyDeltas(Map<String, Delta> deltas) {
+    ensureIndexesLazily();
+    var phasesByKey = phasesByKey(deltas);
+    Map<String, Exception> failures = new HashMap<>();
+    for (int phase = 0; phase < DELTA_PHASES; phase++) {
+      var bulk = phaseOps(phasesByKey, failures, phase);
+      if (bulk.ops().isEmpty()) continue;
+      try {
+        col().bulkWrite(bulk.ops(), new BulkWriteOptions().ordered(false));
+      } catch (RuntimeException e) {
+        bulkFailed(e, bulk.owners(), failures);
+      }
+    }
+    for (var key : phasesByKey.keySet()) afterDelta(key, deltas.get(key), !failures.containsKey(key));
+    return failures;
+  }
+
+  /** {@link #applyDeltas} on the reactive client: the same phases, each sent once the previous one is done. */
+  @Override
+  public CompletableFuture<Map<String, Exception>> applyDeltasAsync(Map<String, Delta> deltas) {
+    if (!async) return LookupValueDao.super.applyDeltasAsync(deltas);
+    ensureIndexesLazily();
+    var phasesByKey = phasesByKey(deltas);
+    Map<String, Exception> failures = new HashMap<>(); // phases run one after another, never concurrently
+    CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+    for (int phase = 0; phase < DELTA_PHASES; phase++) {
+      int current = phase;
+      chain = chain.thenCompose(previous -> {
+        var bulk = phaseOps(phasesByKey, failures, current);
+        if (bulk.ops().isEmpty()) return CompletableFuture.completedFuture(null);
+        CompletableFuture<BulkWriteResult> sent;
+        try {
+          sent = Publishers.first(rcol().bulkWrite(bulk.ops(), new BulkWriteOptions().ordered(false)));
+        } catch (RuntimeException e) {
+          sent = CompletableFuture.failedFuture(e); // no client right now
+        }
+        return sent.handle((result, ex) -> {
+          if (ex != null) bulkFailed(ex, bulk.owners(), failures);
+          return null;
+        });
+      });
+    }
+    return chain.thenApply(done -> {
+      for (var key : phasesByKey.keySet()) afterDelta(key, deltas.get(key), !failures.containsKey(key));
+      return failures;
+    });
+  }
+
+  /** One phase of a multi-key delta write: its ops, and the key of each op by index. */
+  private record PhaseOps(List<WriteModel<Document>> ops, List<String> owners) {}
+
+  private Map<String, List<List<WriteModel<Document>>>> phasesByKey(Map<String, Delta> deltas) {
+    Map<String, List<List<WriteModel<Document>>>> phasesByKey = new LinkedHashMap<>();
+    deltas.forEach((key, delta) -> {
+      if (!delta.isEmpty()) phasesByKey.put(key, deltaPhases(key, delta));
+    });
+    return phasesByKey;
+  }
+
+  /** The phase's ops of every key that has not failed an earlier phase. */
+  private static PhaseOps phaseOps(Map<String, List<List<WriteModel<Document>>>> phasesByKey,
+                                   Map<String, Exception> failures, int phase) {
+    List<WriteModel<Document>> ops = new ArrayList<>();
+    List<String> owners = new ArrayList<>();
+    for (var e : phasesByKey.entrySet()) {
+      if (failures.containsKey(e.getKey())) continue;
+      for (var op : e.getValue().get(phase)) {
+        ops.add(op);
+        owners.add(e.getKey());
+      }
+    }
+    return new PhaseOps(ops, owners);
+  }
+
+  /** Maps a failed unordered bulk write back to the keys whose ops failed. */
+  private static void bulkFailed(Throwable t, List<String> owners, Map<String, Exception> failures) {
+    if (t instanceof MongoBulkWriteException e) {
+      for (var err : e.getWriteErrors()) {
+        failures.putIfAbsent(owners.get(err.getIndex()),
+                new IllegalStateException("bulk write error " + err.getCode() + ": " + err.getMessage(), e));
+      }
+      if (e.getWriteConcernError() != null) {
+        for (String key : owners) failures.putIfAbsent(key, e); // not known to be durable
+      }
+      return;
+    }
+    // whole request failed (network, timeout)
+    Exception e = t instanceof Exception x ? x : new IllegalStateException(t);
+    for (String key : owners) failures.putIfAbsent(key, e);
+  }
+
+  /**
+   * Each touched document's version went up by one (its create-if-missing op increments it). After
+   * a failure the op may or may not have run, so the version is unknown until the next read.
+   */
+  private void afterDelta(String key, Delta delta, boolean applied) {
+    var known = versions.get(key);
+    if (known == null) return;
+    for (int c : touchedChunks(delta)) known[c] = applied && known[c] != UNKNOWN_VERSION ? known[c] + 1 : UNKNOWN_VERSION;
+  }
+
+  private Set<Integer> touchedChunks(Delta delta) {
+    if (chunks == 1) return Set.of(0);
+    Set<Integer> out = new LinkedHashSet<>();
+    for (var v : delta.adds()) out.add(chunkOf(normOf(v)));
+    for (var norm : delta.increments().keySet()) out.add(chunkOf(norm));
+    for (var norm : delta.deletes()) out.add(chunkOf(norm));
+    return out;
+  }
+
+  /** The key's delta as update models per phase: [create-if-missing], [pulls], [pushes + incs]. */
+  private List<List<WriteModel<Document>>> deltaPhases(String key, Delta delta) {
+    List<List<WriteModel<Document>>> phases = new ArrayList<>(DELTA_PHASES);
+    for (int i = 0; i < DELTA_PHASES; i++) phases.add(new ArrayList<>());
+    if (chunks == 1) {
+      var stamp = Updates.combine(Updates.set("updatedAt", Instant.now()), Updates.set("change", changeOf(key, delta)));
+      deltaOps(Filters.eq("key", key), stamp, delta.adds(), delta.increments(), delta.deletes(), phases);
+    } else {
+      // split the delta by chunk; chunks without changes are not touched
+      List<List<DocValue>> adds = emptyLists();
+      List<Map<String, Integer>> incs = new ArrayList<>(chunks);
+      List<Set<String>> dels = new ArrayList<>(chunks);
+      for (int i = 0; i < chunks; i++) {
+        incs.add(new LinkedHashMap<>());
+        dels.add(new LinkedHashSet<>());
+      }
+      for (var v : delta.adds()) adds.get(chunkOf(normOf(v))).add(v);
+      delta.increments().forEach((norm, n) -> incs.get(chunkOf(norm)).put(norm, n));
+      for (var norm : delta.deletes()) dels.get(chunkOf(norm)).add(norm);
+
+      var known = chunkHashes.get(key);
+      var now = Instant.now();
+      for (int i = 0; i < chunks; i++) {
+        if (adds.get(i).isEmpty() && incs.get(i).isEmpty() && dels.get(i).isEmpty()) continue;
+        var part = new Delta(adds.get(i), incs.get(i), dels.get(i));
+        var stamp = Updates.combine(Updates.setOnInsert("chunks", chunks), Updates.set("updatedAt", now),
+                Updates.set("change", changeOf(key, part)));
+        deltaOps(chunkFilter(key, i), stamp, adds.get(i), incs.get(i), dels.get(i), phases);
+        if (known != null) known[i] = UNKNOWN_HASH; // contents no longer match the last snapshot
+      }
+    }
+    return phases;
+  }
+
+  /** Appends the update models for one document: create-if-missing, pulls, guarded pushes, increments. */
+  private static void deltaOps(Bson doc, Bson stamp, List<DocValue> adds, Map<String, Integer> increments,
+                               Set<String> deletes, List<List<WriteModel<Document>>> phases) {
+    // 1) Create the document if missing, so the guarded pushes below have something to match;
+    //    this op also bumps the version and records the change (in the stamp), once per delta
+    phases.get(0).add(new UpdateOneModel<>(doc,
+            Updates.combine(Updates.setOnInsert("values", List.of()), Updates.inc("version", 1L), stamp),
+            new UpdateOptions().upsert(true)));
+
+    // 2) Deletes first: a delete followed by a re-add in the same batch replaces the stored value
+    if (!deletes.isEmpty()) {
+      phases.get(1).add(new UpdateOneModel<>(doc,
+              Updates.pull("values", new Document("norm", new Document("$in", new ArrayList<>(deletes))))));
+    }
+
+    // 3) Adds: push only if no element with that norm exists yet
+    for (DocValue v : adds) {
+      phases.get(2).add(new UpdateOneModel<>(Filters.and(doc, Filters.ne("values.norm", v.norm())),
+              Updates.push("values", toDoc(v))));
+    }
+
+    // 4) Frequency bumps on the matched element via the positional operator (stored values only:
+    //    a touch on a pending add is folded into the add, so these never depend on the pushes)
+    for (var inc : increments.entrySet()) {
+      phases.get(2).add(new UpdateOneModel<>(Filters.and(doc, Filters.eq("values.norm", inc.getKey())),
+              Updates.inc("values.$.frequency", inc.getValue())));
+    }
+  }
+
+  private MongoCollection<Document> col() {
+    return ds.getCollection(LookupConfig.COLLECTION);
+  }
+
+  private com.mongodb.reactivestreams.client.MongoCollection<Document> rcol() {
+    return ds.getReactiveCollection(LookupConfig.COLLECTION);
+  }
+
+  /* ---------- Chunk helpers ---------- */
+
+  private static Bson chunkFilter(String key, int chunk) {
+    return Filters.and(Filters.eq("bucket", key), Filters.eq("chunk", chunk));
+  }
+
+  private int chunkOf(String norm) {
+    return Math.floorMod(norm.hashCode(), chunks);
+  }
+
+  private List<List<DocValue>> emptyLists() {
+    List<List<DocValue>> out = new ArrayList<>(chunks);
+    for (int i = 0; i < chunks; i++) out.add(new ArrayList<>());
+    return out;
+  }
+
+  private List<List<DocValue>> byChunk(List<DocValue> values) {
+    var parts = emptyLists();
+    for (var v : values) parts.get(chunkOf(normOf(v))).add(v);
+    return parts;
+  }
+
+  private static long[] hashChunks(List<List<DocValue>> parts) {
+    long[] out = new long[parts.size()];
+    for (int i = 0; i < out.length; i++) out[i] = parts.get(i).hashCode();
+    return out;
+  }
+
+  private static long versionOf(Document d) {
+    return d.get("version") instanceof Number n ? n.longValue() : 0;
+  }
+
+  /** Stored norm, or the value normalized the way the in-memory index does (legacy values lack one). */
+  private static String normOf(DocValue v) {
+    if (v.norm() != null) return v.norm();
+    return v.value() == null ? "" : v.value().trim().toLowerCase(Locale.ROOT);
+  }
+
+  private List<DocValue> toValues(Document d) {
+    @SuppressWarnings("unchecked")
+    var arr = (List<Document>) d.getOrDefault("values", List.of());
+
+    return arr.stream().map(MongoLookupValueDao::toValue).collect(Collectors.toList());
+  }
+
+  private static DocValue toValue(Document x) {
+    return new DocValue(
+            x.getString("value"),
+            x.getString("norm"),
+            x.getInteger("frequency", 1),
+            safeToEpochMillis(x.get("createdAt")));
+  }
+
+  private static Document toDoc(DocValue v) {
+    return new Document()
+            .append("value", v.value())
+            .append("norm", v.norm())
+            .append("frequency", v.frequency())
+            .append("createdAt", Instant.ofEpochMilli(v.createdAt()));
   }
 
-  // Add these members in MongoLookupValueDao:
   private static final DateTimeFormatter RFC_1123 =
           DateTimeFormatter.RFC_1123_DATE_TIME.withLocale(Locale.ENGLISH);
   private static final DateTimeFormatter JAVA_UTIL_DATE_STR =
           DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.ENGLISH);
 
   // Defensive conversion to epoch millis from various stored types.
-  private long safeToEpochMillis(Object raw) {
+  private static long safeToEpochMillis(Object raw) {
     try {
       if (raw == null) return System.currentTimeMillis();
 
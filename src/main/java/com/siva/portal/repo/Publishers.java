@@ -0,0 +1,95 @@
+// repo/Publishers.java
+package com.siva.portal.repo;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Bridges the reactive-streams driver's publishers to {@link CompletableFuture}s, so the DAO does
+ * not need a reactive library. Items are handed over on the driver's threads, one at a time.
+ */
+final class Publishers {
+
+  private Publishers() {}
+
+  /** The first item (null if there is none); the rest is cancelled. */
+  static <T> CompletableFuture<T> first(Publisher<T> publisher) {
+    var result = new CompletableFuture<T>();
+    publisher.subscribe(new Subscriber<T>() {
+      private Subscription subscription;
+
+      @Override
+      public void onSubscribe(Subscription s) {
+        subscription = s;
+        s.request(1);
+      }
+
+      @Override
+      public void onNext(T item) {
+        subscription.cancel();
+        result.complete(item);
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        result.completeExceptionally(t);
+      }
+
+      @Override
+      public void onComplete() {
+        result.complete(null);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Feeds every item to {@code each}, requesting {@code batch} at a time, and completes when the
+   * publisher does. If {@code each} throws, the subscription is cancelled and the future fails.
+   */
+  static <T> CompletableFuture<Void> forEach(Publisher<T> publisher, int batch, Consumer<? super T> each) {
+    var done = new CompletableFuture<Void>();
+    publisher.subscribe(new Subscriber<T>() {
+      private Subscription subscription;
+      private int left; // signals are serial, so plain fields are safe
+
+      @Override
+      public void onSubscribe(Subscription s) {
+        subscription = s;
+        left = Math.max(1, batch);
+        s.request(left);
+      }
+
+      @Override
+      public void onNext(T item) {
+        if (done.isDone()) return; // cancelled after a failed item
+        try {
+          each.accept(item);
+        } catch (Throwable t) {
+          subscription.cancel();
+          done.completeExceptionally(t);
+          return;
+        }
+        if (--left == 0) {
+          left = Math.max(1, batch);
+          subscription.request(left);
+        }
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        done.completeExceptionally(t);
+      }
+
+      @Override
+      public void onComplete() {
+        done.complete(null);
+      }
+    });
+    return done;
+  }
+}
@@ -3,32 +3,182 @@ package com.siva.portal.service;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
 
 /**
  * Prefix-indexed in-memory store for fast typeahead.
- * - Trie for O(k) prefix traversal
- * - HashSet for O(1) existence checks
- * - freq map for ranking
- * - createdAt map to retain first-seen time
+ * - Compact trie (sorted char[] edge labels + child arrays) for O(k) prefix traversal
+ * - Per-node ranked top-K cache so short prefixes answer in O(prefix + K)
+ * - Gram inverted index for substring (contains) lookups: trigrams, plus the single characters
+ *   and bigrams that answer one- and two-character needles without a scan
+ * - One {@link Entry} per terminal (value, norm, frequency, first-seen createdAt), so ranking
+ *   compares fields directly instead of normalizing and probing side maps
+ *
+ * Concurrency: readers never lock. They work on the last published {@link Version}, whose trie is
+ * never mutated after publication. Writers path-copy the nodes they touch (nodes created in the
+ * current unpublished batch are edited in place) and publish a new root with one volatile write.
+ * Concurrent writers combine: whoever holds the write lock applies every queued mutation and
+ * publishes once for the whole batch.
+ *
+ * Frequency bumps of existing values (the most common write) skip the write lock entirely: they
+ * land in per-value striped counters and are folded into the ranked entries by the next write
+ * batch, or by a bump that finds the fold interval elapsed and the lock free.
  */
 public class InMemoryIndex {
 
   /* ---------- Trie ---------- */
-  static class TrieNode {
-    Map<Character, TrieNode> children = new HashMap<>();
-    boolean isWord;
-    String word; // original-cased value
+  private static final char[] NO_LABELS = new char[0];
+  private static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+  private static final Entry[] NO_TOP = new Entry[0];
+
+  /**
+   * Size of the ranked candidate list cached on every node. Requests up to this limit are
+   * answered straight from the cache; larger limits fall back to a subtree walk.
+   */
+  static final int CACHE_K = 16;
+
+  /**
+   * Compact node: outgoing edges live in a sorted {@code char[]} with a parallel child array,
+   * so a hop is a binary search over primitives (no boxed Character keys, no HashMap per node).
+   * Leaves share the empty arrays and cost only the node header.
+   *
+   * Fields are only written while {@code gen} equals the writer's current generation, i.e.
+   * before the node is reachable from a published root. The exception is {@code id}, which only
+   * the writer reads: renumbering rewrites it in place.
+   */
+  static final class TrieNode {
+    final long gen; // write batch that allocated this node
+    char[] labels = NO_LABELS;
+    TrieNode[] children = NO_CHILDREN;
+    Entry entry; // non-null on terminals
+    int id = -1; // slot in entriesById while terminal (posting-list id)
+    // Best-first top-K of this subtree. Arrays are never mutated once assigned, which lets a
+    // single-child chain share its child's array instead of holding a copy.
+    Entry[] top = NO_TOP;
+
+    TrieNode(long gen) {
+      this.gen = gen;
+    }
+
+    /** Copy for editing in batch {@code gen}; label and top arrays are shared (never mutated). */
+    TrieNode copy(long gen) {
+      TrieNode c = new TrieNode(gen);
+      c.labels = labels;
+      c.children = children.length == 0 ? NO_CHILDREN : children.clone();
+      c.entry = entry;
+      c.id = id;
+      c.top = top;
+      return c;
+    }
+
+    TrieNode child(char ch) {
+      int i = Arrays.binarySearch(labels, ch);
+      return i >= 0 ? children[i] : null;
+    }
+
+    void insertChild(int at, char ch, TrieNode created) {
+      int n = labels.length;
+      char[] nl = new char[n + 1];
+      TrieNode[] nc = new TrieNode[n + 1];
+      System.arraycopy(labels, 0, nl, 0, at);
+      System.arraycopy(children, 0, nc, 0, at);
+      System.arraycopy(labels, at, nl, at + 1, n - at);
+      System.arraycopy(children, at, nc, at + 1, n - at);
+      nl[at] = ch;
+      nc[at] = created;
+      labels = nl;
+      children = nc;
+    }
+
+    void removeChildAt(int i) {
+      int n = labels.length;
+      if (n == 1) {
+        labels = NO_LABELS;
+        children = NO_CHILDREN;
+        return;
+      }
+      char[] nl = new char[n - 1];
+      TrieNode[] nc = new TrieNode[n - 1];
+      System.arraycopy(labels, 0, nl, 0, i);
+      System.arraycopy(children, 0, nc, 0, i);
+      System.arraycopy(labels, i + 1, nl, i, n - i - 1);
+      System.arraycopy(children, i + 1, nc, i, n - i - 1);
+      labels = nl;
+      children = nc;
+    }
+
+    boolean hasChildren() {
+      return labels.length > 0;
+    }
   }
 
-  private final TrieNode root = new TrieNode();
+  /**
+   * What readers see: an immutable trie root, its size, and the gram index at publication:
+   * its posting lists, id table and id watermark (ids at or above it belong to a later,
+   * unpublished batch). Renumbering replaces lists and table, so readers take both from here.
+   */
+  private record Version(TrieNode root, int size, int idLimit, Map<Long, Postings> grams, Entry[] table) {}
+
+  private volatile Version current;
 
-  /* ---------- Aux structures ---------- */
-  private final Set<String> normSet = ConcurrentHashMap.newKeySet();      // presence
-  private final Map<String, Integer> freq = new ConcurrentHashMap<>();    // ranking
-  private final Map<String, Long> createdAt = new ConcurrentHashMap<>();  // first insert time (epoch millis)
+  /* ---------- Writer state (guarded by writeLock) ---------- */
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final Queue<QueuedWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+  private long writeGen = 1;
+  private TrieNode working;
+  private int size;
 
-  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  /* ---------- Striped frequency counters ---------- */
+  private static final long FOLD_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+  private final ConcurrentHashMap<String, LongAdder> pendingHits = new ConcurrentHashMap<>();
+  private volatile long lastFoldNanos = System.nanoTime();
+
+  /* ---------- Gram index ---------- */
+
+  /**
+   * Immutable view of one posting list. Ids are handed out in increasing order, so appends keep
+   * it sorted; removed ids stay in the list as tombstones until ids are renumbered. An append
+   * writes the slot past {@code size} and publishes a new view, so readers holding an older view
+   * never observe the write.
+   */
+  static final class Postings {
+    final int[] ids;
+    final int size;
+
+    Postings(int[] ids, int size) {
+      this.ids = ids;
+      this.size = size;
+    }
+
+    Postings append(int id) {
+      if (size > 0 && ids[size - 1] == id) return this; // gram repeated within one value
+      int[] a = size == ids.length ? Arrays.copyOf(ids, Math.max(4, size * 2)) : ids;
+      a[size] = id;
+      return new Postings(a, size + 1);
+    }
+  }
+
+  private static final int MIN_DEAD_IDS = 1024; // removed ids that may pile up before renumbering
+
+  // Writer state; readers use the copies in their Version. Posting lists are swapped in place
+  private Map<Long, Postings> grams = new ConcurrentHashMap<>();
+  // id → entry, null once removed. Slots are replaced in place by the writer; readers may see a
+  // slot a moment ahead of their trie version, which is harmless for immutable entries.
+  private Entry[] entriesById = new Entry[16];
+  private int nextId;
+  private int deadIds; // removed since the last renumbering; live ids = size
+
+  {
+    current = new Version(new TrieNode(0), 0, 0, grams, entriesById);
+    working = current.root;
+  }
 
   /* ---------- Normalization ---------- */
   public static String normalize(String s) {
@@ -39,7 +189,17 @@ public class InMemoryIndex {
 
   /** True if normalized string already present. */
   public boolean containsNorm(String norm) {
-    return normSet.contains(norm);
+    return norm != null && find(current.root, norm) != null;
+  }
+
+  /** Number of distinct values. */
+  public int size() {
+    return current.size;
+  }
+
+  /** Id watermark of the published gram index; renumbering keeps it near the live count. */
+  int idLimit() {
+    return current.idLimit;
   }
 
   /** Upsert with current time as createdAt (only on first insert). */
@@ -51,30 +211,44 @@ public class InMemoryIndex {
   public void upsertValue(String value, long createdAtMillis) {
     final String norm = normalize(value);
     if (norm.isEmpty()) return;
+    // insert vs bump is decided in the batch, so a removal queued ahead of this write is seen
+    write(() -> upsertLocked(value, norm, createdAtMillis));
+  }
 
-    lock.writeLock().lock();
-    try {
-      if (!normSet.add(norm)) {
-        // Already present → bump frequency
-        freq.merge(norm, 1, Integer::sum);
-        // Do not overwrite createdAt; preserve first-seen time
-        return;
-      }
+  /**
+   * Inserts the value unless it is already here; returns true if it was inserted. Decided in the
+   * write batch rather than on the published trie, so it sees removals queued ahead of it.
+   */
+  public boolean addIfAbsent(String value) {
+    final String norm = normalize(value);
+    if (norm.isEmpty()) return false;
+    long now = System.currentTimeMillis();
+    boolean[] added = {false};
+    write(() -> {
+      if (find(working, norm) != null) return;
+      insertIntoTrie(new Entry(value, norm, 1, now));
+      added[0] = true;
+    });
+    return added[0];
+  }
 
-      // First time we see this value → insert into Trie
-      TrieNode node = root;
-      for (char ch : norm.toCharArray()) {
-        node = node.children.computeIfAbsent(ch, k -> new TrieNode());
-      }
-      node.isWord = true;
-      node.word = value;
+  /**
+   * Counts one more use of an existing value (e.g. a user picking a suggestion). Contention-free:
+   * the hit goes to a striped counter and reaches the ranking on the next fold, so suggestions
+   * may reflect it up to one fold interval late.
+   */
+  public void bumpFrequency(String norm) {
+    if (norm == null || norm.isEmpty()) return;
+    LongAdder hits = pendingHits.get(norm);
+    if (hits == null) hits = pendingHits.computeIfAbsent(norm, n -> new LongAdder());
+    hits.increment();
 
-      // Book-keeping
-      freq.put(norm, 1);
-      // Only set createdAt if missing
-      this.createdAt.putIfAbsent(norm, createdAtMillis);
-    } finally {
-      lock.writeLock().unlock();
+    if (System.nanoTime() - lastFoldNanos >= FOLD_INTERVAL_NANOS && writeLock.tryLock()) {
+      try {
+        if (foldHitsLocked()) publish();
+      } finally {
+        writeLock.unlock();
+      }
     }
   }
 
@@ -84,38 +258,36 @@ public class InMemoryIndex {
    *  2) frequency DESC
    *  3) normalized lexicographic ASC
    *
-   * Uses top-k selection (min-heap) to avoid sorting large subtrees.
+   * Limits up to {@link #CACHE_K} are served from the prefix node's cached list; larger
+   * limits use top-k selection (min-heap) over the subtree.
    */
   public List<String> suggest(String prefix, int limit) {
     final int k = Math.max(1, limit);
 
-    lock.readLock().lock();
-    try {
-      TrieNode node = root;
-      String normPre = normalize(prefix);
-      for (char ch : normPre.toCharArray()) {
-        node = node.children.get(ch);
-        if (node == null) return Collections.emptyList();
-      }
+    TrieNode node = current.root;
+    String normPre = normalize(prefix);
+    for (int i = 0; i < normPre.length(); i++) {
+      node = node.child(normPre.charAt(i));
+      if (node == null) return Collections.emptyList();
+    }
 
-      // Min-heap keeps the "worst" item on top (lowest freq, or lexicographically larger)
-      Comparator<String> worseFirst = this::compareValuesWorseFirst;
-      PriorityQueue<String> topk = new PriorityQueue<>(k, worseFirst);
+    // A list shorter than CACHE_K already holds the whole subtree
+    Entry[] top = node.top;
+    if (k <= CACHE_K || top.length < CACHE_K) {
+      int n = Math.min(k, top.length);
+      List<String> result = new ArrayList<>(n);
+      for (int i = 0; i < n; i++) result.add(top[i].value);
+      return result;
+    }
 
-      // DFS traversal of the prefix subtree; push candidates into top-k heap
-      collectTopK(node, topk, k);
+    // Min-heap keeps the "worst" item on top (oldest, lowest freq, or lexicographically larger)
+    PriorityQueue<Entry> topk = new PriorityQueue<>(k, WORSE_FIRST);
 
-      // Pop heap into result list in the desired order: best → worst
-      List<String> result = new ArrayList<>(topk.size());
-      while (!topk.isEmpty()) result.add(topk.poll());
-      // Heap pops worst-first; reverse to best-first
-      Collections.reverse(result);
+    // DFS traversal of the prefix subtree; push candidates into top-k heap
+    collectTopK(node, topk, k);
 
-      // Always return a copy; never expose a subList backed by another list
-      return new ArrayList<>(result);
-    } finally {
-      lock.readLock().unlock();
-    }
+    // Heap pops worst-first; fill the result back to front for best-first order
+    return drainBestFirst(topk);
   }
 
   /**
@@ -126,165 +298,884 @@ public class InMemoryIndex {
     final int k = Math.max(1, limit);
     String normNeedle = normalize(needle);
 
-    lock.readLock().lock();
-    try {
-      if (normNeedle.isEmpty()) {
-        // No filter -> reuse prefix logic from root
-        return suggest("", k);
-      }
+    if (normNeedle.isEmpty()) {
+      // No filter -> reuse prefix logic from root
+      return suggest("", k);
+    }
 
-      Comparator<String> worseFirst = this::compareValuesWorseFirst;
-      PriorityQueue<String> topk = new PriorityQueue<>(k, worseFirst);
-
-      // Traverse all words and push matches into top-k heap
-      ArrayList<String> all = new ArrayList<>();
-      dfsCollect(root, all);
-      for (String v : all) {
-        if (normalize(v).contains(normNeedle)) {
-          if (topk.size() < k) {
-            topk.offer(v);
-          } else {
-            topk.offer(v);
-            if (topk.size() > k) topk.poll();
-          }
-        }
-      }
+    final Version v = current;
+    final Entry[] table = v.table;
+    final int scanTo = Math.min(v.idLimit, table.length);
+    PriorityQueue<Entry> topk = new PriorityQueue<>(k, WORSE_FIRST);
 
-      List<String> result = new ArrayList<>(topk.size());
-      while (!topk.isEmpty()) result.add(topk.poll());
-      Collections.reverse(result);
-      return result;
-    } finally {
-      lock.readLock().unlock();
+    if (normNeedle.length() >= 3) {
+      // Candidates = intersection of the needle's trigram postings, then verify the substring
+      Postings[] lists = postingsFor(v.grams, normNeedle);
+      if (lists == null) return Collections.emptyList();
+      intersect(lists, id -> {
+        if (id < scanTo) offerIfContains(table[id], normNeedle, topk, k);
+      });
+    } else {
+      // One or two characters (the usual per-keystroke query): the needle is a gram itself, so
+      // its posting list holds exactly the values containing it
+      Postings p = v.grams.get(normNeedle.length() == 1 ? unigram(normNeedle.charAt(0)) : bigram(normNeedle, 0));
+      if (p == null) return Collections.emptyList();
+      for (int i = 0; i < p.size; i++) {
+        int id = p.ids[i];
+        if (id < scanTo) offerIfContains(table[id], normNeedle, topk, k);
+      }
     }
+
+    return drainBestFirst(topk);
   }
 
-  private int compareValuesWorseFirst(String a, String b) {
-    String na = normalize(a), nb = normalize(b);
-    long ca = createdAt.getOrDefault(na, 0L);
-    long cb = createdAt.getOrDefault(nb, 0L);
-    if (ca != cb) return Long.compare(ca, cb); // older (smaller) is worse
-    int fa = freq.getOrDefault(na, 0);
-    int fb = freq.getOrDefault(nb, 0);
-    if (fa != fb) return Integer.compare(fa, fb); // smaller freq = worse
-    return -na.compareTo(nb); // larger lexicographically is worse
+  private static void offerIfContains(Entry e, String normNeedle, PriorityQueue<Entry> topk, int k) {
+    if (e == null || !e.norm.contains(normNeedle)) return;
+    topk.offer(e);
+    if (topk.size() > k) topk.poll();
   }
 
-  /** Remove a value (by normalized form). Safe if absent. */
-  public void removeValue(String norm) {
-    if (norm == null || norm.isEmpty()) return;
+  private static List<String> drainBestFirst(PriorityQueue<Entry> topk) {
+    String[] out = new String[topk.size()];
+    for (int i = out.length - 1; i >= 0; i--) out[i] = topk.poll().value;
+    return new ArrayList<>(Arrays.asList(out));
+  }
 
-    lock.writeLock().lock();
-    try {
-      if (!normSet.remove(norm)) return; // not present
+  private static final Comparator<Entry> WORSE_FIRST = InMemoryIndex::compareWorseFirst;
 
-      // Remove from Trie
-      removeFromTrie(root, norm, 0);
+  /** Ranking on the interned fields only: no normalization, no map lookups, no allocation. */
+  static int compareWorseFirst(Entry a, Entry b) {
+    if (a.createdAt != b.createdAt) return Long.compare(a.createdAt, b.createdAt); // older (smaller) is worse
+    if (a.frequency != b.frequency) return Integer.compare(a.frequency, b.frequency); // smaller freq = worse
+    return -a.norm.compareTo(b.norm); // larger lexicographically is worse
+  }
 
-      // Cleanup metadata
-      freq.remove(norm);
-      createdAt.remove(norm);
-    } finally {
-      lock.writeLock().unlock();
-    }
+  /** Remove a value (by normalized form). Safe if absent. */
+  public void removeValue(String norm) {
+    if (norm == null || norm.isEmpty()) return;
+    if (find(current.root, norm) == null) return; // not present
+    write(() -> removeLocked(norm));
   }
 
-  /** Snapshot entries for persistence. */
+  /**
+   * One value with its ranking metadata. Terminals hold exactly one (replaced, never mutated, when
+   * the frequency changes); also the unit of snapshot/preload for persistence.
+   */
   public static record Entry(String value, String norm, int frequency, long createdAt) {}
 
+  /**
+   * Snapshot entries for persistence (a consistent published version). Pending frequency hits
+   * are folded first so the persisted counts are complete.
+   */
   public List<Entry> snapshot() {
-    lock.readLock().lock();
-    try {
-      List<String> all = new ArrayList<>();
-      dfsCollect(root, all);
-
-      List<Entry> out = new ArrayList<>(all.size());
-      for (String v : all) {
-        String n = normalize(v);
-        int f = freq.getOrDefault(n, 1);
-        long c = createdAt.getOrDefault(n, 0L);
-        out.add(new Entry(v, n, f, c));
-      }
-      return out;
-    } finally {
-      lock.readLock().unlock();
-    }
+    if (!pendingHits.isEmpty()) write(() -> {});
+    Version v = current;
+    List<Entry> out = new ArrayList<>(v.size);
+    dfsCollect(v.root, out);
+    return out;
   }
 
-  /** Preload a batch of values with unknown createdAt (uses "now"). */
+  /** Preload a batch of values with unknown createdAt (uses "now"); published once. */
   public void preloadAll(Collection<String> values) {
     if (values == null || values.isEmpty()) return;
     long now = System.currentTimeMillis();
-    for (String v : values) upsertValue(v, now);
+    write(() -> {
+      for (String v : values) {
+        String norm = normalize(v);
+        if (!norm.isEmpty()) upsertLocked(v, norm, now);
+      }
+    });
   }
 
-  /** Preload entries with explicit createdAt/frequency (when you have them). */
+  /**
+   * Preload entries with explicit createdAt/frequency (when you have them); published once.
+   * Into an empty index the entries are sorted by norm and built in one linear pass that reuses
+   * each shared prefix; otherwise they are merged one by one.
+   */
   public void preloadEntries(Collection<Entry> entries) {
     if (entries == null || entries.isEmpty()) return;
+    // Normalize and sort outside the lock; stable, so the first of duplicate norms stays first
+    List<Entry> sorted = new ArrayList<>(entries.size());
     for (Entry e : entries) {
-      // Preserve provided createdAt and frequency
-      final String norm = normalize(e.value);
-      lock.writeLock().lock();
+      String norm = normalize(e.value);
+      if (!norm.isEmpty()) sorted.add(new Entry(e.value, norm, e.frequency, e.createdAt));
+    }
+    sorted.sort(Comparator.comparing(Entry::norm));
+    write(() -> {
+      if (size == 0) {
+        BulkLoader loader = new BulkLoader();
+        for (Entry e : sorted) loader.add(e);
+        loader.finish();
+      } else {
+        for (Entry e : sorted) mergeLocked(e);
+      }
+    });
+  }
+
+  /** Pushes entries into the sink it is given; see {@link #preloadFrom}. */
+  @FunctionalInterface
+  public interface EntrySource<X extends Exception> {
+    void feed(Consumer<Entry> sink) throws X;
+  }
+
+  /**
+   * Like {@link #preloadEntries}, but the source pushes entries while the trie is being built, so
+   * no list of the whole batch is held: entries arriving in ascending norm order go straight into
+   * the one-pass build, the few that do not are merged after it. The source runs under the write
+   * lock, so feed an index that readers cannot see yet. Returns the number of entries taken.
+   */
+  @SuppressWarnings("unchecked")
+  public <X extends Exception> int preloadFrom(EntrySource<X> source) throws X {
+    int[] fed = {0};
+    Exception[] failure = {null};
+    write(() -> {
+      BulkLoader loader = size == 0 ? new BulkLoader() : null;
       try {
-        if (!normSet.add(norm)) {
-          // If already exists, reconcile frequency (keep max) and keep original createdAt
-          freq.merge(norm, e.frequency, Math::max);
-        } else {
-          // Insert into trie
-          TrieNode node = root;
-          for (char ch : norm.toCharArray()) {
-            node = node.children.computeIfAbsent(ch, k -> new TrieNode());
-          }
-          node.isWord = true;
-          node.word = e.value;
+        source.feed(e -> {
+          String norm = normalize(e.value);
+          if (norm.isEmpty()) return;
+          Entry n = new Entry(e.value, norm, e.frequency, e.createdAt);
+          if (loader != null) loader.add(n);
+          else mergeLocked(n);
+          fed[0]++;
+        });
+      } catch (Exception ex) {
+        failure[0] = ex; // the entries taken so far are still published; callers discard the index
+      }
+      if (loader != null) loader.finish();
+    });
+    if (failure[0] != null) throw (X) failure[0];
+    return fed[0];
+  }
+
+  /**
+   * Streaming form of {@link #preloadFrom} for sources that push entries from other threads (async
+   * driver callbacks): entries go into the one-pass build as they arrive, without the write lock,
+   * and {@link Preload#finish} publishes them. Only for an empty index nobody else can see yet;
+   * entries must arrive one at a time, each hand-off ordered after the previous one.
+   */
+  public Preload preload() {
+    if (size != 0) throw new IllegalStateException("streaming preload needs an empty index");
+    return new Preload();
+  }
+
+  /** See {@link #preload}. */
+  public final class Preload {
+    private BulkLoader loader;
+    private int fed;
+
+    private Preload() {}
+
+    public void accept(Entry e) {
+      String norm = normalize(e.value);
+      if (norm.isEmpty()) return;
+      if (loader == null) loader = new BulkLoader();
+      loader.add(new Entry(e.value, norm, e.frequency, e.createdAt));
+      fed++;
+    }
+
+    /** Merges out-of-order entries, publishes the index and returns the number of entries taken. */
+    public int finish() {
+      var l = loader;
+      if (l != null) write(l::finish);
+      return fed;
+    }
+  }
+
+  /**
+   * Brings the index in line with a stored copy of (part of) its bucket, published as one batch:
+   * stored values missing here are added, a higher stored frequency is taken, and values whose
+   * norm is in {@code scope} but not stored are removed. Norms in {@code keep} are left as they
+   * are (local changes not persisted yet). Returns the number of values added or removed.
+   */
+  public int reconcile(Collection<Entry> stored, Predicate<String> scope, Set<String> keep) {
+    Map<String, Entry> byNorm = new HashMap<>(Math.max(16, stored.size() * 2));
+    for (Entry e : stored) {
+      String norm = normalize(e.value);
+      if (!norm.isEmpty() && !keep.contains(norm)) byNorm.putIfAbsent(norm, new Entry(e.value, norm, e.frequency, e.createdAt));
+    }
+    int[] changed = {0};
+    write(() -> {
+      List<Entry> local = new ArrayList<>(size);
+      dfsCollect(working, local);
+      for (Entry e : local) {
+        if (!byNorm.containsKey(e.norm) && !keep.contains(e.norm) && scope.test(e.norm)) {
+          removeLocked(e.norm);
+          changed[0]++;
+        }
+      }
+      for (Entry e : byNorm.values()) {
+        if (find(working, e.norm) == null) changed[0]++;
+        mergeLocked(e);
+      }
+    });
+    return changed[0];
+  }
+
+  /**
+   * Applies another node's delta write as one batch, touching only the norms it lists: deletes
+   * first, then adds (a value already here keeps the higher frequency), then frequency increments
+   * on values that are here. Norms in {@code keep} are skipped. Returns the number of values
+   * added or removed.
+   */
+  public int applyDelta(Collection<Entry> adds, Collection<String> deletes, Map<String, Integer> increments,
+                        Set<String> keep) {
+    int[] changed = {0};
+    write(() -> {
+      for (String norm : deletes) {
+        if (keep.contains(norm) || find(working, norm) == null) continue;
+        removeLocked(norm);
+        changed[0]++;
+      }
+      for (Entry e : adds) {
+        String norm = normalize(e.value);
+        if (norm.isEmpty() || keep.contains(norm)) continue;
+        if (find(working, norm) == null) changed[0]++;
+        mergeLocked(new Entry(e.value, norm, e.frequency, e.createdAt));
+      }
+      increments.forEach((norm, n) -> {
+        TrieNode node = keep.contains(norm) || n <= 0 ? null : find(working, norm);
+        if (node == null) return;
+        Entry cur = node.entry;
+        int f = (int) Math.min(Integer.MAX_VALUE, (long) cur.frequency + n);
+        promote(norm, new Entry(cur.value, cur.norm, f, cur.createdAt));
+      });
+    });
+    return changed[0];
+  }
+
+  /* ---------- Heap footprint ---------- */
+
+  /**
+   * Estimated heap usage of one index, assuming a 64-bit JVM with compressed oops
+   * (12-byte headers, 4-byte references, 8-byte alignment).
+   *
+   * @param keys            number of distinct values
+   * @param nodes           trie nodes including the root
+   * @param edges           parent→child edges
+   * @param trieBytes       nodes plus label/child arrays of the compact layout
+   * @param cacheBytes      per-node top-K arrays (arrays shared along single-child chains count once)
+   * @param valueBytes      original-cased value strings held by terminal nodes
+   * @param entryBytes      per-value {@link Entry} records including their norm strings
+   * @param gramBytes       gram postings, their map and the id → value table
+   * @param legacyTrieBytes what the same trie would cost with a HashMap&lt;Character, TrieNode&gt; per node
+   */
+  public static record Footprint(int keys, long nodes, long edges, long trieBytes, long cacheBytes,
+                                 long valueBytes, long entryBytes, long gramBytes, long legacyTrieBytes) {
+    public long totalBytes() {
+      return trieBytes + cacheBytes + valueBytes + entryBytes + gramBytes;
+    }
+
+    public long bytesPerKey() {
+      return keys == 0 ? 0 : totalBytes() / keys;
+    }
+
+    public long trieBytesPerKey() {
+      return keys == 0 ? 0 : trieBytes / keys;
+    }
+
+    public long legacyTrieBytesPerKey() {
+      return keys == 0 ? 0 : legacyTrieBytes / keys;
+    }
+  }
+
+  /** Walks the published trie once and estimates its heap footprint (O(nodes); diagnostics and cache weighing). */
+  public Footprint footprint() {
+    Version v = current;
+    long[] acc = new long[7]; // nodes, edges, trieBytes, valueBytes, legacyTrieBytes, cacheBytes, entryBytes
+    measure(v.root, acc);
+
+    long gramBytes = align(ARRAY_HEADER + (long) REF * v.table.length)
+            + align(ARRAY_HEADER + (long) REF * tableCapacity(v.grams.size()));
+    for (Postings p : v.grams.values()) {
+      // map node + boxed Long key + Postings object + its int[]
+      gramBytes += MAP_NODE_BYTES + LONG_BYTES + align(OBJ_HEADER + REF + 4)
+              + align(ARRAY_HEADER + 4L * p.ids.length);
+    }
+    return new Footprint(v.size, acc[0], acc[1], acc[2], acc[5], acc[3], acc[6], gramBytes, acc[4]);
+  }
+
+  private static final int OBJ_HEADER = 12;
+  private static final int ARRAY_HEADER = 16;
+  private static final int REF = 4;
+  private static final long MAP_NODE_BYTES = 32;  // HashMap.Node / ConcurrentHashMap.Node
+  private static final long LONG_BYTES = 24;
+  private static final long ENTRY_BYTES = 32;     // header + 2 refs + int + long
+  private static final long CHARACTER_BYTES = 16; // only chars > 127 miss Character's cache
+  private static final long HASHMAP_BYTES = 48;
+
+  private static void measure(TrieNode node, long[] acc) {
+    int n = node.labels.length;
+    acc[0]++;
+    acc[1] += n;
+    // node: header + gen + labels + children + entry + top refs + id
+    acc[2] += align(OBJ_HEADER + 8 + 4L * REF + 4);
+    if (n > 0) {
+      acc[2] += align(ARRAY_HEADER + 2L * n) + align(ARRAY_HEADER + (long) REF * n);
+    }
+    boolean sharedTop = n == 1 && node.children[0].top == node.top;
+    if (node.top.length > 0 && !sharedTop) acc[5] += align(ARRAY_HEADER + (long) REF * node.top.length);
+    if (node.entry != null) {
+      acc[3] += stringBytes(node.entry.value);
+      acc[6] += ENTRY_BYTES + stringBytes(node.entry.norm);
+    }
+
+    // legacy layout: node + HashMap + table + one Node (and maybe a Character) per edge
+    acc[4] += align(OBJ_HEADER + 2L * REF + 1) + HASHMAP_BYTES;
+    if (n > 0) {
+      acc[4] += align(ARRAY_HEADER + (long) REF * tableCapacity(n)) + n * MAP_NODE_BYTES;
+      for (char ch : node.labels) if (ch > 127) acc[4] += CHARACTER_BYTES;
+    }
+
+    for (TrieNode child : node.children) measure(child, acc);
+  }
+
+  private static long stringBytes(String s) {
+    // String object + backing byte[] (Latin-1 when possible, UTF-16 otherwise)
+    boolean latin1 = true;
+    for (int i = 0; i < s.length() && latin1; i++) latin1 = s.charAt(i) <= 0xFF;
+    long payload = latin1 ? s.length() : 2L * s.length();
+    return align(OBJ_HEADER + REF + 4 + 1 + 1) + align(ARRAY_HEADER + payload);
+  }
+
+  private static int tableCapacity(int size) {
+    int cap = 16;
+    while (cap * 3 / 4 < size) cap <<= 1;
+    return cap;
+  }
+
+  private static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  /* ---------- Write path ---------- */
+
+  /** A queued mutation and, once the combiner ran it, what it threw (guarded by writeLock). */
+  private static final class QueuedWrite {
+    final Runnable mutation;
+    Throwable failure;
+
+    QueuedWrite(Runnable mutation) {
+      this.mutation = mutation;
+    }
+  }
 
-          freq.put(norm, Math.max(1, e.frequency));
-          createdAt.putIfAbsent(norm, e.createdAt > 0 ? e.createdAt : System.currentTimeMillis());
+  /**
+   * Queues the mutation and combines: the thread that gets the lock applies every queued
+   * mutation (its own and other writers') and publishes once. A writer that finds the queue
+   * already drained knows its mutation was published before the lock was released. A mutation
+   * that throws does not stop the others; its failure is rethrown to the writer that queued it
+   * (edits it made before throwing stay in the batch).
+   */
+  private void write(Runnable mutation) {
+    var own = new QueuedWrite(mutation);
+    pendingWrites.add(own);
+    writeLock.lock();
+    try {
+      boolean changed = false;
+      try {
+        QueuedWrite w;
+        while ((w = pendingWrites.poll()) != null) {
+          try {
+            w.mutation.run();
+          } catch (RuntimeException | Error e) {
+            w.failure = e;
+          }
+          changed = true;
         }
+        // Piggy-back pending frequency hits on this publication
+        if (foldHitsLocked()) changed = true;
       } finally {
-        lock.writeLock().unlock();
+        if (changed) publish();
+      }
+    } finally {
+      writeLock.unlock();
+    }
+    // drained by this thread or by an earlier holder, either way before the lock was released
+    if (own.failure instanceof RuntimeException e) throw e;
+    if (own.failure instanceof Error e) throw e;
+  }
+
+  /** Makes the working trie visible to readers and seals it against further in-place edits. */
+  private void publish() {
+    if (deadIds >= MIN_DEAD_IDS && deadIds > size) renumberIds();
+    current = new Version(working, size, nextId, grams, entriesById);
+    writeGen++;
+  }
+
+  /**
+   * Moves striped hit counts into the ranked entries. Counters that stayed idle for a whole fold
+   * are dropped to keep the map bounded by recently used values; a bump racing that removal can
+   * be lost, which is acceptable for a ranking hint.
+   * @return true if any entry changed
+   */
+  private boolean foldHitsLocked() {
+    lastFoldNanos = System.nanoTime();
+    if (pendingHits.isEmpty()) return false;
+    boolean changed = false;
+    for (Map.Entry<String, LongAdder> me : pendingHits.entrySet()) {
+      String norm = me.getKey();
+      LongAdder hits = me.getValue();
+      long n = hits.sumThenReset();
+      if (n == 0) {
+        pendingHits.remove(norm, hits);
+        continue;
+      }
+      TrieNode node = find(working, norm);
+      if (node == null) {
+        pendingHits.remove(norm, hits); // value was removed meanwhile
+        continue;
+      }
+      Entry cur = node.entry;
+      int f = (int) Math.min(Integer.MAX_VALUE, cur.frequency + n);
+      promote(norm, new Entry(cur.value, cur.norm, f, cur.createdAt));
+      changed = true;
+    }
+    return changed;
+  }
+
+  /** Inserts a preloaded entry (norm already normalized) or reconciles it with the existing one. */
+  private void mergeLocked(Entry e) {
+    TrieNode existing = find(working, e.norm);
+    if (existing != null) {
+      // If already exists, reconcile frequency (keep max) and keep original createdAt
+      Entry cur = existing.entry;
+      if (e.frequency > cur.frequency) {
+        promote(e.norm, new Entry(cur.value, cur.norm, e.frequency, cur.createdAt));
+      }
+    } else {
+      // Insert into trie
+      insertIntoTrie(sanitized(e));
+    }
+  }
+
+  private static Entry sanitized(Entry e) {
+    return new Entry(e.value, e.norm, Math.max(1, e.frequency),
+            e.createdAt > 0 ? e.createdAt : System.currentTimeMillis());
+  }
+
+  /**
+   * Builds a fresh trie in one pass from entries in ascending norm order (norms already
+   * normalized). Each entry only creates the nodes below its common prefix with the previous one,
+   * children arrive in label order so they are appended, and a node's top-K list is computed once
+   * when the pass leaves its subtree. Out-of-order entries are merged normally after the pass.
+   * Runs under the write lock on an empty index; the result is published with the batch.
+   */
+  final class BulkLoader {
+    private TrieNode[] path = new TrieNode[32];
+    private String prev = "";
+    private List<Entry> stragglers;
+    // Posting lists are built privately and published at the end, instead of one view per append
+    private final HashMap<Long, GramList> lists = new HashMap<>();
+
+    BulkLoader() {
+      path[0] = working = new TrieNode(writeGen);
+    }
+
+    void add(Entry e) {
+      String norm = e.norm;
+      int cmp = norm.compareTo(prev);
+      if (cmp < 0 || norm.isEmpty()) {
+        if (!norm.isEmpty()) {
+          if (stragglers == null) stragglers = new ArrayList<>();
+          stragglers.add(e);
+        }
+        return;
+      }
+      if (cmp == 0) {
+        // duplicate norm: keep the first value/createdAt, reconcile frequency (max)
+        TrieNode t = path[norm.length()];
+        Entry cur = t.entry;
+        if (e.frequency > cur.frequency) {
+          Entry merged = new Entry(cur.value, cur.norm, e.frequency, cur.createdAt);
+          t.entry = merged;
+          entriesById[t.id] = merged;
+        }
+        return;
+      }
+
+      int lcp = 0;
+      int max = Math.min(prev.length(), norm.length());
+      while (lcp < max && prev.charAt(lcp) == norm.charAt(lcp)) lcp++;
+
+      // Leaving the previous entry's subtree below the shared prefix: finalize bottom-up
+      for (int d = prev.length(); d > lcp; d--) recomputeTop(path[d]);
+
+      if (path.length <= norm.length()) path = Arrays.copyOf(path, Math.max(path.length * 2, norm.length() + 1));
+      for (int d = lcp; d < norm.length(); d++) {
+        TrieNode parent = path[d];
+        TrieNode child = new TrieNode(writeGen);
+        parent.insertChild(parent.labels.length, norm.charAt(d), child); // ascending → append
+        path[d + 1] = child;
+      }
+      TrieNode terminal = path[norm.length()];
+      Entry entry = sanitized(e);
+      terminal.entry = entry;
+      terminal.id = assignId(entry);
+      forEachGram(norm, g -> lists.computeIfAbsent(g, x -> new GramList()).add(terminal.id));
+      size++;
+      prev = norm;
+    }
+
+    void finish() {
+      for (int d = prev.length(); d >= 0; d--) recomputeTop(path[d]);
+      // Ids left over from removed entries are all lower than the ones handed out here
+      lists.forEach((g, l) -> grams.merge(g, new Postings(l.ids, l.size), (old, added) -> {
+        Postings p = old;
+        for (int i = 0; i < added.size; i++) p = p.append(added.ids[i]);
+        return p;
+      }));
+      if (stragglers != null) {
+        for (Entry e : stragglers) mergeLocked(e);
+      }
+    }
+  }
+
+  private void upsertLocked(String value, String norm, long createdAtMillis) {
+    TrieNode existing = find(working, norm);
+    if (existing != null) {
+      // Already present → bump frequency
+      // Do not overwrite createdAt; preserve first-seen time
+      Entry cur = existing.entry;
+      promote(norm, new Entry(cur.value, cur.norm, cur.frequency + 1, cur.createdAt));
+      return;
+    }
+
+    // First time we see this value → insert into Trie
+    insertIntoTrie(new Entry(value, norm, 1, createdAtMillis));
+  }
+
+  private void removeLocked(String norm) {
+    TrieNode terminal = find(working, norm);
+    if (terminal == null) return; // removed by an earlier mutation in this batch
+
+    // Remove from Trie (recomputes cached lists that held the value)
+    unindexGrams(terminal.id);
+    TrieNode r = removeFromTrie(working, norm, 0, terminal.entry);
+    working = r != null ? r : new TrieNode(writeGen);
+    size--;
+  }
+
+  /** The node itself if it belongs to the current batch, otherwise a copy that does. */
+  private TrieNode editable(TrieNode n) {
+    return n.gen == writeGen ? n : n.copy(writeGen);
+  }
+
+  /** Copies (as needed) the path for {@code norm}, creating missing nodes when {@code create}. */
+  private TrieNode[] editablePath(String norm, boolean create) {
+    TrieNode[] path = new TrieNode[norm.length() + 1];
+    TrieNode node = working = editable(working);
+    path[0] = node;
+    for (int i = 0; i < norm.length(); i++) {
+      char ch = norm.charAt(i);
+      int at = Arrays.binarySearch(node.labels, ch);
+      TrieNode next;
+      if (at >= 0) {
+        next = editable(node.children[at]);
+        node.children[at] = next;
+      } else if (create) {
+        next = new TrieNode(writeGen);
+        node.insertChild(-(at + 1), ch, next);
+      } else {
+        return null;
       }
+      path[i + 1] = next;
+      node = next;
     }
+    return path;
   }
 
   /* ---------- Internal helpers ---------- */
 
-  private void collectTopK(TrieNode node, PriorityQueue<String> topk, int k) {
-    if (node.isWord && node.word != null) {
-      if (topk.size() < k) {
-        topk.offer(node.word);
+  private static TrieNode find(TrieNode root, String norm) {
+    TrieNode node = root;
+    for (int i = 0; i < norm.length() && node != null; i++) {
+      node = node.child(norm.charAt(i));
+    }
+    return node != null && node.entry != null ? node : null;
+  }
+
+  /** Adds a new terminal for the entry's norm and offers it to every cached list on its path. */
+  private void insertIntoTrie(Entry e) {
+    TrieNode[] path = editablePath(e.norm, true);
+    TrieNode node = path[path.length - 1];
+    node.entry = e;
+    node.id = indexGrams(e);
+    size++;
+    offerAlong(path, null, e);
+  }
+
+  /** Swaps in an entry with a higher frequency and re-ranks it (its rank can only improve). */
+  private void promote(String norm, Entry replacement) {
+    TrieNode[] path = editablePath(norm, false);
+    if (path == null) return;
+    TrieNode node = path[path.length - 1];
+    Entry old = node.entry;
+    if (old == null) return;
+    node.entry = replacement;
+    entriesById[node.id] = replacement;
+    offerAlong(path, old, replacement);
+  }
+
+  /** Bottom-up, since a single-child chain node reuses its child's freshly updated list. */
+  private static void offerAlong(TrieNode[] path, Entry old, Entry e) {
+    for (int i = path.length - 1; i >= 0; i--) {
+      TrieNode n = path[i];
+      if (n.entry == null && n.children.length == 1) {
+        n.top = n.children[0].top;
       } else {
-        // Offer then trim (heap comparator handles "worse" at head)
-        topk.offer(node.word);
-        if (topk.size() > k) topk.poll();
+        n.top = offer(n.top, old, e);
+      }
+    }
+  }
+
+  /**
+   * Returns {@code top} with {@code old} (if listed) dropped and {@code e} placed at its rank,
+   * trimmed to {@link #CACHE_K}. Returns the same array when nothing changes.
+   */
+  private static Entry[] offer(Entry[] top, Entry old, Entry e) {
+    int at = -1;
+    if (old != null) {
+      for (int i = 0; i < top.length; i++) {
+        if (top[i] == old) { at = i; break; }
+      }
+    }
+    Entry[] base = top;
+    if (at >= 0) {
+      base = new Entry[top.length - 1];
+      System.arraycopy(top, 0, base, 0, at);
+      System.arraycopy(top, at + 1, base, at, top.length - at - 1);
+    }
+    int pos = 0;
+    while (pos < base.length && compareWorseFirst(base[pos], e) > 0) pos++;
+    if (pos >= CACHE_K) return top; // not in the list; a moved entry always has room (rank only improves)
+
+    Entry[] out = new Entry[Math.min(CACHE_K, base.length + 1)];
+    System.arraycopy(base, 0, out, 0, pos);
+    out[pos] = e;
+    System.arraycopy(base, pos, out, pos + 1, out.length - pos - 1);
+    return out;
+  }
+
+  /** Rebuilds a node's list from its own entry and its children's lists. */
+  private static void recomputeTop(TrieNode node) {
+    if (node.entry == null && node.children.length == 1) {
+      node.top = node.children[0].top;
+      return;
+    }
+    int total = node.entry != null ? 1 : 0;
+    for (TrieNode child : node.children) total += child.top.length;
+    if (total == 0) {
+      node.top = NO_TOP;
+      return;
+    }
+    // Children's lists are already best-first, so merge their heads instead of sorting them all
+    TrieNode[] children = node.children;
+    Entry[] out = new Entry[Math.min(total, CACHE_K)];
+    int[] pos = new int[children.length];
+    Entry own = node.entry;
+    for (int m = 0; m < out.length; m++) {
+      Entry best = own;
+      int from = -1;
+      for (int c = 0; c < children.length; c++) {
+        Entry[] t = children[c].top;
+        if (pos[c] < t.length && (best == null || compareWorseFirst(t[pos[c]], best) > 0)) {
+          best = t[pos[c]];
+          from = c;
+        }
       }
+      if (from < 0) own = null;
+      else pos[from]++;
+      out[m] = best;
+    }
+    node.top = out;
+  }
+
+  /* ---------- Gram helpers ---------- */
+
+  // Trigram keys use the low 48 bits; bigrams and single characters are tagged above them
+  private static final long BIGRAM = 1L << 48;
+  private static final long UNIGRAM = 2L << 48;
+
+  private static long gram(String s, int i) {
+    return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+  }
+
+  private static long bigram(String s, int i) {
+    return BIGRAM | ((long) s.charAt(i) << 16) | s.charAt(i + 1);
+  }
+
+  private static long unigram(char c) {
+    return UNIGRAM | c;
+  }
+
+  /** Every gram key of the norm: its trigrams, bigrams and characters (repeats included). */
+  private static void forEachGram(String norm, LongConsumer sink) {
+    int n = norm.length();
+    for (int i = 0; i < n; i++) {
+      sink.accept(unigram(norm.charAt(i)));
+      if (i + 2 <= n) sink.accept(bigram(norm, i));
+      if (i + 3 <= n) sink.accept(gram(norm, i));
     }
-    for (TrieNode child : node.children.values()) {
+  }
+
+  /** Assigns the next id to a new entry and appends it to the postings of each of its grams. */
+  private int indexGrams(Entry e) {
+    int id = assignId(e);
+    forEachGram(e.norm, key -> grams.compute(key, (g, p) -> p == null ? new Postings(new int[4], 0).append(id) : p.append(id)));
+    return id;
+  }
+
+  private int assignId(Entry e) {
+    int id = nextId++;
+    Entry[] table = entriesById;
+    if (id == table.length) entriesById = table = Arrays.copyOf(table, id * 2);
+    table[id] = e;
+    return id;
+  }
+
+  /** Tombstones the id; ids are renumbered at publication once tombstones outnumber live ids. */
+  private void unindexGrams(int id) {
+    Entry[] table = entriesById;
+    if (id < 0 || table[id] == null) return;
+    table[id] = null;
+    deadIds++;
+  }
+
+  /** A posting list under construction (ids appended in ascending order). */
+  private static final class GramList {
+    int[] ids = new int[4];
+    int size;
+
+    void add(int id) {
+      if (size > 0 && ids[size - 1] == id) return; // gram repeated within one value
+      if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+      ids[size++] = id;
+    }
+  }
+
+  /**
+   * Gives the live entries ids 0..size-1 in trie order and builds a new id table and new posting
+   * lists from them, so neither keeps slots of removed values and ids stay below about twice the
+   * live count. Readers keep the table and lists of their version.
+   */
+  private void renumberIds() {
+    Entry[] table = new Entry[Math.max(16, size + (size >> 1))];
+    HashMap<Long, GramList> lists = new HashMap<>();
+    int[] next = {0};
+    renumber(working, table, lists, next);
+    Map<Long, Postings> rebuilt = new ConcurrentHashMap<>(Math.max(16, lists.size() * 4 / 3 + 1));
+    lists.forEach((g, l) -> rebuilt.put(g, new Postings(l.ids, l.size)));
+    grams = rebuilt;
+    entriesById = table;
+    nextId = next[0];
+    deadIds = 0;
+  }
+
+  private static void renumber(TrieNode node, Entry[] table, Map<Long, GramList> lists, int[] next) {
+    if (node.entry != null) {
+      int id = next[0]++;
+      node.id = id;
+      table[id] = node.entry;
+      String norm = node.entry.norm;
+      forEachGram(norm, g -> lists.computeIfAbsent(g, x -> new GramList()).add(id));
+    }
+    for (TrieNode child : node.children) renumber(child, table, lists, next);
+  }
+
+  /** Postings for every distinct trigram of the needle, shortest first; null if any is missing. */
+  private static Postings[] postingsFor(Map<Long, Postings> grams, String normNeedle) {
+    int n = normNeedle.length() - 2;
+    Postings[] lists = new Postings[n];
+    int c = 0;
+    for (int i = 0; i < n; i++) {
+      Postings p = grams.get(gram(normNeedle, i));
+      if (p == null) return null;
+      boolean dup = false;
+      for (int j = 0; j < c && !dup; j++) dup = lists[j] == p;
+      if (!dup) lists[c++] = p;
+    }
+    lists = c == n ? lists : Arrays.copyOf(lists, c);
+    Arrays.sort(lists, Comparator.comparingInt(p -> p.size));
+    return lists;
+  }
+
+  /** Walks the shortest list and gallops through the others (all sorted ascending). */
+  private static void intersect(Postings[] lists, IntConsumer sink) {
+    Postings first = lists[0];
+    int[] cursor = new int[lists.length];
+    outer:
+    for (int i = 0; i < first.size; i++) {
+      int id = first.ids[i];
+      for (int l = 1; l < lists.length; l++) {
+        Postings p = lists[l];
+        int pos = gallop(p.ids, cursor[l], p.size, id);
+        cursor[l] = pos;
+        if (pos == p.size) return;     // this list is exhausted: no further matches
+        if (p.ids[pos] != id) continue outer;
+      }
+      sink.accept(id);
+    }
+  }
+
+  /** First index in [from, to) whose value is >= target. */
+  private static int gallop(int[] a, int from, int to, int target) {
+    int step = 1, lo = from, hi = from;
+    while (hi < to && a[hi] < target) {
+      lo = hi + 1;
+      hi += step;
+      step <<= 1;
+    }
+    hi = Math.min(hi, to);
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (a[mid] < target) lo = mid + 1; else hi = mid;
+    }
+    return lo;
+  }
+
+  private static boolean listed(Entry[] top, Entry e) {
+    for (Entry x : top) if (x == e) return true;
+    return false;
+  }
+
+  private static void collectTopK(TrieNode node, PriorityQueue<Entry> topk, int k) {
+    if (node.entry != null) {
+      if (topk.size() < k) {
+        topk.offer(node.entry);
+      } else if (compareWorseFirst(node.entry, topk.peek()) > 0) {
+        // Replace the current worst only when this one ranks better
+        topk.poll();
+        topk.offer(node.entry);
+      }
+    }
+    for (TrieNode child : node.children) {
       collectTopK(child, topk, k);
     }
   }
 
-  private void dfsCollect(TrieNode node, List<String> out) {
-    if (node.isWord && node.word != null) out.add(node.word);
-    for (TrieNode child : node.children.values()) dfsCollect(child, out);
+  private static void dfsCollect(TrieNode node, List<Entry> out) {
+    if (node.entry != null) out.add(node.entry);
+    for (TrieNode child : node.children) dfsCollect(child, out);
   }
 
   /**
-   * Remove the path for the given normalized string; prune empty nodes.
-   * @return true if this node became empty and can be pruned by its parent
+   * Remove the path for the given normalized string (copying the nodes it edits); prune empty
+   * nodes and refill the cached lists that contained the removed value.
+   * @return the node to link from the parent, or null if it became empty and should be pruned
    */
-  private boolean removeFromTrie(TrieNode node, String norm, int i) {
+  private TrieNode removeFromTrie(TrieNode node, String norm, int i, Entry removed) {
+    node = editable(node);
     if (i == norm.length()) {
-      if (node.isWord) { node.isWord = false; node.word = null; }
+      if (node.entry != null) { node.entry = null; node.id = -1; }
     } else {
-      char ch = norm.charAt(i);
-      TrieNode child = node.children.get(ch);
-      if (child != null) {
-        boolean childEmpty = removeFromTrie(child, norm, i + 1);
-        if (childEmpty) node.children.remove(ch);
+      int at = Arrays.binarySearch(node.labels, norm.charAt(i));
+      if (at >= 0) {
+        TrieNode child = removeFromTrie(node.children[at], norm, i + 1, removed);
+        if (child == null) node.removeChildAt(at); else node.children[at] = child;
       }
     }
-    return !node.isWord && node.children.isEmpty();
+    if (listed(node.top, removed)) recomputeTop(node);
+    return node.entry == null && !node.hasChildren() ? null : node;
   }
 }
-
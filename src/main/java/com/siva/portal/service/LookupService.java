@@ -1,14 +1,33 @@
 // service/LookupService.java
 package com.siva.portal.service;
 
+import com.siva.portal.configuration.LookupProperties;
 import com.siva.portal.repo.LookupValueDao;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 
 @Service
 public class LookupService {
@@ -16,10 +35,65 @@ public class LookupService {
   private static final Logger log = LoggerFactory.getLogger(LookupService.class);
 
   public static final String DEFAULT_KEY = "default";
+  private static final int KEY_GUARD_STRIPES = 64; // power of two; keys sharing a stripe only contend
+  private static final long EVICTION_RETRY_MS = 500;  // next eviction pass when keys were skipped for pending ops
 
   private final LookupValueDao dao;
-  private final Map<String, InMemoryIndex> indices = new ConcurrentHashMap<>();
+  private final LookupProperties props;
+  /** Cache slot per key: the load future plus what eviction needs to rank and weigh it. */
+  private static final class IndexHolder {
+    final CompletableFuture<InMemoryIndex> future = new CompletableFuture<>();
+    volatile long lastAccessNanos = System.nanoTime();
+    volatile long weight;        // estimated bytes, set once loaded
+    volatile long bytesPerKey;   // from the footprint taken at load; scales the weight as it grows
+    private boolean evicted;     // weight already taken out of residentBytes
+
+    static IndexHolder loaded(InMemoryIndex idx) {
+      var h = new IndexHolder();
+      h.future.complete(idx);
+      return h;
+    }
+
+    /** Re-estimates the weight from the current value count; returns how much it changed. */
+    synchronized long reweigh(InMemoryIndex idx) {
+      if (evicted) return 0;
+      long w = (long) idx.size() * bytesPerKey;
+      long change = w - weight;
+      weight = w;
+      return change;
+    }
+
+    /** Marks the holder evicted; returns the weight to take out of residentBytes. */
+    synchronized long evict() {
+      if (evicted) return 0;
+      evicted = true;
+      return weight;
+    }
+  }
+
+  // one holder per key: the map only ever holds cheap placeholders, loads run outside its locks
+  private final Map<String, IndexHolder> indices = new ConcurrentHashMap<>();
   private final WriteBehindStore store;
+  private final ExecutorService loader;
+  private volatile Closeable sync; // change stream applying other nodes' writes, when enabled
+  // per key stripe: writers hold the read side from changing memory until the op is queued, so a
+  // reconcile (write side) never sees a value in memory that is not pending yet. Keys are request
+  // input, so the guards are a fixed array rather than one lock per key ever seen
+  private final ReentrantReadWriteLock[] keyGuards = new ReentrantReadWriteLock[KEY_GUARD_STRIPES];
+
+  // memory cap: estimated bytes of resident indexes, trimmed least-recently-used first
+  private final AtomicLong residentBytes = new AtomicLong();
+  private final AtomicBoolean evicting = new AtomicBoolean();
+  private final AtomicBoolean evictionRetry = new AtomicBoolean(); // a pass is scheduled to retry skipped keys
+  private final Set<String> pinned; // never evicted: the default key and the listed warm-up keys (not discovered ones)
+
+  // warm-up progress (see warmUp / warmupReport)
+  private final Map<String, Long> warmupMillis = new ConcurrentHashMap<>();
+  private final Set<String> warmupFailed = ConcurrentHashMap.newKeySet();
+  private final CompletableFuture<Void> warmupDone = new CompletableFuture<>();
+  private volatile int warmupKeys;
+  private volatile long warmupStartNanos;
+  private volatile long warmupEndNanos;
 
   /**
    * If you are using Spring Data index auto-creation (@Indexed + spring.data.mongodb.auto-index-creation=true),
@@ -27,10 +101,22 @@ public class LookupService {
    */
   private final boolean relyOnSpringAutoIndexes = false; // flip to true if you use @Indexed
 
-  public LookupService(LookupValueDao dao) {
+  public LookupService(LookupValueDao dao, LookupProperties props, MeterRegistry meters) {
     this.dao = dao;
+    this.props = props;
+    Set<String> pin = new HashSet<>();
+    pin.add(DEFAULT_KEY);
+    for (String k : props.getWarmup().getKeys()) pin.add(safeKey(k == null ? null : k.trim()));
+    this.pinned = Set.copyOf(pin);
+    for (int i = 0; i < keyGuards.length; i++) keyGuards[i] = new ReentrantReadWriteLock();
+    var threads = new AtomicInteger();
+    this.loader = Executors.newFixedThreadPool(Math.max(1, props.getLoaderThreads()), r -> {
+      Thread t = new Thread(r, "lookup-loader-" + threads.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
     // Background, non-blocking write-behind (drains on its own executor)
-    this.store = new WriteBehindStore(dao, this::snapshotForKey);
+    this.store = new WriteBehindStore(dao, this::snapshotForKey, this::rebase, props.getWriteBehind(), meters, props.getMetrics());
   }
 
   @PostConstruct
@@ -45,23 +131,61 @@ public class LookupService {
       }
     }
 
-    // 2) Try to preload the DEFAULT bucket; tolerate DB down/malformed docs
+    // 2) Replay write-behind ops journaled before the last shutdown/crash; loads below apply them
+    int replayed = store.recover();
+    if (replayed > 0) log.info("LookupService: replayed {} journaled write-behind ops", replayed);
+
+    // 2b) Follow other nodes' writes; started before loading so no change after a load is missed
+    if (props.getSync().isEnabled()) startSync();
+
+    // 3) Warm up every bucket in the background; readiness waits for it (awaitWarmup)
+    if (props.getWarmup().isEnabled()) {
+      Thread t = new Thread(this::warmUp, "lookup-warmup");
+      t.setDaemon(true);
+      t.start();
+      return;
+    }
+    warmupDone.complete(null);
+
+    // 3b) Try to preload the DEFAULT bucket; tolerate DB down/malformed docs
     try {
       ensureIndexLoaded(DEFAULT_KEY); // this will attempt preload under the hood
       log.info("LookupService: preload complete for key={}", DEFAULT_KEY);
     } catch (Exception e) {
       // Don’t fail startup—users can still interact; write-behind will sync later
       log.warn("LookupService: preload failed for key={}, continuing with empty in-memory index", DEFAULT_KEY, e);
-      indices.putIfAbsent(DEFAULT_KEY, new InMemoryIndex());
+      indices.putIfAbsent(DEFAULT_KEY, IndexHolder.loaded(new InMemoryIndex()));
     }
 
     // No explicit drain() calls here—WriteBehindStore runs on its own executor.
   }
 
+  /**
+   * Final write-behind flush on context close (after the web server has stopped taking requests),
+   * bounded by write-behind.shutdown-timeout. Keep the platform's termination grace period above it.
+   */
+  @PreDestroy
+  public void close() {
+    var s = sync;
+    if (s != null) {
+      try {
+        s.close();
+      } catch (IOException e) {
+        log.warn("LookupService: closing the change stream failed", e);
+      }
+    }
+    var report = store.shutdown(props.getWriteBehind().getShutdownTimeout());
+    if (report.unpersistedOps() > 0 && !report.journaled()) {
+      log.error("LookupService: {} write-behind ops were not persisted and are lost", report.unpersistedOps());
+    }
+    loader.shutdownNow();
+  }
+
   /* ======================== Public API ======================== */
 
   public List<String> suggest(String key, String prefix, int limit) {
-    return ensureIndexLoaded(safeKey(key)).suggest(prefix, limit);
+    var idx = indexForRead(safeKey(key));
+    return idx == null ? List.of() : idx.suggest(prefix, limit);
   }
 
   /**
@@ -69,7 +193,8 @@ public class LookupService {
    * preserving the same ranking as prefix suggestions. Used for broader lookup matches.
    */
   public List<String> suggestContains(String key, String query, int limit) {
-    return ensureIndexLoaded(safeKey(key)).suggestContains(query, limit);
+    var idx = indexForRead(safeKey(key));
+    return idx == null ? List.of() : idx.suggestContains(query, limit);
   }
 
   public void addIfAbsent(String key, String value) {
@@ -77,13 +202,25 @@ public class LookupService {
     String norm = InMemoryIndex.normalize(value);
     if (norm.isEmpty()) return;
 
-    // immediate in-memory effect for UX
-    if (!idx.containsNorm(norm)) {
-      idx.upsertValue(value);
+    // a value already shown only gets a touch, which is never blocked or rejected
+    if (!idx.containsNorm(norm)) store.checkCapacity(safeKey(key), value); // may block or reject before memory changes
+
+    // immediate in-memory effect for UX; add vs touch is decided by the index's write batch, so a
+    // removal queued just ahead of this add is not mistaken for a value that is still there
+    boolean added;
+    var guard = keyGuard(safeKey(key)).readLock();
+    guard.lock();
+    try {
+      added = idx.addIfAbsent(value);
       // enqueue only; background thread persists
-      store.enqueueAdd(safeKey(key), value);
+      if (added) store.enqueueAdd(safeKey(key), value);
+    } finally {
+      guard.unlock();
+    }
+    if (added) {
+      reweigh(safeKey(key), idx);
     } else {
-      idx.upsertValue(value); // bumps frequency locally
+      idx.bumpFrequency(norm); // striped counter; never blocks suggestion reads
       store.enqueueTouch(safeKey(key), value); // optional: coalesced persist later
     }
   }
@@ -91,8 +228,76 @@ public class LookupService {
   public void deleteValue(String key, String value) {
     var idx = ensureIndexLoaded(safeKey(key));
     String norm = InMemoryIndex.normalize(value);
-    idx.removeValue(norm);                  // update memory immediately
-    store.enqueueDelete(safeKey(key), value); // persist later in background
+    store.checkCapacity(safeKey(key), value); // may block or reject before memory changes
+    var guard = keyGuard(safeKey(key)).readLock();
+    guard.lock();
+    try {
+      idx.removeValue(norm);                  // update memory immediately
+      store.enqueueDelete(safeKey(key), value); // persist later in background
+    } finally {
+      guard.unlock();
+    }
+    reweigh(safeKey(key), idx);
+  }
+
+  /** True while the key's bucket is still being fetched (reads are then served empty). */
+  public boolean isLoading(String key) {
+    var h = indices.get(safeKey(key));
+    return h != null && !h.future.isDone();
+  }
+
+  /** True if the key's index is loaded and held in memory (does not count as an access). */
+  boolean isResident(String key) {
+    var h = indices.get(safeKey(key));
+    return h != null && h.future.getNow(null) != null;
+  }
+
+  /**
+   * Per-key load times of the startup warm-up; {@code complete} once every key has been tried.
+   * Keys whose load failed are listed in {@code failed} and load again on first use.
+   */
+  public record WarmupReport(boolean complete, int keys, long elapsedMillis, Map<String, Long> loadMillis,
+                             Set<String> failed) {}
+
+  public WarmupReport warmupReport() {
+    long start = warmupStartNanos;
+    if (start == 0) return new WarmupReport(false, 0, 0, Map.of(), Set.of());
+    long end = warmupEndNanos;
+    long elapsed = (end != 0 ? end : System.nanoTime()) - start;
+    return new WarmupReport(end != 0, warmupKeys, TimeUnit.NANOSECONDS.toMillis(elapsed),
+            new TreeMap<>(warmupMillis), new TreeSet<>(warmupFailed));
+  }
+
+  /**
+   * Waits up to the warm-up timeout for every key to be tried. Run before the app reports ready
+   * (see LookupConfig), so readiness stays REFUSING_TRAFFIC meanwhile; keys still loading after
+   * the timeout finish in the background. Returns false on timeout.
+   */
+  public boolean awaitWarmup() {
+    var timeout = props.getWarmup().getTimeout();
+    try {
+      warmupDone.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+      return true;
+    } catch (TimeoutException e) {
+      log.warn("LookupService: warm-up timed out after {}, {}/{} keys loaded; continuing in background",
+              timeout, warmupMillis.size(), warmupKeys);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.warn("LookupService: warm-up wait interrupted, {}/{} keys loaded", warmupMillis.size(), warmupKeys);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause()); // never completed exceptionally
+    }
+    return false;
+  }
+
+  /** Estimated heap footprint of the key's in-memory index (walks the trie; diagnostics only). */
+  public InMemoryIndex.Footprint footprint(String key) {
+    return ensureIndexLoaded(safeKey(key)).footprint();
+  }
+
+  /** Write-behind queue state with the {@code top} deepest keys (diagnostics). */
+  public WriteBehindStore.Stats writeBehindStats(int top) {
+    return store.stats(top);
   }
 
   /* ======================== Internals ======================== */
@@ -102,46 +307,396 @@ public class LookupService {
   }
 
   /**
-   * Lazily loads an index for the key. On first load:
-   *  - tries to fetch the bucket from DAO (tolerant parsing in DAO),
-   *  - preloads (value, freq, createdAt) into the trie,
-   *  - if DB is down or empty, returns a fresh empty index.
+   * Loads the configured hot keys, the default key and then up to max-keys of the keys found in
+   * Mongo on a bounded pool. Runs on its own thread, started from {@code @PostConstruct}, so startup and liveness do
+   * not wait for it; readiness does ({@link #awaitWarmup}). A key whose load fails counts as done.
    */
-  private InMemoryIndex ensureIndexLoaded(String key) {
-    return indices.computeIfAbsent(key, k -> {
-      var idx = new InMemoryIndex();
-      try {
-        var bucketOpt = dao.getBucket(k);
-        if (bucketOpt.isPresent()) {
-          var bucket = bucketOpt.get();
-          // Convert DAO DocValue -> InMemoryIndex.Entry with createdAt/frequency preserved
-          List<InMemoryIndex.Entry> entries = new ArrayList<>();
-          for (var dv : bucket.values()) {
-            entries.add(new InMemoryIndex.Entry(dv.value(), dv.norm(), Math.max(1, dv.frequency()), dv.createdAt()));
-          }
-          idx.preloadEntries(entries); // preserves createdAt & freq
-          log.info("LookupService: loaded {} entries for key={}", entries.size(), k);
-        } else {
-          // Optional: fallback legacy preload via dao.findAllValues(k)
-          var legacy = dao.findAllValues(k);
-          if (!legacy.isEmpty()) {
-            idx.preloadAll(legacy);
-            log.info("LookupService: legacy preload {} entries for key={}", legacy.size(), k);
+  private void warmUp() {
+    var cfg = props.getWarmup();
+    Set<String> keys = new LinkedHashSet<>();
+    for (String k : cfg.getKeys()) {
+      if (k != null && !k.isBlank()) keys.add(k.trim());
+    }
+    keys.add(DEFAULT_KEY);
+    try {
+      int cap = cfg.getMaxKeys() > 0 ? keys.size() + cfg.getMaxKeys() : Integer.MAX_VALUE;
+      for (String k : dao.listKeys()) {
+        if (keys.size() >= cap) break;
+        keys.add(k);
+      }
+    } catch (Exception e) {
+      log.warn("LookupService: could not list bucket keys; warming up configured keys only", e);
+    }
+
+    warmupKeys = keys.size();
+    warmupStartNanos = System.nanoTime();
+    var threads = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, cfg.getConcurrency()), r -> {
+      Thread t = new Thread(r, "lookup-warmup-" + threads.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    var remaining = new AtomicInteger(keys.size());
+    for (String key : keys) {
+      pool.execute(() -> {
+        long t0 = System.nanoTime();
+        try {
+          var idx = ensureIndexLoaded(key);
+          long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+          warmupMillis.put(key, ms);
+          log.info("LookupService: warm-up key={} size={} in {} ms", key, idx.size(), ms);
+        } catch (RuntimeException e) {
+          warmupFailed.add(key);
+          log.warn("LookupService: warm-up failed for key={}; it loads on first use", key, e);
+        } finally {
+          if (remaining.decrementAndGet() == 0) {
+            warmupEndNanos = System.nanoTime();
+            log.info("LookupService: warm-up complete, {} keys in {} ms ({} failed)",
+                    keys.size(), warmupReport().elapsedMillis(), warmupFailed.size());
+            warmupDone.complete(null);
           }
         }
-      } catch (Exception e) {
-        // Tolerate DB issues; keep empty index so the app is usable
-        log.warn("LookupService: failed loading bucket for key={}, using empty in-memory index", k, e);
+      });
+    }
+    pool.shutdown(); // queued keys still run; threads exit when done
+  }
+
+  /** Waits for the key's index, loading it on this thread if nobody else is. Used by writes. */
+  private InMemoryIndex ensureIndexLoaded(String key) {
+    return indexFuture(key, true).join();
+  }
+
+  /**
+   * Index for a read. With serve-while-loading on, a cold key returns null (served as no
+   * suggestions) while its bucket is fetched in the background instead of blocking the request.
+   */
+  private InMemoryIndex indexForRead(String key) {
+    if (!props.isServeWhileLoading()) return ensureIndexLoaded(key);
+    return indexFuture(key, false).getNow(null);
+  }
+
+  /**
+   * The single load future for a key. Installing it is the only work done against the map; the
+   * thread that wins the install runs the load (or hands it to the loader pool), and concurrent
+   * callers for the same key share the same future.
+   */
+  private CompletableFuture<InMemoryIndex> indexFuture(String key, boolean inline) {
+    var h = indices.get(key);
+    if (h == null) {
+      var created = new IndexHolder();
+      h = indices.putIfAbsent(key, created);
+      if (h == null) {
+        Runnable load = () -> load(key, created);
+        if (inline) load.run();
+        else loader.execute(load);
+        return created.future;
+      }
+    }
+    h.lastAccessNanos = System.nanoTime();
+    return h.future;
+  }
+
+  /**
+   * Starts the key's load; with a non-blocking DAO it returns once the read is issued, and the
+   * index is finished on a loader thread when the bucket has arrived.
+   */
+  private void load(String key, IndexHolder holder) {
+    CompletableFuture<InMemoryIndex> loading;
+    try {
+      loading = loadIndex(key);
+    } catch (Throwable t) {
+      loading = CompletableFuture.failedFuture(t);
+    }
+    loading.whenComplete((idx, t) -> {
+      if (t != null) {
+        // loadIndex already tolerates DB errors; drop the failed holder so the next call retries
+        indices.remove(key, holder);
+        holder.future.completeExceptionally(t);
+      } else {
+        loaded(key, holder, idx);
       }
-      return idx;
     });
   }
 
+  private void loaded(String key, IndexHolder holder, InMemoryIndex idx) {
+    var fp = idx.footprint();
+    if (log.isDebugEnabled()) {
+      log.debug("LookupService: key={} ~{} bytes/key (trie {} vs legacy HashMap trie {})",
+              key, fp.bytesPerKey(), fp.trieBytesPerKey(), fp.legacyTrieBytesPerKey());
+    }
+    holder.bytesPerKey = fp.keys() == 0 ? 256 : fp.bytesPerKey(); // rough guess for an empty key
+    holder.weight = fp.totalBytes();
+    holder.future.complete(idx);
+    long cap = props.getCache().getMaxBytes().toBytes();
+    if (cap > 0 && residentBytes.addAndGet(holder.weight) > cap) loader.execute(this::evictIfOverBudget);
+  }
+
+  /**
+   * Follows a resident key's weight as values are added or removed, and trims the cache if that
+   * took it over the cap. residentBytes only ever moves by such changes, never by a recount.
+   */
+  private void reweigh(String key, InMemoryIndex idx) {
+    long cap = props.getCache().getMaxBytes().toBytes();
+    var h = indices.get(key);
+    if (cap <= 0 || h == null || h.future.getNow(null) != idx) return; // evicted or reloaded meanwhile
+    if (residentBytes.addAndGet(h.reweigh(idx)) > cap && !evicting.get()) loader.execute(this::evictIfOverBudget);
+  }
+
+  /**
+   * Trims resident indexes, least recently used first, until the estimated total fits the cap.
+   * A key with write-behind ops still pending is skipped, never flushed from here (that would
+   * block a loader thread a lane compaction may be waiting for); once its lane has drained it, a
+   * later pass retries. Ops that race in after the drop stay queued in the store and are replayed
+   * when the key loads again. Pinned keys (default + warm-up keys) are never evicted.
+   */
+  private void evictIfOverBudget() {
+    long cap = props.getCache().getMaxBytes().toBytes();
+    if (cap <= 0 || !evicting.compareAndSet(false, true)) return;
+    boolean skipped = false;
+    try {
+      // re-weigh everything; indexes grow and shrink after their load-time footprint
+      record Candidate(String key, IndexHolder holder, long lastAccessNanos) {}
+      List<Candidate> candidates = new ArrayList<>();
+      for (var e : indices.entrySet()) {
+        var idx = e.getValue().future.getNow(null);
+        if (idx == null) continue; // still loading
+        residentBytes.addAndGet(e.getValue().reweigh(idx));
+        if (!isPinned(e.getKey())) candidates.add(new Candidate(e.getKey(), e.getValue(), e.getValue().lastAccessNanos));
+      }
+      candidates.sort(Comparator.comparingLong(Candidate::lastAccessNanos));
+      for (var c : candidates) {
+        if (residentBytes.get() <= cap) break;
+        String key = c.key();
+        IndexHolder h = c.holder();
+        if (store.hasPending(key)) {
+          log.debug("LookupService: not evicting key={} yet, write-behind ops pending", key);
+          skipped = true;
+          continue;
+        }
+        if (indices.remove(key, h)) {
+          long weight = h.evict();
+          long total = residentBytes.addAndGet(-weight);
+          log.info("LookupService: evicted key={} (~{} bytes), resident ~{} of {} bytes", key, weight, total, cap);
+        }
+      }
+    } finally {
+      evicting.set(false);
+    }
+    if (skipped && residentBytes.get() > cap && evictionRetry.compareAndSet(false, true)) {
+      CompletableFuture.delayedExecutor(EVICTION_RETRY_MS, TimeUnit.MILLISECONDS, loader).execute(() -> {
+        evictionRetry.set(false);
+        evictIfOverBudget();
+      });
+    }
+  }
+
+  /* ======================== Cross-node sync ======================== */
+
+  private void startSync() {
+    String nodeId = syncNodeId();
+    try {
+      sync = dao.watchChanges(nodeId, new LookupValueDao.ChangeListener() {
+        @Override
+        public void onChange(LookupValueDao.BucketChange change) {
+          applyRemoteChange(change);
+        }
+
+        @Override
+        public void onDelta(String key, LookupValueDao.Delta delta) {
+          applyRemoteDelta(key, delta);
+        }
+
+        @Override
+        public void onGap() {
+          resyncResident();
+        }
+      });
+      log.info("LookupService: cross-node sync on as node '{}'", nodeId);
+    } catch (Exception e) {
+      log.warn("LookupService: cross-node sync could not start (replica set required); other nodes' writes show on reload only", e);
+    }
+  }
+
+  private String syncNodeId() {
+    String id = props.getSync().getNodeId();
+    if (id != null && !id.isBlank()) return id.trim();
+    String host = System.getenv("HOSTNAME");
+    if (host != null && !host.isBlank()) return host;
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    } catch (IOException e) {
+      return UUID.randomUUID().toString(); // no stable name: every start begins at "now"
+    }
+  }
+
+  /** Another node rewrote a bucket: reconcile the resident index, if the key is resident. */
+  private void applyRemoteChange(LookupValueDao.BucketChange change) {
+    var h = indices.get(change.key());
+    if (h == null) return; // not resident; the next load reads the current bucket
+    // a load still running may have read the bucket before this change: apply once it completes
+    h.future.thenAccept(idx -> reconcile(change.key(), idx, change.values(), change.covers()));
+  }
+
+  /**
+   * Applies a stored copy of the bucket to the index (a full pass over its values), leaving
+   * local ops not yet persisted alone ({@link #unpersisted}).
+   */
+  private void reconcile(String key, InMemoryIndex idx, List<LookupValueDao.DocValue> stored,
+                         Predicate<String> covers) {
+    List<InMemoryIndex.Entry> entries = new ArrayList<>(stored.size());
+    for (var dv : stored) {
+      entries.add(new InMemoryIndex.Entry(dv.value(), dv.norm(), Math.max(1, dv.frequency()), dv.createdAt()));
+    }
+    int changed;
+    var guard = keyGuard(key).writeLock();
+    guard.lock();
+    try {
+      var keep = unpersisted(key);
+      if (keep == null) return;
+      changed = idx.reconcile(entries, covers, keep);
+    } finally {
+      guard.unlock();
+    }
+    if (changed > 0) {
+      log.debug("LookupService: sync key={} {} values added/removed", key, changed);
+      reweigh(key, idx);
+    }
+  }
+
+  /**
+   * Another node wrote a delta: apply just its values to the resident index, if the key is
+   * resident. A load still running applies it once it completes; if that load already read the
+   * change, re-applying it only repeats the frequency increments.
+   */
+  private void applyRemoteDelta(String key, LookupValueDao.Delta delta) {
+    var h = indices.get(key);
+    if (h == null) return;
+    h.future.thenAccept(idx -> {
+      List<InMemoryIndex.Entry> adds = new ArrayList<>(delta.adds().size());
+      for (var dv : delta.adds()) {
+        adds.add(new InMemoryIndex.Entry(dv.value(), dv.norm(), Math.max(1, dv.frequency()), dv.createdAt()));
+      }
+      int changed;
+      var guard = keyGuard(key).writeLock();
+      guard.lock();
+      try {
+        var keep = unpersisted(key);
+        if (keep == null) return;
+        changed = idx.applyDelta(adds, delta.deletes(), delta.increments(), keep);
+      } finally {
+        guard.unlock();
+      }
+      if (changed > 0) {
+        log.debug("LookupService: sync key={} {} values added/removed", key, changed);
+        reweigh(key, idx);
+      }
+    });
+  }
+
+  /**
+   * Norms with local ops not persisted yet, which another node's copy must not override (the
+   * local op wins and reaches Mongo later); null if the bucket is about to be rewritten from
+   * memory, which then holds ops the store no longer lists. Caller holds the key's write guard.
+   */
+  private Set<String> unpersisted(String key) {
+    var pending = store.pendingFor(key);
+    if (pending.rewrite()) return null;
+    Set<String> keep = new HashSet<>(pending.deletes());
+    for (String v : pending.adds()) keep.add(InMemoryIndex.normalize(v));
+    return keep;
+  }
+
+  private ReentrantReadWriteLock keyGuard(String key) {
+    int h = key.hashCode();
+    return keyGuards[(h ^ (h >>> 16)) & (KEY_GUARD_STRIPES - 1)];
+  }
+
+  /** Write-behind merged another node's write into the bucket: show it in memory too. */
+  private void rebase(String key, List<LookupValueDao.DocValue> merged) {
+    var h = indices.get(key);
+    var idx = h == null ? null : h.future.getNow(null);
+    if (idx != null) reconcile(key, idx, merged, norm -> true);
+  }
+
+  /** The change stream lost its position: re-read every resident key in the background. */
+  private void resyncResident() {
+    for (var e : indices.entrySet()) {
+      var idx = e.getValue().future.getNow(null);
+      if (idx == null) continue; // still loading; reads the current bucket
+      String key = e.getKey();
+      loader.execute(() -> {
+        List<LookupValueDao.DocValue> stored = new ArrayList<>();
+        dao.streamBucketAsync(key, stored::add).whenCompleteAsync((found, ex) -> {
+          if (ex != null) log.warn("LookupService: resync failed for key={}", key, ex);
+          else reconcile(key, idx, stored, norm -> true);
+        }, loader);
+      });
+    }
+    log.info("LookupService: change stream gap, resyncing resident keys");
+  }
+
+  private boolean isPinned(String key) {
+    return pinned.contains(key);
+  }
+
+  /**
+   * Loads an index for the key:
+   *  - streams the bucket from the DAO (tolerant parsing in DAO),
+   *  - preloads (value, freq, createdAt) into the trie as the values arrive,
+   *  - if DB is down or empty, returns a fresh empty index.
+   * A non-blocking DAO feeds the trie from its driver threads; the rest (legacy fallback, replay
+   * of pending ops) then runs on a loader thread. A blocking DAO runs it all on the caller.
+   */
+  private CompletableFuture<InMemoryIndex> loadIndex(String k) {
+    var idx = new InMemoryIndex();
+    var preload = idx.preload();
+    CompletableFuture<Boolean> streamed;
+    try {
+      // Values stream from the DAO straight into the trie build; the bucket is never held whole
+      streamed = dao.streamBucketAsync(k, dv ->
+              preload.accept(new InMemoryIndex.Entry(dv.value(), dv.norm(), Math.max(1, dv.frequency()), dv.createdAt())));
+    } catch (RuntimeException e) {
+      streamed = CompletableFuture.failedFuture(e);
+    }
+    Executor then = streamed.isDone() ? Runnable::run : loader; // keep blocking work off driver threads
+    return streamed.handleAsync((found, failure) -> finishLoad(k, idx, preload, found, failure), then);
+  }
+
+  private InMemoryIndex finishLoad(String k, InMemoryIndex idx, InMemoryIndex.Preload preload,
+                                   Boolean found, Throwable failure) {
+    try {
+      if (failure != null) throw failure;
+      int loaded = preload.finish();
+      if (found) {
+        log.info("LookupService: loaded {} entries for key={}", loaded, k);
+      } else {
+        // Optional: fallback legacy preload via dao.findAllValues(k)
+        var legacy = dao.findAllValues(k);
+        if (!legacy.isEmpty()) {
+          idx.preloadAll(legacy);
+          log.info("LookupService: legacy preload {} entries for key={}", legacy.size(), k);
+        }
+      }
+    } catch (Throwable e) {
+      // Tolerate DB issues; keep empty index so the app is usable
+      log.warn("LookupService: failed loading bucket for key={}, using empty in-memory index", k,
+              e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+      idx = new InMemoryIndex(); // drop whatever a broken stream delivered
+    }
+
+    // Replay ops still queued for write-behind (e.g. written just before this key was evicted)
+    var pending = store.pendingFor(k);
+    for (String v : pending.adds()) {
+      idx.addIfAbsent(v);
+    }
+    for (String norm : pending.deletes()) idx.removeValue(norm);
+    return idx;
+  }
+
   /** For write-behind: produce the authoritative list to persist for a key. */
   private List<LookupValueDao.DocValue> snapshotForKey(String key) {
-    var idx = indices.get(key);
-    if (idx == null) return List.of();
-    var snap = idx.snapshot();
+    // an evicted key reloads here; its queued ops are replayed onto the fresh index
+    var snap = ensureIndexLoaded(key).snapshot();
     List<LookupValueDao.DocValue> out = new ArrayList<>(snap.size());
     for (var e : snap) {
       out.add(new LookupValueDao.DocValue(e.value(), e.norm(), e.frequency(), e.createdAt()));
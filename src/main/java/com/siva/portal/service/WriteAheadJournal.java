@@ -0,0 +1,363 @@
+// service/WriteAheadJournal.java
+package com.siva.portal.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only local journal for write-behind ops, so edits acknowledged to users survive a crash
+ * or redeploy before they reach Mongo.
+ * - Records get increasing LSNs and are buffered in memory; one flusher thread writes whatever has
+ *   accumulated and fsyncs it (group commit), so concurrent writers share one fsync.
+ * - Segment files are named by their first LSN and rolled at a size limit.
+ * - Sealed segments are deleted once every op in them has been persisted ({@link #truncate}).
+ *   The active segment cannot be; instead a checkpoint record notes the LSN below which every op
+ *   is persisted ({@link #checkpoint}), and replay skips those ops.
+ * - On startup {@link #replay} feeds every intact record not covered by the last checkpoint back;
+ *   a torn tail is cut off.
+ * - An I/O error disables the journal (logged) and writers fall back to memory-only.
+ *
+ * Record layout: int length, int crc32(payload), payload = long lsn, byte op, key, value
+ * (strings as int length + UTF-8).
+ */
+final class WriteAheadJournal implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(WriteAheadJournal.class);
+  private static final String SUFFIX = ".wal";
+
+  enum Op { ADD, DELETE, CHECKPOINT } // CHECKPOINT is written by checkpoint() and never replayed
+
+  record Record(long lsn, Op op, String key, String value) {}
+
+  private record Segment(Path path, long firstLsn, long lastLsn) {}
+
+  /* ---------------------- State (guarded by lock) ---------------------- */
+
+  private final Path dir;
+  private final long segmentBytes;
+  private final Object lock = new Object();
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+  private final Deque<Segment> sealed = new ArrayDeque<>();
+  private long nextLsn = 1;
+  private long durableLsn;
+  private long checkpointed; // highest persistedBefore written as a checkpoint
+  private boolean failed;
+  private boolean closed;
+
+  // owned by the flusher thread once replay() has started it
+  private FileChannel active;
+  private Path activePath;
+  private long activeFirstLsn;
+  private long activeSize;
+  private Thread flusher;
+
+  WriteAheadJournal(Path dir, long segmentBytes) {
+    this.dir = dir;
+    this.segmentBytes = Math.max(64 * 1024, segmentBytes);
+  }
+
+  /* ---------------------- Startup ---------------------- */
+
+  /**
+   * Reads every existing segment in LSN order and hands intact records to the consumer, then
+   * opens a fresh segment for new appends. Ops below the last checkpoint are already in Mongo
+   * and are skipped (a first pass finds the checkpoint). Returns the number of records replayed.
+   */
+  int replay(Consumer<Record> consumer) throws IOException {
+    Files.createDirectories(dir);
+    List<Path> files = new ArrayList<>();
+    try (var stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+      for (Path f : stream) {
+        if (firstLsnOf(f) > 0) files.add(f); // ignore files we did not name
+      }
+    }
+    files.sort(Comparator.comparingLong(WriteAheadJournal::firstLsnOf));
+
+    long[] persisted = {0};
+    for (Path f : files) {
+      readSegment(f, r -> {
+        if (r.op() == Op.CHECKPOINT) persisted[0] = Math.max(persisted[0], Long.parseLong(r.value()));
+      });
+    }
+
+    int[] count = {0};
+    long last = 0;
+    for (Path f : files) {
+      long first = firstLsnOf(f);
+      long segLast = readSegment(f, r -> {
+        if (r.op() == Op.CHECKPOINT || r.lsn() < persisted[0]) return;
+        consumer.accept(r);
+        count[0]++;
+      });
+      if (segLast >= first) {
+        sealed.add(new Segment(f, first, segLast));
+        last = Math.max(last, segLast);
+      } else {
+        Files.deleteIfExists(f); // nothing usable in it
+      }
+    }
+    nextLsn = last + 1;
+    durableLsn = last;
+    checkpointed = persisted[0];
+    openSegment(nextLsn);
+    flusher = new Thread(this::flushLoop, "lookup-journal");
+    flusher.setDaemon(true);
+    flusher.start();
+    return count[0];
+  }
+
+  /** Hands the segment's intact records to the consumer; returns the last LSN read. */
+  private static long readSegment(Path f, Consumer<Record> consumer) throws IOException {
+    long segLast = firstLsnOf(f) - 1;
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(f)))) {
+      Record r;
+      while ((r = read(in)) != null) {
+        consumer.accept(r);
+        segLast = r.lsn();
+      }
+    } catch (IOException e) {
+      // torn write at the tail of the segment being written when we stopped; the rest is intact
+      log.warn("WriteAheadJournal: stopped reading {} after lsn {} ({})", f.getFileName(), segLast, e.toString());
+    }
+    return segLast;
+  }
+
+  /* ---------------------- Appends ---------------------- */
+
+  /** Buffers a record and returns its LSN (0 if the journal has failed or is closed). */
+  long append(Op op, String key, String value) {
+    synchronized (lock) {
+      return appendLocked(op, key, value);
+    }
+  }
+
+  /**
+   * Notes that every op below {@code persistedBefore} is in Mongo, so replay skips them even
+   * where they share the active segment with later ops. Written with the next group commit; not
+   * waited for (a lost checkpoint only means those ops are replayed, as before).
+   */
+  void checkpoint(long persistedBefore) {
+    synchronized (lock) {
+      if (persistedBefore <= checkpointed) return;
+      if (appendLocked(Op.CHECKPOINT, "", Long.toString(persistedBefore)) > 0) checkpointed = persistedBefore;
+    }
+  }
+
+  /** Caller holds the lock. */
+  private long appendLocked(Op op, String key, String value) {
+    if (failed || closed) return 0;
+    long lsn = nextLsn++;
+    byte[] payload = encode(lsn, op, key, value);
+    var crc = new CRC32();
+    crc.update(payload);
+    var out = new DataOutputStream(buffer);
+    try {
+      out.writeInt(payload.length);
+      out.writeInt((int) crc.getValue());
+      out.write(payload);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // ByteArrayOutputStream does not throw
+    }
+    lock.notifyAll(); // wake the flusher
+    return lsn;
+  }
+
+  /** Waits until the record with this LSN is fsynced (or the journal has failed). */
+  void awaitDurable(long lsn) {
+    if (lsn <= 0) return;
+    synchronized (lock) {
+      boolean interrupted = false;
+      while (durableLsn < lsn && !failed) { // close() still flushes what was appended
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          interrupted = true; // keep waiting; the caller was promised durability
+        }
+      }
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Next LSN to be handed out; every op appended from now on is at or above it. */
+  long nextLsn() {
+    synchronized (lock) {
+      return nextLsn;
+    }
+  }
+
+  boolean hasSealedSegments() {
+    synchronized (lock) {
+      return !sealed.isEmpty();
+    }
+  }
+
+  /** Deletes sealed segments whose records are all below {@code persistedBefore}. */
+  void truncate(long persistedBefore) {
+    List<Path> drop = new ArrayList<>();
+    synchronized (lock) {
+      while (!sealed.isEmpty() && sealed.peekFirst().lastLsn() < persistedBefore) {
+        drop.add(sealed.pollFirst().path());
+      }
+    }
+    for (Path p : drop) {
+      try {
+        Files.deleteIfExists(p);
+      } catch (IOException e) {
+        log.warn("WriteAheadJournal: could not delete {}", p, e);
+      }
+    }
+  }
+
+  /** Flushes and closes the active segment, which becomes sealed (and truncatable). */
+  @Override
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      lock.notifyAll();
+    }
+    if (flusher != null) {
+      try {
+        flusher.join(5_000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /* ---------------------- Flusher ---------------------- */
+
+  private void flushLoop() {
+    while (true) {
+      byte[] chunk;
+      long upTo;
+      boolean last;
+      synchronized (lock) {
+        while (buffer.size() == 0 && !closed) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            closed = true;
+          }
+        }
+        chunk = buffer.toByteArray();
+        buffer.reset();
+        upTo = nextLsn - 1;
+        last = closed;
+      }
+      try {
+        if (chunk.length > 0) {
+          var bb = ByteBuffer.wrap(chunk);
+          while (bb.hasRemaining()) active.write(bb);
+          active.force(false);
+          activeSize += chunk.length;
+        }
+        synchronized (lock) {
+          durableLsn = upTo;
+          lock.notifyAll();
+        }
+        if (last) {
+          active.close();
+          seal(upTo); // so truncate() can drop it too once its ops are persisted
+          return;
+        }
+        if (activeSize >= segmentBytes) roll(upTo);
+      } catch (IOException e) {
+        log.error("WriteAheadJournal: write to {} failed; journaling disabled, pending ops are memory-only",
+                activePath, e);
+        synchronized (lock) {
+          failed = true;
+          lock.notifyAll();
+        }
+        return;
+      }
+    }
+  }
+
+  private void roll(long lastLsn) throws IOException {
+    active.close();
+    seal(lastLsn);
+    openSegment(lastLsn + 1);
+  }
+
+  private void seal(long lastLsn) throws IOException {
+    if (lastLsn < activeFirstLsn) { // nothing was written to it
+      Files.deleteIfExists(activePath);
+      return;
+    }
+    synchronized (lock) {
+      sealed.add(new Segment(activePath, activeFirstLsn, lastLsn));
+    }
+  }
+
+  private void openSegment(long firstLsn) throws IOException {
+    activePath = dir.resolve(String.format("%020d%s", firstLsn, SUFFIX));
+    active = FileChannel.open(activePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    activeFirstLsn = firstLsn;
+    activeSize = 0;
+    try (var d = FileChannel.open(dir, StandardOpenOption.READ)) {
+      d.force(true); // make the new file's directory entry durable
+    } catch (IOException | UnsupportedOperationException ignored) {
+      // not supported on every platform (e.g. Windows); the data itself is still fsynced
+    }
+  }
+
+  /* ---------------------- Encoding ---------------------- */
+
+  private static byte[] encode(long lsn, Op op, String key, String value) {
+    byte[] k = key.getBytes(StandardCharsets.UTF_8);
+    byte[] v = value.getBytes(StandardCharsets.UTF_8);
+    var bb = ByteBuffer.allocate(8 + 1 + 4 + k.length + 4 + v.length);
+    bb.putLong(lsn).put((byte) op.ordinal()).putInt(k.length).put(k).putInt(v.length).put(v);
+    return bb.array();
+  }
+
+  /** Next intact record, or null at a clean end of file. Throws on a torn or corrupt record. */
+  private static Record read(DataInputStream in) throws IOException {
+    int len;
+    try {
+      len = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    int crc = in.readInt();
+    if (len < 17 || len > 16 * 1024 * 1024) throw new IOException("bad record length " + len);
+    byte[] payload = new byte[len];
+    in.readFully(payload);
+    var c = new CRC32();
+    c.update(payload);
+    if ((int) c.getValue() != crc) throw new IOException("checksum mismatch");
+
+    try {
+      var bb = ByteBuffer.wrap(payload);
+      long lsn = bb.getLong();
+      int op = bb.get();
+      if (op < 0 || op >= Op.values().length) throw new IOException("unknown op " + op);
+      byte[] k = new byte[bb.getInt()];
+      bb.get(k);
+      byte[] v = new byte[bb.getInt()];
+      bb.get(v);
+      return new Record(lsn, Op.values()[op], new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8));
+    } catch (RuntimeException e) {
+      throw new IOException("malformed record", e);
+    }
+  }
+
+  private static long firstLsnOf(Path f) {
+    String name = f.getFileName().toString();
+    try {
+      return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+// service/WriteBehindMetrics.java
+package com.siva.portal.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer instruments for {@link WriteBehindStore}, all named {@code lookup.writebehind.*}.
+ * - Gauges (queue depth, bytes, keys in backoff) are read from the store at scrape time.
+ * - bulk.keys shows how many keys each lane drain batched into one write; conflicts counts bucket
+ *   rewrites that found another node's write and had to re-read and merge.
+ * - Per-key meters are tagged {@code key=<lookup key>} for the first maxKeyTags keys seen; any
+ *   later key is tagged {@code _other}, so the number of series stays bounded.
+ * - Meters are created once per tag and cached; the hot path only increments/records.
+ */
+final class WriteBehindMetrics {
+
+  static final String PREFIX = "lookup.writebehind";
+  static final String OTHER_KEY = "_other";
+
+  /** Meters for one key tag. */
+  static final class KeyMeters {
+    final Counter adds, deletes, touches;
+    final Timer deltaWrites, compactWrites, failedDeltaWrites, failedCompactWrites;
+    final Timer persistLag;
+    final DistributionSummary batchOps;
+
+    private KeyMeters(MeterRegistry r, String tag) {
+      adds = enqueued(r, tag, "add");
+      deletes = enqueued(r, tag, "delete");
+      touches = enqueued(r, tag, "touch");
+      deltaWrites = write(r, tag, "delta", "success");
+      compactWrites = write(r, tag, "compact", "success");
+      failedDeltaWrites = write(r, tag, "delta", "failure");
+      failedCompactWrites = write(r, tag, "compact", "failure");
+      persistLag = Timer.builder(PREFIX + ".persist.lag")
+              .description("Time from the oldest op in a batch being queued to its write succeeding")
+              .tag("key", tag)
+              .publishPercentileHistogram()
+              .register(r);
+      batchOps = DistributionSummary.builder(PREFIX + ".batch.ops")
+              .description("Ops coalesced into one Mongo write")
+              .baseUnit("ops")
+              .tag("key", tag)
+              .publishPercentileHistogram()
+              .register(r);
+    }
+
+    private static Counter enqueued(MeterRegistry r, String tag, String op) {
+      return Counter.builder(PREFIX + ".enqueued")
+              .description("Ops queued for persistence")
+              .tag("key", tag)
+              .tag("op", op)
+              .register(r);
+    }
+
+    private static Timer write(MeterRegistry r, String tag, String mode, String outcome) {
+      return Timer.builder(PREFIX + ".write")
+              .description("Mongo writes issued by drains (delta, or full bucket rewrite)")
+              .tag("key", tag)
+              .tag("mode", mode)
+              .tag("outcome", outcome)
+              .publishPercentileHistogram()
+              .register(r);
+    }
+  }
+
+  final DistributionSummary bulkKeys;
+  final Counter conflicts;
+
+  private final MeterRegistry registry;
+  private final int maxKeyTags;
+  private final Set<String> taggedKeys = ConcurrentHashMap.newKeySet();
+  private final Map<String, KeyMeters> byTag = new ConcurrentHashMap<>();
+
+  WriteBehindMetrics(MeterRegistry registry, int maxKeyTags) {
+    this.registry = registry;
+    this.maxKeyTags = Math.max(0, maxKeyTags);
+    this.bulkKeys = DistributionSummary.builder(PREFIX + ".bulk.keys")
+            .description("Keys whose deltas shared one bulk write")
+            .baseUnit("keys")
+            .publishPercentileHistogram()
+            .register(registry);
+    this.conflicts = Counter.builder(PREFIX + ".conflicts")
+            .description("Bucket rewrites retried as a merge because another node wrote the bucket")
+            .register(registry);
+  }
+
+  /** Registers the store-wide gauges and overflow counters. */
+  void bind(WriteBehindStore store) {
+    Gauge.builder(PREFIX + ".pending.ops", store, s -> s.stats(0).pendingOps())
+            .description("Ops queued or being written, all keys")
+            .register(registry);
+    Gauge.builder(PREFIX + ".pending.keys", store, s -> s.stats(0).pendingKeys())
+            .description("Keys with ops not yet persisted")
+            .register(registry);
+    Gauge.builder(PREFIX + ".pending.bytes", store, s -> s.overflowStats().pendingBytes())
+            .description("Estimated heap held by pending ops")
+            .baseUnit("bytes")
+            .register(registry);
+    Gauge.builder(PREFIX + ".backoff.keys", store, s -> s.stats(0).backoffKeys())
+            .description("Keys waiting out a failure backoff")
+            .register(registry);
+    FunctionCounter.builder(PREFIX + ".overflow", store, s -> s.overflowStats().spilled())
+            .description("Ops past the pending limits, by outcome")
+            .tag("outcome", "spilled")
+            .register(registry);
+    FunctionCounter.builder(PREFIX + ".overflow", store, s -> s.overflowStats().dropped())
+            .description("Ops past the pending limits, by outcome")
+            .tag("outcome", "dropped")
+            .register(registry);
+    FunctionCounter.builder(PREFIX + ".overflow", store, s -> s.overflowStats().rejected())
+            .description("Ops past the pending limits, by outcome")
+            .tag("outcome", "rejected")
+            .register(registry);
+  }
+
+  KeyMeters forKey(String key) {
+    return byTag.computeIfAbsent(tagFor(key), tag -> new KeyMeters(registry, tag));
+  }
+
+  void recordWrite(KeyMeters m, boolean compact, boolean success, long nanos) {
+    Timer t = compact ? (success ? m.compactWrites : m.failedCompactWrites)
+                      : (success ? m.deltaWrites : m.failedDeltaWrites);
+    t.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  private String tagFor(String key) {
+    if (taggedKeys.contains(key)) return key;
+    if (taggedKeys.size() >= maxKeyTags) return OTHER_KEY;
+    taggedKeys.add(key); // racing first-seen keys may overshoot the cap by a few; that is fine
+    return key;
+  }
+}
@@ -0,0 +1,17 @@
+// service/WriteBehindOverflowException.java
+package com.siva.portal.service;
+
+/** Thrown when a write cannot be queued for persistence because the write-behind limits are reached. */
+public class WriteBehindOverflowException extends RuntimeException {
+
+  private final String key;
+
+  public WriteBehindOverflowException(String key, String message) {
+    super(message);
+    this.key = key;
+  }
+
+  public String getKey() {
+    return key;
+  }
+}
@@ -1,225 +1,1098 @@
 // service/WriteBehindStore.java
 package com.siva.portal.service;
 
+import com.siva.portal.configuration.LookupProperties;
+import com.siva.portal.repo.BucketVersionConflictException;
 import com.siva.portal.repo.LookupValueDao;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 /**
  * Write-behind store for bucketed persistence (one Mongo document per lookup 'key').
- * - Non-blocking: drains run on a single-threaded scheduler.
- * - Coalesces ops per key to minimize writes.
+ * - Non-blocking: drains run on N single-threaded lanes; a key always drains on the same lane,
+ *   so its writes stay ordered while different keys persist in parallel.
+ * - Coalesces ops per key to minimize writes. The coalescing window adapts to the key's write
+ *   rate (min delay when idle, widening to max delay as it gets busy), and a key that reaches
+ *   max-ops-per-flush is drained right away. A key in backoff sleeps until its retry time.
+ * - Persists deltas ($pull/$push/$inc) rather than rewriting the bucket; keys of a lane that come
+ *   due together share one bulk write ({@link LookupValueDao#applyDeltas}).
+ * - Full-snapshot replace only as periodic compaction, or to repair after repeated delta failures.
+ *   The replace is conditional on the stored version; if another node wrote the bucket since, the
+ *   stored bucket is re-read, this batch's ops are applied on top, and the result is written and
+ *   handed back to memory ({@code rebase}), so concurrent nodes do not overwrite each other.
+ * - Mongo I/O runs outside the per-key monitor: ops are swapped out under it, written, and merged
+ *   back on failure, so enqueuers never wait on a slow write.
+ * - With a non-blocking DAO ({@link LookupValueDao#applyDeltasAsync}) a lane only issues the bulk
+ *   delta write and moves on; the keys are settled when it completes. A lane keeps at most
+ *   MAX_LANE_WRITES writes in flight, so keys that come due meanwhile still share a bulk write.
+ * - Adds/deletes are journaled locally (group-commit fsync) before they are acknowledged, and
+ *   replayed on startup, so a crash between enqueue and drain loses nothing.
  * - Exponential backoff on failure (per key).
- * - Bounded pending sets per key.
+ * - Bounded pending ops (per key and total bytes); past the limit the configured overflow policy
+ *   blocks, spills to the journal, rejects, or drops (counted) instead of growing memory.
+ * - Instrumented with Micrometer ({@link WriteBehindMetrics}); {@link #stats} gives per-key detail.
+ * - {@link #shutdown(Duration)} lets running drains finish, then flushes every pending key in
+ *   parallel within a deadline and reports what is left (still in the journal, if enabled).
  *
- * Requires:
- *  - LookupValueDao.upsertBucket(String key, List<DocValue> values)
- *  - snapshotSupplier.apply(key) -> current in-memory list of DocValue for that key
+ * Requires (one drain per key at a time, under its drain lock; different keys drain concurrently):
+ *  - a thread-safe LookupValueDao: applyDeltasAsync(deltas) for the lane's bulk delta write (the
+ *    default falls back to applyDeltas/applyDelta); upsertBucket(key, values), conditional on the
+ *    stored version (BucketVersionConflictException), and getBucket(key) for full rewrites
+ *  - snapshotSupplier.apply(key) -> current in-memory list of DocValue for that key; called on a
+ *    lane thread outside the key monitor, so it must tolerate concurrent writes to the index
+ *  - rebase.accept(key, values) -> bring the in-memory index in line with a merged bucket; called
+ *    where the write completed, with the key's drain lock held, so it must not flush that key
  */
 public class WriteBehindStore {
 
+  private static final Logger log = LoggerFactory.getLogger(WriteBehindStore.class);
+
   /* ---------------------- Tunables ---------------------- */
 
-  private static final int MAX_PENDING_PER_KEY = 2000;  // distinct values (adds+deletes) per key
   private static final Duration INITIAL_BACKOFF = Duration.ofMillis(500);
   private static final Duration MAX_BACKOFF     = Duration.ofSeconds(30);
+  private static final int REPAIR_AFTER_FAILURES = 3;   // consecutive delta failures before a full rewrite
+  private static final Duration RATE_HALF_LIFE = Duration.ofSeconds(5); // idle keys' write rate decays
+  private static final long ENTRY_BYTES = 96;           // per pending op besides its strings (map node, record, headers)
+  private static final long BLOCK_POLL_MS = 100;        // BLOCK re-checks at least this often
+  private static final int SHUTDOWN_FLUSH_THREADS = 8;  // final flush is I/O bound; at least this many writers
+  private static final int MAX_KEYS_PER_BULK = 500;     // keys whose deltas share one bulk write
+  private static final int MAX_CONFLICT_RETRIES = 3;    // re-read + merge attempts when another node wrote the bucket
+  private static final int MAX_LANE_WRITES = 2;         // async bulk writes a lane keeps in flight; later keys share the next
+  private static final long NO_DEADLINE = Long.MAX_VALUE; // explicit flush that waits for the key's drain lock
+  private static final long BUSY_RETRY_MS = 10;         // a due key whose previous write has not settled yet is retried this soon
 
   /* ---------------------- Types ---------------------- */
 
-  private enum Type { ADD, DELETE, TOUCH }
-
-  /** Pending ops coalesced per key. */
+  /** Pending ops coalesced per key. Fields are guarded by the instance monitor. */
   private static final class Pending {
-    // keep latest original-cased value by norm
-    final Map<String, String> addsByNorm = new LinkedHashMap<>();
-    final Set<String> deletesNorm = new LinkedHashSet<>();
-    // touch acts like a freq bump; we don’t need to store individual touches, since
-    // the authoritative list comes from snapshotSupplier (which already bumps locally).
+    // keep latest original-cased value by norm (frequency grows with touches before it persists)
+    Map<String, LookupValueDao.DocValue> addsByNorm = new LinkedHashMap<>();
+    Set<String> deletesNorm = new LinkedHashSet<>();
+    // touch = +1 frequency on a stored value, summed per norm
+    Map<String, Integer> touchesByNorm = new HashMap<>();
+    boolean compact;              // next drain rewrites the whole bucket from the snapshot
+    long minLsn = Long.MAX_VALUE; // oldest journaled op not yet persisted
+    long bytes;                   // estimated heap of the maps above (counted in pendingBytes)
+    long oldestNanos;             // when the oldest op still in the maps was queued (0 = none)
+    int deltaFailures = 0;        // consecutive failed delta writes
     int attempt = 0;              // backoff attempt counter
     long nextRunEpochMs = 0L;     // next eligible drain time (epoch ms)
+    boolean scheduled;            // a drain task is queued or running on the key's lane
+    long ticket;                  // latest drain task; older ones were superseded by an early flush
+    long dueNanos;                // when that task runs
+    boolean retired;              // removed from pendingByKey; enqueuers must fetch a fresh one
+    Batch inFlight;               // ops taken by the drain currently writing them
+
+    // one drain at a time per key (lane task vs. an explicit flush); never held by enqueuers.
+    // A permit, not a lock: an async delta write releases it from the thread that completes it
+    final Semaphore drainLock = new Semaphore(1);
+  }
+
+  /** A key's drain task that came due (ticket 0 = explicit flush). */
+  private record Due(String key, Pending p, long ticket) {}
+
+  /** A key whose ops were swapped out for this drain, and how they will be written. */
+  private record Taken(Due due, Batch batch, boolean compact, KeyState state, long now) {}
+
+  /** Ops swapped out of a Pending for one write. */
+  private record Batch(Map<String, LookupValueDao.DocValue> adds, Set<String> deletes,
+                       Map<String, Integer> touches, boolean compact, long minLsn, long bytes,
+                       long oldestNanos) {
+    int ops() {
+      return adds.size() + deletes.size() + touches.size();
+    }
+  }
+
+  /** Overflow counters since startup, plus the current pending estimate. */
+  public record OverflowStats(long spilled, long dropped, long rejected, long pendingBytes) {}
+
+  /** Queue state across keys, with the deepest keys first. */
+  public record Stats(int pendingKeys, long pendingOps, int backoffKeys, OverflowStats overflow,
+                      List<KeyStats> keys) {}
+
+  /** Outcome of the final flush: keys written, and what was left unpersisted (deepest first). */
+  public record ShutdownReport(int flushedKeys, long unpersistedOps, List<KeyStats> unpersisted,
+                               boolean journaled, long elapsedMillis) {}
+
+  /** One key's queue: ops waiting (and being written), age of the oldest, and its backoff state. */
+  public record KeyStats(String key, int adds, int deletes, int touches, int inFlight, boolean compact,
+                         long oldestMillis, int attempt, long retryInMillis) {
+    int ops() {
+      return adds + deletes + touches + inFlight;
+    }
   }
 
   /* ---------------------- State ---------------------- */
 
   private final LookupValueDao dao;
   private final Function<String, List<LookupValueDao.DocValue>> snapshotSupplier;
+  private final BiConsumer<String, List<LookupValueDao.DocValue>> rebase;
+  private final Duration compactionInterval;
+  private final LookupProperties.WriteBehind.Journal journalCfg;
+  private volatile WriteAheadJournal journal; // set once recover() has replayed it
+
+  // overflow policy
+  private final LookupProperties.WriteBehind.Overflow.Policy policy;
+  private final int maxPendingPerKey;
+  private final long maxPendingBytes;
+  private final Duration blockTimeout;
+  private final LongAdder pendingBytes = new LongAdder(); // queued + in flight, all keys
+  private final LongAdder spilled = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final Object capacity = new Object();            // BLOCK waiters, notified after each drain
+
+  private final WriteBehindMetrics metrics;
 
   // per-key coalesced state
   private final ConcurrentHashMap<String, Pending> pendingByKey = new ConcurrentHashMap<>();
 
-  // drain orchestration
-  private final ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor(r -> {
-    Thread t = new Thread(r, "lookup-writebehind");
-    t.setDaemon(true);
-    return t;
-  });
-  private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+  /** Per-key history that outlives a Pending (which is dropped whenever the key is fully drained). */
+  private static final class KeyState {
+    volatile long lastCompactionMs;   // last full rewrite; deltas are applied in between
+    volatile double opsPerSec;        // smoothed write rate, updated at each drain
+    volatile long rateNanos;          // when opsPerSec was last updated
+
+    KeyState(long nowMs) {
+      this.lastCompactionMs = nowMs;
+    }
+
+    double rate(long nowNanos) {
+      double halfLives = (double) (nowNanos - rateNanos) / RATE_HALF_LIFE.toNanos();
+      return opsPerSec * Math.pow(0.5, halfLives);
+    }
+  }
+
+  private final ConcurrentHashMap<String, KeyState> keyStates = new ConcurrentHashMap<>();
+
+  // adaptive drain scheduling
+  private final long minFlushDelayMs;
+  private final long maxFlushDelayMs;
+  private final int maxOpsPerFlush;
+
+  // drain lanes, partitioned by key hash
+  private final ScheduledThreadPoolExecutor[] lanes;
+  private final List<List<Due>> laneReady = new ArrayList<>(); // keys due per lane; touched only by that lane
+  private final int[] laneWrites; // drains in flight per lane; touched only by that lane
+  private volatile boolean closing; // shutdown started: lanes take no new tasks, backoff is ignored
 
   public WriteBehindStore(LookupValueDao dao,
-                          Function<String, List<LookupValueDao.DocValue>> snapshotSupplier) {
+                          Function<String, List<LookupValueDao.DocValue>> snapshotSupplier,
+                          BiConsumer<String, List<LookupValueDao.DocValue>> rebase,
+                          LookupProperties.WriteBehind cfg,
+                          MeterRegistry meters, LookupProperties.Metrics metricsCfg) {
     this.dao = dao;
     this.snapshotSupplier = snapshotSupplier;
+    this.rebase = rebase;
+    this.compactionInterval = cfg.getCompactionInterval();
+    this.journalCfg = cfg.getJournal();
+    this.policy = cfg.getOverflow().getPolicy();
+    this.maxPendingPerKey = Math.max(1, cfg.getOverflow().getMaxPendingPerKey());
+    this.maxPendingBytes = cfg.getOverflow().getMaxPendingBytes().toBytes();
+    this.blockTimeout = cfg.getOverflow().getBlockTimeout();
+    this.minFlushDelayMs = Math.max(0, cfg.getMinFlushDelay().toMillis());
+    this.maxFlushDelayMs = Math.max(minFlushDelayMs, cfg.getMaxFlushDelay().toMillis());
+    this.maxOpsPerFlush = Math.max(1, cfg.getMaxOpsPerFlush());
+    int n = cfg.getDrainThreads() > 0 ? cfg.getDrainThreads() : Math.min(4, Runtime.getRuntime().availableProcessors());
+    this.lanes = new ScheduledThreadPoolExecutor[n];
+    this.laneWrites = new int[n];
+    for (int i = 0; i < n; i++) {
+      String name = n == 1 ? "lookup-writebehind" : "lookup-writebehind-" + i;
+      lanes[i] = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+      });
+      // on shutdown, waiting drains (coalescing windows, backoffs) are dropped; the final flush covers them
+      lanes[i].setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+      laneReady.add(new ArrayList<>());
+    }
+    this.metrics = new WriteBehindMetrics(meters, metricsCfg.getMaxKeyTags());
+    metrics.bind(this);
   }
 
   /* ---------------------- API ---------------------- */
 
-  public void enqueueAdd(String key, String value) {
+  /**
+   * Replays the local journal into the pending state (call once at startup, before serving
+   * writes) and starts journaling new adds/deletes. Returns the number of replayed ops.
+   */
+  public int recover() {
+    if (!journalCfg.isEnabled()) {
+      if (policy == LookupProperties.WriteBehind.Overflow.Policy.SPILL) {
+        log.warn("WriteBehindStore: overflow policy SPILL needs the journal; overflowing ops will be dropped");
+      }
+      return 0;
+    }
+    var j = new WriteAheadJournal(Path.of(journalCfg.getDir()), journalCfg.getSegmentSize().toBytes());
+    try {
+      int replayed = j.replay(r -> {
+        final String norm = InMemoryIndex.normalize(r.value());
+        if (norm.isEmpty()) return;
+        // replay is not capped: these ops were acknowledged, and the journal bounds them
+        mutate(r.key(), null, null, null, p -> {
+          p.minLsn = Math.min(p.minLsn, r.lsn());
+          if (r.op() == WriteAheadJournal.Op.ADD) addOp(p, norm, r.value());
+          else deleteOp(p, norm);
+        });
+      });
+      journal = j;
+      return replayed;
+    } catch (IOException e) {
+      log.warn("WriteBehindStore: journal at {} unavailable; pending ops are memory-only", journalCfg.getDir(), e);
+      return 0;
+    }
+  }
+
+  /**
+   * Applies the overflow policy before the caller changes its in-memory state for an add/delete.
+   * Returns when the op may be enqueued; under BLOCK waits up to the timeout for a drain to free
+   * room. Throws {@link WriteBehindOverflowException} under REJECT, or when BLOCK times out.
+   * SPILL and DROP never throw; they are applied by the enqueue itself.
+   */
+  public void checkCapacity(String key, String value) {
+    if (policy != LookupProperties.WriteBehind.Overflow.Policy.BLOCK
+            && policy != LookupProperties.WriteBehind.Overflow.Policy.REJECT) return;
     final String norm = InMemoryIndex.normalize(value);
     if (norm.isEmpty()) return;
 
-    Pending p = pendingByKey.computeIfAbsent(key, k -> new Pending());
-    synchronized (p) {
-      if (p.addsByNorm.size() + p.deletesNorm.size() >= MAX_PENDING_PER_KEY) {
-        // Soft guardrail: drop oldest delete if too many; then oldest add if still too many
-        if (!p.deletesNorm.isEmpty()) {
-          Iterator<String> it = p.deletesNorm.iterator();
-          it.next(); it.remove();
-        } else if (!p.addsByNorm.isEmpty()) {
-          Iterator<String> it = p.addsByNorm.keySet().iterator();
-          it.next(); it.remove();
+    String full = overflowReason(key, norm);
+    if (full == null) return;
+    if (policy == LookupProperties.WriteBehind.Overflow.Policy.BLOCK) {
+      long deadline = System.nanoTime() + blockTimeout.toNanos();
+      synchronized (capacity) {
+        while (full != null) {
+          long leftMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+          if (leftMs <= 0) break;
+          try {
+            capacity.wait(Math.min(leftMs, BLOCK_POLL_MS));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+          full = overflowReason(key, norm);
         }
       }
-      p.deletesNorm.remove(norm);
-      p.addsByNorm.put(norm, value); // keep latest casing
+      if (full == null) return;
     }
-    scheduleDrainSoon();
+    rejected.increment();
+    throw new WriteBehindOverflowException(key, full);
+  }
+
+  public void enqueueAdd(String key, String value) {
+    final String norm = InMemoryIndex.normalize(value);
+    if (norm.isEmpty()) return;
+    awaitDurable(mutate(key, WriteAheadJournal.Op.ADD, value, norm, p -> addOp(p, norm, value)));
+    metrics.forKey(key).adds.increment();
   }
 
   public void enqueueDelete(String key, String value) {
     final String norm = InMemoryIndex.normalize(value);
     if (norm.isEmpty()) return;
+    awaitDurable(mutate(key, WriteAheadJournal.Op.DELETE, value, norm, p -> deleteOp(p, norm)));
+    metrics.forKey(key).deletes.increment();
+  }
 
-    Pending p = pendingByKey.computeIfAbsent(key, k -> new Pending());
+  private static void addOp(Pending p, String norm, String value) {
+    // a pending delete stays: it is applied first, so delete + re-add replaces the stored value
+    if (p.touchesByNorm.remove(norm) != null) p.bytes -= normBytes(norm);
+    var prev = p.addsByNorm.get(norm);
+    var dv = new LookupValueDao.DocValue(value, norm, // keep latest casing
+            prev == null ? 1 : prev.frequency(), prev == null ? System.currentTimeMillis() : prev.createdAt());
+    p.addsByNorm.put(norm, dv);
+    p.bytes += addBytes(dv) - (prev == null ? 0 : addBytes(prev));
+  }
+
+  private static void deleteOp(Pending p, String norm) {
+    var prev = p.addsByNorm.remove(norm);
+    if (prev != null) p.bytes -= addBytes(prev);
+    if (p.touchesByNorm.remove(norm) != null) p.bytes -= normBytes(norm);
+    if (p.deletesNorm.add(norm)) p.bytes += normBytes(norm);
+  }
+
+  /** Optional hint to persist freq bumps eventually (coalesced). */
+  public void enqueueTouch(String key, String value) {
+    final String norm = InMemoryIndex.normalize(value);
+    if (norm.isEmpty()) return;
+
+    // touches are frequency hints: not journaled, never blocked or rejected
+    mutate(key, null, null, null, p -> {
+      var add = p.addsByNorm.get(norm);
+      if (add != null) {
+        // not stored yet: persist it with the bumped frequency
+        p.addsByNorm.put(norm, new LookupValueDao.DocValue(add.value(), norm, add.frequency() + 1, add.createdAt()));
+      } else if (p.touchesByNorm.containsKey(norm)
+              || (p.touchesByNorm.size() < maxPendingPerKey && pendingBytes.sum() < maxPendingBytes)) {
+        if (p.touchesByNorm.merge(norm, 1, Integer::sum) == 1) p.bytes += normBytes(norm);
+      } else {
+        p.compact = true; // too many distinct touches; the snapshot carries every frequency
+      }
+    });
+    metrics.forKey(key).touches.increment();
+  }
+
+  public OverflowStats overflowStats() {
+    return new OverflowStats(spilled.sum(), dropped.sum(), rejected.sum(), pendingBytes.sum());
+  }
+
+  /** Current queue state; {@code top} = how many of the deepest keys to list (0 = totals only). */
+  public Stats stats(int top) {
+    long nowMs = System.currentTimeMillis();
+    long nowNanos = System.nanoTime();
+    int keys = 0, backoff = 0;
+    long ops = 0;
+    List<KeyStats> perKey = new ArrayList<>();
+    for (var e : pendingByKey.entrySet()) {
+      Pending p = e.getValue();
+      KeyStats ks;
+      synchronized (p) {
+        if (p.retired) continue;
+        Batch b = p.inFlight;
+        long oldest = b != null && b.oldestNanos() != 0 ? b.oldestNanos() : p.oldestNanos;
+        ks = new KeyStats(e.getKey(), p.addsByNorm.size(), p.deletesNorm.size(), p.touchesByNorm.size(),
+                b == null ? 0 : b.ops(), p.compact,
+                oldest == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(nowNanos - oldest),
+                p.attempt, Math.max(0, p.nextRunEpochMs - nowMs));
+      }
+      keys++;
+      ops += ks.ops();
+      if (ks.retryInMillis() > 0) backoff++;
+      if (top > 0) perKey.add(ks);
+    }
+    perKey.sort(Comparator.comparingInt(KeyStats::ops).reversed());
+    if (perKey.size() > top) perKey = new ArrayList<>(perKey.subList(0, top));
+    return new Stats(keys, ops, backoff, overflowStats(), perKey);
+  }
+
+  /**
+   * Pending adds (original values) and deletes (norms) for a key, not yet persisted. {@code rewrite}:
+   * the bucket will be rewritten from memory, which may hold ops not listed here (spilled).
+   */
+  public record PendingOps(List<String> adds, Set<String> deletes, boolean rewrite) {
+    static final PendingOps NONE = new PendingOps(List.of(), Set.of(), false);
+  }
+
+  /** Copy of what is still queued (or being written) for the key, e.g. to replay onto a freshly loaded index. */
+  public PendingOps pendingFor(String key) {
+    Pending p = pendingByKey.get(key);
+    if (p == null) return PendingOps.NONE;
     synchronized (p) {
-      p.addsByNorm.remove(norm);
-      if (p.addsByNorm.size() + p.deletesNorm.size() >= MAX_PENDING_PER_KEY) {
-        // guardrail like above: prefer to trim deletes first to keep successful adds
-        if (!p.deletesNorm.isEmpty()) {
-          Iterator<String> it = p.deletesNorm.iterator();
-          it.next(); it.remove();
-        }
+      Map<String, String> adds = new LinkedHashMap<>();
+      Set<String> deletes = new LinkedHashSet<>();
+      if (p.inFlight != null) {
+        for (var dv : p.inFlight.adds().values()) adds.put(dv.norm(), dv.value());
+        deletes.addAll(p.inFlight.deletes());
       }
-      p.deletesNorm.add(norm);
+      for (String dn : p.deletesNorm) {
+        adds.remove(dn);
+        deletes.add(dn);
+      }
+      for (var dv : p.addsByNorm.values()) adds.put(dv.norm(), dv.value());
+      boolean rewrite = p.compact || (p.inFlight != null && p.inFlight.compact());
+      return new PendingOps(new ArrayList<>(adds.values()), deletes, rewrite);
     }
-    scheduleDrainSoon();
   }
 
-  /** Optional hint to persist freq bumps eventually (coalesced). */
-  public void enqueueTouch(String key, String value) {
-    // We don’t track touches; snapshot already reflects local freq.
-    scheduleDrainSoon();
+  /**
+   * Persists the key's pending ops on the calling thread. True if nothing is left pending;
+   * false if the write failed or the key is in a backoff window.
+   */
+  public boolean flush(String key) {
+    Pending p = pendingByKey.get(key);
+    return p == null || drainKey(key, p, 0);
+  }
+
+  /** True if the key has ops queued or being written. */
+  public boolean hasPending(String key) {
+    Pending p = pendingByKey.get(key);
+    if (p == null) return false;
+    synchronized (p) {
+      return !pendingIsEmpty(p) || p.inFlight != null;
+    }
   }
 
   /* ---------------------- Draining ---------------------- */
 
-  private void scheduleDrainSoon() {
-    if (drainScheduled.compareAndSet(false, true)) {
-      exec.schedule(this::drainOnce, 100, TimeUnit.MILLISECONDS);
+  /**
+   * Applies an op to the key's live Pending and makes sure a drain is scheduled for it. A
+   * journaled op ({@code logged} != null) is appended under the same monitor, so the journal
+   * watermark never passes an op that is not yet visible in its Pending. Returns the op's LSN
+   * (0 if not journaled).
+   *
+   * An add/delete ({@code norm} != null) past the limits under SPILL/DROP is not queued. SPILL
+   * marks the bucket for a full rewrite from the snapshot (which already has the change) and the
+   * journal keeps the op until that rewrite lands; DROP discards the op and counts it. BLOCK/REJECT
+   * were applied by {@link #checkCapacity}; a writer that raced past it is queued (soft limit).
+   */
+  private long mutate(String key, WriteAheadJournal.Op logged, String value, String norm, Consumer<Pending> op) {
+    while (true) {
+      Pending p = pendingByKey.computeIfAbsent(key, k -> new Pending());
+      long delay = -1;
+      boolean drop = false;
+      long lsn = 0;
+      synchronized (p) {
+        if (p.retired) continue; // lost a race with the drain removing it; fetch the new one
+        long before = p.bytes;
+        boolean overflow = norm != null
+                && (policy == LookupProperties.WriteBehind.Overflow.Policy.SPILL
+                    || policy == LookupProperties.WriteBehind.Overflow.Policy.DROP)
+                && overflowReason(p, norm) != null;
+        var j = journal;
+        if (logged != null && j != null
+                && (!overflow || policy == LookupProperties.WriteBehind.Overflow.Policy.SPILL)) {
+          lsn = j.append(logged, key, value);
+          if (lsn > 0) p.minLsn = Math.min(p.minLsn, lsn);
+        }
+        if (overflow && policy == LookupProperties.WriteBehind.Overflow.Policy.DROP) {
+          drop = true; // never reaches Mongo
+        } else if (overflow) {
+          p.compact = true;
+          if (lsn > 0) spilled.increment();
+          else drop = true; // SPILL without a working journal: only the rewrite from memory has it
+        } else {
+          op.accept(p);
+        }
+        pendingBytes.add(p.bytes - before);
+        long nowNanos = System.nanoTime();
+        if (p.oldestNanos == 0) p.oldestNanos = nowNanos;
+        if (!p.scheduled) {
+          p.scheduled = true;
+          delay = nextDelayMs(key, p);
+        } else if (opCount(p) >= maxOpsPerFlush && p.inFlight == null
+                && p.nextRunEpochMs <= System.currentTimeMillis()
+                && p.dueNanos - nowNanos > TimeUnit.MILLISECONDS.toNanos(1)) {
+          delay = 0; // batch is full: drain now instead of at the end of the window
+        }
+      }
+      if (drop) {
+        dropped.increment();
+        long n = dropped.sum();
+        if (n == 1 || n % 1000 == 0) {
+          log.warn("WriteBehindStore: pending limit reached, {} ops dropped so far (key={}); {}", n, key,
+                  policy == LookupProperties.WriteBehind.Overflow.Policy.DROP
+                          ? "they are not written to Mongo"
+                          : "buckets are rewritten from memory once Mongo recovers");
+        }
+      }
+      if (delay >= 0) schedule(key, p, delay);
+      return lsn;
     }
   }
 
-  private void scheduleDrainWithDelay(Duration d) {
-    exec.schedule(this::drainOnce, Math.max(50, d.toMillis()), TimeUnit.MILLISECONDS);
+  /** Why an add/delete of {@code norm} would exceed the limits, or null if it fits. */
+  private String overflowReason(String key, String norm) {
+    Pending p = pendingByKey.get(key);
+    if (p == null) return pendingBytes.sum() >= maxPendingBytes ? bytesReason() : null;
+    synchronized (p) {
+      return overflowReason(p, norm);
+    }
   }
 
-  /** One pass over all keys; reschedules itself if work remains. */
-  private void drainOnce() {
+  /** Caller holds the monitor. An op on a norm that is already pending replaces it and always fits. */
+  private String overflowReason(Pending p, String norm) {
+    if (p.addsByNorm.containsKey(norm) || p.deletesNorm.contains(norm)) return null;
+    if (p.addsByNorm.size() + p.deletesNorm.size() >= maxPendingPerKey) {
+      return "Too many pending writes for this key (" + maxPendingPerKey + "); retry later";
+    }
+    return pendingBytes.sum() >= maxPendingBytes ? bytesReason() : null;
+  }
+
+  private String bytesReason() {
+    return "Pending writes are at the " + (maxPendingBytes >> 20) + " MB limit; retry later";
+  }
+
+  private static long addBytes(LookupValueDao.DocValue dv) {
+    return ENTRY_BYTES + 2L * (dv.value().length() + dv.norm().length());
+  }
+
+  private static long normBytes(String norm) {
+    return ENTRY_BYTES + 2L * norm.length();
+  }
+
+  /** Blocks until the op is fsynced; concurrent writers share the flush (group commit). */
+  private void awaitDurable(long lsn) {
+    var j = journal;
+    if (j != null && lsn > 0) j.awaitDurable(lsn);
+  }
+
+  /** Lowest LSN not yet persisted to Mongo; journal segments entirely below it can be deleted. */
+  private long persistedBefore(WriteAheadJournal j) {
+    long low = j.nextLsn(); // read first: ops appended during the scan are above it
+    for (Pending p : pendingByKey.values()) {
+      synchronized (p) {
+        low = Math.min(low, p.minLsn);
+        if (p.inFlight != null) low = Math.min(low, p.inFlight.minLsn());
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Coalescing window for the key (caller holds the monitor): grows linearly with its recent
+   * write rate, from min delay when idle to max delay at the rate that fills max-ops-per-flush in
+   * one max-delay window; a full batch goes right away.
+   */
+  private long nextDelayMs(String key, Pending p) {
+    if (opCount(p) >= maxOpsPerFlush) return 0;
+    var state = keyStates.get(key);
+    if (state == null) return minFlushDelayMs;
+    double saturation = maxOpsPerFlush * 1000.0 / Math.max(1, maxFlushDelayMs);
+    double f = Math.min(1.0, state.rate(System.nanoTime()) / saturation);
+    return minFlushDelayMs + Math.round((maxFlushDelayMs - minFlushDelayMs) * f);
+  }
+
+  /** Folds a taken batch into the key's write rate (its ops over the time since the previous take). */
+  private void recordRate(KeyState state, Batch batch) {
+    if (batch.oldestNanos() == 0) return;
+    long now = System.nanoTime();
+    long since = state.rateNanos == 0 ? batch.oldestNanos() : Math.min(state.rateNanos, batch.oldestNanos());
+    double windowSec = Math.max(1, now - since) / 1e9;
+    double current = batch.ops() / Math.max(windowSec, minFlushDelayMs / 1000.0);
+    state.opsPerSec = state.rateNanos == 0 ? current : (state.rate(now) + current) / 2;
+    state.rateNanos = now;
+  }
+
+  private void schedule(String key, Pending p, long delayMs) {
+    long ticket;
+    synchronized (p) {
+      ticket = ++p.ticket;
+      p.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+    }
+    schedule(new Due(key, p, ticket), delayMs);
+  }
+
+  private void schedule(Due due, long delayMs) {
+    int lane = laneOf(due.key());
     try {
-      long now = System.currentTimeMillis();
-      boolean anyDeferred = false;
+      lanes[lane].schedule(() -> onDue(lane, due), delayMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      if (!closing) throw e; // shutting down: the final flush picks the key up
+    }
+  }
 
-      // snapshot keys to avoid concurrent modification
-      List<String> keys = new ArrayList<>(pendingByKey.keySet());
-      for (String key : keys) {
-        Pending p = pendingByKey.get(key);
-        if (p == null) continue;
+  private int laneOf(String key) {
+    return Math.floorMod(key.hashCode(), lanes.length);
+  }
 
-        boolean doneThisKey = applyForKey(key, p, now);
-        if (!doneThisKey) anyDeferred = true;
+  /**
+   * A key's window elapsed (on its lane thread): park it in the lane's ready list. The first one
+   * queues a lane drain behind the tasks already due, so keys that come due together, or while
+   * the lane was busy writing, share one bulk write. A task superseded by an early flush is
+   * dropped here; the newer one is queued or already ran.
+   */
+  private void onDue(int lane, Due due) {
+    synchronized (due.p()) {
+      if (due.ticket() != due.p().ticket) return;
+    }
+    var ready = laneReady.get(lane);
+    ready.add(due);
+    if (ready.size() == 1) submitDrain(lane);
+  }
+
+  /**
+   * Drains up to MAX_KEYS_PER_BULK ready keys of the lane; the rest go in the next lane drain.
+   * With MAX_LANE_WRITES drains in flight it waits: the next one to finish resumes the lane.
+   */
+  private void drainLane(int lane) {
+    var ready = laneReady.get(lane);
+    if (ready.isEmpty() || laneWrites[lane] >= MAX_LANE_WRITES) return;
+    List<Due> batch = new ArrayList<>(ready.subList(0, Math.min(ready.size(), MAX_KEYS_PER_BULK)));
+    ready.subList(0, batch.size()).clear();
+    if (!ready.isEmpty()) submitDrain(lane);
+    laneWrites[lane]++;
+    drain(batch, NO_DEADLINE).whenComplete((clean, ex) -> {
+      if (ex != null) log.warn("WriteBehindStore: drain of {} keys failed", batch.size(), ex);
+      onLane(lane, () -> {
+        laneWrites[lane]--;
+        drainLane(lane); // keys that came due while the lane was at its limit
+      });
+    });
+  }
+
+  private void submitDrain(int lane) {
+    onLane(lane, () -> drainLane(lane));
+  }
+
+  /** The lane's thread; once the lanes are shut down (final flush), the thread completing the write. */
+  private Executor laneExecutor(int lane) {
+    return task -> {
+      try {
+        lanes[lane].execute(task);
+      } catch (RejectedExecutionException e) {
+        task.run();
       }
+    };
+  }
 
-      // If anything deferred, schedule next pass at the shortest nextRun delay
-      if (anyDeferred) {
-        long nextAt = pendingByKey.values().stream()
-                .mapToLong(x -> x.nextRunEpochMs)
-                .filter(x -> x > now)
-                .min().orElse(now + MAX_BACKOFF.toMillis());
-        scheduleDrainWithDelay(Duration.ofMillis(Math.max(100, nextAt - now)));
+  private void onLane(int lane, Runnable task) {
+    try {
+      lanes[lane].execute(task);
+    } catch (RejectedExecutionException e) {
+      if (!closing) throw e; // shutting down: the final flush picks the keys up
+    }
+  }
+
+  /** Persists the key's pending ops now and waits for the write (ticket 0 = explicit flush). */
+  private boolean drainKey(String key, Pending p, long ticket) {
+    return drain(List.of(new Due(key, p, ticket)), NO_DEADLINE).join().contains(key);
+  }
+
+  /**
+   * An explicit flush that gives up at the deadline (System.nanoTime), both waiting for the key's
+   * drain lock and for the write. A write still running then completes in the background.
+   */
+  private boolean drainKeyBy(String key, Pending p, long deadline) throws InterruptedException {
+    var written = drain(List.of(new Due(key, p, 0)), deadline);
+    try {
+      return written.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS).contains(key);
+    } catch (TimeoutException e) {
+      return false;
+    } catch (ExecutionException e) {
+      log.warn("WriteBehindStore: flush of key={} failed", key, e.getCause());
+      return false;
+    }
+  }
+
+  /**
+   * Takes each key's ops under its monitor, persists them outside it (full rewrites one by one,
+   * deltas of all keys in one {@link LookupValueDao#applyDeltasAsync} call), and merges a failed
+   * key's ops back. A non-zero ticket marks a scheduled drain, which owns rescheduling and retiring
+   * the Pending (a superseded ticket does nothing); ticket 0 is an explicit flush, which only
+   * writes. Completes with the keys that have nothing left pending; the keys' drain locks are held
+   * until then (a lane skips a key whose lock is taken and retries it). An explicit flush waits for
+   * the lock until {@code lockDeadline} (System.nanoTime, or {@link #NO_DEADLINE}) and skips the
+   * key after it. Full rewrites run on the calling thread; settling runs on the keys' lane once
+   * the delta write completes.
+   */
+  private CompletableFuture<Set<String>> drain(List<Due> due, long lockDeadline) {
+    Set<String> clean = new HashSet<>();
+    List<Due> locked = new ArrayList<>(due.size());
+    List<Taken> taken = new ArrayList<>();
+    boolean handedOff = false;
+    try {
+      // one Due per key: a task queued before an early flush superseded it may share the batch
+      // with its successor, and the later ticket is the one take() accepts
+      Map<Pending, Due> byKey = new LinkedHashMap<>(); // Pending has identity equality
+      for (Due d : due) byKey.merge(d.p(), d, (a, b) -> b.ticket() > a.ticket() ? b : a);
+      for (Due d : byKey.values()) {
+        // one drain at a time per key. An explicit flush waits for it; a lane never does: the key's
+        // previous write may settle on this very lane, so it is retried shortly instead
+        if (d.ticket() == 0) {
+          if (lockDeadline == NO_DEADLINE) {
+            d.p().drainLock.acquireUninterruptibly();
+          } else if (!acquireBy(d.p().drainLock, lockDeadline)) {
+            continue;
+          }
+        } else if (!d.p().drainLock.tryAcquire()) {
+          schedule(d, BUSY_RETRY_MS);
+          continue;
+        }
+        locked.add(d);
+        var t = take(d, clean);
+        if (t != null) taken.add(t);
       }
+      if (taken.isEmpty()) return CompletableFuture.completedFuture(clean);
+
+      Map<String, Exception> failures = new HashMap<>();
+      Map<String, Long> elapsed = new HashMap<>();
+      Map<String, List<LookupValueDao.DocValue>> merged = new HashMap<>();
+      Map<String, LookupValueDao.Delta> deltas = new LinkedHashMap<>();
+      for (Taken t : taken) {
+        String key = t.due().key();
+        if (!t.compact()) {
+          deltas.put(key, new LookupValueDao.Delta(
+                  new ArrayList<>(t.batch().adds().values()), t.batch().touches(), t.batch().deletes()));
+          continue;
+        }
+        long started = System.nanoTime();
+        try {
+          // the snapshot already reflects every taken op; ops queued meanwhile are re-sent as a
+          // delta next time (idempotent, except a racing touch may be counted twice until the
+          // next compaction rewrites the in-memory frequencies)
+          var rebased = compact(key, t.batch());
+          if (rebased != null) merged.put(key, rebased);
+          t.state().lastCompactionMs = t.now();
+        } catch (Exception ex) {
+          failures.put(key, ex);
+        }
+        elapsed.put(key, System.nanoTime() - started);
+      }
+
+      long started = System.nanoTime();
+      CompletableFuture<Map<String, Exception>> written;
+      if (deltas.isEmpty()) {
+        written = CompletableFuture.completedFuture(Map.of());
+      } else {
+        try {
+          written = dao.applyDeltasAsync(deltas);
+        } catch (RuntimeException ex) {
+          written = CompletableFuture.failedFuture(ex);
+        }
+      }
+      handedOff = true;
+      // settle back on the keys' lane, not on the driver thread that completed the write: rebase
+      // takes key guards and journal truncation does file I/O (a drain's keys share one lane)
+      Executor settleOn = written.isDone() ? Runnable::run : laneExecutor(laneOf(due.get(0).key()));
+      return written.handleAsync((deltaFailures, ex) -> {
+        try {
+          if (!deltas.isEmpty()) {
+            if (ex != null) {
+              Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+              Exception failure = cause instanceof Exception e ? e : new IllegalStateException(cause);
+              for (String key : deltas.keySet()) failures.put(key, failure);
+            } else {
+              failures.putAll(deltaFailures);
+            }
+            long took = System.nanoTime() - started;
+            for (String key : deltas.keySet()) elapsed.put(key, took); // each key waited for the whole call
+            metrics.bulkKeys.record(deltas.size());
+          }
+          settleAll(taken, failures, elapsed, merged, clean);
+          return clean;
+        } finally {
+          for (Due d : locked) d.p().drainLock.release();
+        }
+      }, settleOn);
+    } catch (RuntimeException | Error e) {
+      // a write that threw past its own handling (an Error from the driver): the taken ops go back
+      // to their keys instead of staying in flight forever
+      Exception failure = e instanceof Exception ex ? ex : new IllegalStateException(e);
+      if (!handedOff) {
+        for (Taken t : taken) complete(t, failure, 0);
+      }
+      throw e;
     } finally {
-      // allow future scheduling if nothing is pending or a later pass is scheduled
-      drainScheduled.set(false);
-      // If we raced and new items arrived while we were draining, queue another pass.
-      if (!pendingByKey.isEmpty()) scheduleDrainSoon();
+      if (!handedOff) {
+        for (Due d : locked) d.p().drainLock.release();
+      }
+    }
+  }
+
+  private static boolean acquireBy(Semaphore lock, long deadline) {
+    try {
+      return lock.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // cancelled: leave the key for the report
+      return false;
+    }
+  }
+
+  /** After a drain's writes: completes each key, hands merged buckets back and wakes waiters. */
+  private void settleAll(List<Taken> taken, Map<String, Exception> failures, Map<String, Long> elapsed,
+                         Map<String, List<LookupValueDao.DocValue>> merged, Set<String> clean) {
+    boolean anyPersisted = false;
+    for (Taken t : taken) {
+      String key = t.due().key();
+      var failure = failures.get(key);
+      if (complete(t, failure, elapsed.get(key))) clean.add(key);
+      anyPersisted |= failure == null;
+    }
+    merged.forEach(rebase); // after complete(): the rebased key has no write in flight
+    if (anyPersisted) {
+      synchronized (capacity) {
+        capacity.notifyAll(); // wake BLOCK waiters
+      }
+      var j = journal;
+      if (j != null) {
+        long persisted = persistedBefore(j);
+        j.checkpoint(persisted); // replay skips these ops, also where they sit in the active segment
+        if (j.hasSealedSegments()) j.truncate(persisted);
+      }
     }
   }
 
   /**
-   * Apply adds/deletes for one key using read-modify-write against the bucket.
-   * Returns true if key is fully drained; false if deferred due to backoff.
+   * Rewrites the bucket from the in-memory snapshot. If the stored bucket changed since this node
+   * last saw it, re-reads it and writes the stored values with this batch's ops applied instead
+   * (retrying if it moves again). Returns that merged bucket, or null if the snapshot was written.
    */
-  private boolean applyForKey(String key, Pending p, long now) {
-    synchronized (p) {
-      if (p.nextRunEpochMs > now) return false; // backoff window active
+  private List<LookupValueDao.DocValue> compact(String key, Batch batch) throws Exception {
+    try {
+      dao.upsertBucket(key, snapshotSupplier.apply(key));
+      return null;
+    } catch (BucketVersionConflictException conflict) {
+      for (int attempt = 1; ; attempt++) {
+        metrics.conflicts.increment();
+        var stored = dao.getBucket(key).map(LookupValueDao.Bucket::values).orElse(List.of());
+        var merged = merge(key, stored, batch);
+        try {
+          dao.upsertBucket(key, merged);
+          log.debug("WriteBehindStore: key={} merged with a concurrent write ({} values)", key, merged.size());
+          return merged;
+        } catch (BucketVersionConflictException again) {
+          if (attempt >= MAX_CONFLICT_RETRIES) throw again;
+        }
+      }
+    }
+  }
 
-      // Build list to persist: start from in-memory snapshot, then apply coalesced ops
-      List<LookupValueDao.DocValue> snap = snapshotSupplier.apply(key);
-      Map<String, LookupValueDao.DocValue> byNorm = new LinkedHashMap<>(snap.size());
-      for (var dv : snap) byNorm.put(dv.norm(), dv);
+  /**
+   * The stored values with the batch's deletes, adds and frequency bumps applied. A batch that
+   * overflowed (ops kept only in memory) also keeps every in-memory value, which can bring back a
+   * value another node deleted rather than lose one added here.
+   */
+  private List<LookupValueDao.DocValue> merge(String key, List<LookupValueDao.DocValue> stored, Batch batch) {
+    Map<String, LookupValueDao.DocValue> byNorm = new LinkedHashMap<>();
+    for (var v : stored) {
+      String norm = v.norm() != null ? v.norm() : InMemoryIndex.normalize(v.value());
+      if (!norm.isEmpty()) byNorm.putIfAbsent(norm, new LookupValueDao.DocValue(v.value(), norm, v.frequency(), v.createdAt()));
+    }
+    if (batch.compact()) {
+      for (var v : snapshotSupplier.apply(key)) {
+        byNorm.merge(v.norm(), v, (s, m) -> m.frequency() > s.frequency()
+                ? new LookupValueDao.DocValue(s.value(), s.norm(), m.frequency(), s.createdAt()) : s);
+      }
+    }
+    for (String norm : batch.deletes()) byNorm.remove(norm);
+    for (var v : batch.adds().values()) byNorm.putIfAbsent(v.norm(), v);
+    batch.touches().forEach((norm, n) -> byNorm.computeIfPresent(norm, (k, v) ->
+            new LookupValueDao.DocValue(v.value(), v.norm(), v.frequency() + n, v.createdAt())));
+    return new ArrayList<>(byNorm.values());
+  }
 
-      // Apply deletes first
-      for (String dn : p.deletesNorm) {
-        byNorm.remove(dn);
-      }
-      // Apply adds (if already present, bump frequency by 1)
-      for (var e : p.addsByNorm.entrySet()) {
-        String norm = e.getKey();
-        String val  = e.getValue();
-        var cur = byNorm.get(norm);
-        if (cur == null) {
-          byNorm.put(norm, new LookupValueDao.DocValue(
-                  val, norm, 1, System.currentTimeMillis()));
-        } else {
-          byNorm.put(norm, new LookupValueDao.DocValue(
-                  cur.value(), norm, cur.frequency() + 1, cur.createdAt()));
-        }
+  /**
+   * Swaps the key's ops out for a write (caller holds its drainLock), or settles it when there is
+   * nothing to write: superseded ticket, backoff window, or empty (then clean, if nothing is left).
+   */
+  private Taken take(Due d, Set<String> clean) {
+    String key = d.key();
+    Pending p = d.p();
+    boolean laneTask = d.ticket() != 0;
+    long now = System.currentTimeMillis();
+    Batch batch;
+    synchronized (p) {
+      if (laneTask && d.ticket() != p.ticket) return null; // an early flush replaced this task
+      if (p.nextRunEpochMs > now && !closing) { // backoff window active (one last try on shutdown)
+        if (laneTask) schedule(key, p, p.nextRunEpochMs - now);
+        return null;
       }
+      if (pendingIsEmpty(p)) {
+        if (settle(key, p, laneTask)) clean.add(key);
+        return null;
+      }
+      batch = new Batch(p.addsByNorm, p.deletesNorm, p.touchesByNorm, p.compact, p.minLsn, p.bytes,
+              p.oldestNanos);
+      p.addsByNorm = new LinkedHashMap<>();
+      p.deletesNorm = new LinkedHashSet<>();
+      p.touchesByNorm = new HashMap<>();
+      p.compact = false;
+      p.minLsn = Long.MAX_VALUE;
+      p.bytes = 0; // stays in pendingBytes until the write settles
+      p.oldestNanos = 0;
+      p.inFlight = batch;
+    }
 
-      try {
-        dao.upsertBucket(key, new ArrayList<>(byNorm.values()));
-        // success → clear pending and reset backoff
-        p.addsByNorm.clear();
-        p.deletesNorm.clear();
+    var state = keyStates.computeIfAbsent(key, k -> new KeyState(now));
+    recordRate(state, batch);
+    boolean compact;
+    synchronized (p) {
+      compact = batch.compact()
+              || p.deltaFailures >= REPAIR_AFTER_FAILURES
+              || now - state.lastCompactionMs >= compactionInterval.toMillis();
+    }
+    return new Taken(d, batch, compact, state, now);
+  }
+
+  /**
+   * After the write: resets backoff and settles the key, or merges the ops back under anything
+   * newer and backs off exponentially (a delta that keeps failing gets a full rewrite). Returns
+   * true if nothing is left pending.
+   */
+  private boolean complete(Taken t, Exception failure, long elapsedNanos) {
+    String key = t.due().key();
+    Pending p = t.due().p();
+    Batch batch = t.batch();
+    boolean laneTask = t.due().ticket() != 0;
+    var meters = metrics.forKey(key);
+    metrics.recordWrite(meters, t.compact(), failure == null, elapsedNanos);
+
+    synchronized (p) {
+      p.inFlight = null;
+      if (failure == null) {
+        // success → reset backoff
+        p.deltaFailures = 0;
         p.attempt = 0;
         p.nextRunEpochMs = 0L;
-
-        // if nothing left for this key, we can drop the bucket from pending map
-        if (pendingIsEmpty(p)) pendingByKey.remove(key, p);
-        return true;
-      } catch (Exception ex) {
-        // failure → exponential backoff for this key
+      } else {
+        mergeBack(p, batch);
+        if (!t.compact()) p.deltaFailures++;
         p.attempt = Math.min(p.attempt + 1, 10);
         long delay = Math.min(
                 INITIAL_BACKOFF.multipliedBy(1L << (p.attempt - 1)).toMillis(),
                 MAX_BACKOFF.toMillis()
         );
-        p.nextRunEpochMs = now + delay;
-        return false;
+        p.nextRunEpochMs = t.now() + delay;
+        if (laneTask) schedule(key, p, delay);
       }
     }
+    if (failure != null) {
+      log.debug("WriteBehindStore: write for key={} failed; backing off", key, failure);
+      return false;
+    }
+
+    meters.batchOps.record(batch.ops());
+    if (batch.oldestNanos() != 0) meters.persistLag.record(System.nanoTime() - batch.oldestNanos(), TimeUnit.NANOSECONDS);
+    pendingBytes.add(-batch.bytes());
+    synchronized (p) {
+      return settle(key, p, laneTask);
+    }
+  }
+
+  /**
+   * After a drain (caller holds the monitor): a lane task reschedules if ops arrived during the
+   * write, otherwise retires the Pending. Returns true if nothing is left pending.
+   */
+  private boolean settle(String key, Pending p, boolean laneTask) {
+    if (!pendingIsEmpty(p)) {
+      if (laneTask) schedule(key, p, nextDelayMs(key, p));
+      return false;
+    }
+    if (laneTask) {
+      // if nothing left for this key, we can drop the bucket from pending map
+      p.scheduled = false;
+      p.retired = true;
+      pendingByKey.remove(key, p);
+    }
+    return true;
+  }
+
+  /** Older ops from a failed write, merged under the ops queued while it ran. */
+  private void mergeBack(Pending p, Batch batch) {
+    // deletes always go back: a newer add is applied after them, a newer delete is the same op
+    Set<String> deletes = new LinkedHashSet<>(batch.deletes());
+    deletes.addAll(p.deletesNorm);
+    for (var dv : batch.adds().values()) {
+      // deleted or re-added since → the newer op wins
+      if (!p.deletesNorm.contains(dv.norm())) p.addsByNorm.putIfAbsent(dv.norm(), dv);
+    }
+    batch.touches().forEach((norm, n) -> {
+      if (!p.deletesNorm.contains(norm) && !p.addsByNorm.containsKey(norm)) p.touchesByNorm.merge(norm, n, Integer::sum);
+    });
+    p.deletesNorm = deletes;
+    p.compact |= batch.compact();
+    p.minLsn = Math.min(p.minLsn, batch.minLsn());
+    if (batch.oldestNanos() != 0) p.oldestNanos = batch.oldestNanos(); // older than anything queued since
+
+    long bytes = 0;
+    for (var dv : p.addsByNorm.values()) bytes += addBytes(dv);
+    for (String dn : p.deletesNorm) bytes += normBytes(dn);
+    for (String tn : p.touchesByNorm.keySet()) bytes += normBytes(tn);
+    pendingBytes.add(bytes - p.bytes - batch.bytes());
+    p.bytes = bytes;
+  }
+
+  private static int opCount(Pending p) {
+    return p.addsByNorm.size() + p.deletesNorm.size() + p.touchesByNorm.size();
   }
 
   private boolean pendingIsEmpty(Pending p) {
-    return p.addsByNorm.isEmpty() && p.deletesNorm.isEmpty();
+    return p.addsByNorm.isEmpty() && p.deletesNorm.isEmpty() && p.touchesByNorm.isEmpty() && !p.compact;
   }
 
-  /* ---------------------- Shutdown hook (optional) ---------------------- */
+  /* ---------------------- Shutdown ---------------------- */
+
+  /**
+   * Stops the lanes, waits for drains already writing (a key's async write is waited for by its
+   * final flush, which needs the key's drain lock), then flushes every pending key in
+   * parallel (rounds until clean, a round makes no progress, or the deadline passes). Each final
+   * flush waits for its lock and its write only until the deadline, and one that fails leaves just
+   * its own key behind. Whatever is left is logged and reported; with the journal enabled it is replayed on the next start.
+   */
+  public ShutdownReport shutdown(Duration timeout) {
+    long started = System.nanoTime();
+    long deadline = started + timeout.toNanos();
+    closing = true;
+    for (var lane : lanes) lane.shutdown();
+    try {
+      for (var lane : lanes) {
+        lane.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    Set<String> flushed = new HashSet<>();
+    var pool = Executors.newFixedThreadPool(Math.max(lanes.length, SHUTDOWN_FLUSH_THREADS), r -> {
+      Thread t = new Thread(r, "lookup-writebehind-flush");
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      while (!pendingByKey.isEmpty() && !Thread.currentThread().isInterrupted()) {
+        long left = deadline - System.nanoTime();
+        if (left <= 0) break;
+        List<String> keys = new ArrayList<>(pendingByKey.keySet());
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (String key : keys) tasks.add(() -> flushFinal(key, deadline));
+        int progress = 0;
+        var results = pool.invokeAll(tasks, left, TimeUnit.NANOSECONDS); // cancels what overruns
+        for (int i = 0; i < results.size(); i++) {
+          var f = results.get(i);
+          if (f.isCancelled()) continue;
+          try {
+            if (Boolean.TRUE.equals(f.get())) {
+              flushed.add(keys.get(i));
+              progress++;
+            }
+          } catch (ExecutionException e) { // this key stays pending; the others still count
+            log.warn("WriteBehindStore: final flush of key={} failed", keys.get(i), e.getCause());
+          }
+        }
+        if (progress == 0) break; // Mongo is not taking writes; stop retrying
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      pool.shutdownNow();
+    }
+
+    var left = stats(Integer.MAX_VALUE);
+    var j = journal;
+    if (j != null) {
+      long persisted = persistedBefore(j);
+      j.checkpoint(persisted);
+      j.close();            // fsyncs anything still buffered and seals the active segment
+      j.truncate(persisted); // a clean flush leaves nothing to replay
+    }
+    boolean journaled = j != null && journalCfg.isEnabled();
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    if (left.pendingKeys() == 0) {
+      log.info("WriteBehindStore: shutdown flush persisted {} keys in {} ms", flushed.size(), elapsed);
+    } else {
+      log.warn("WriteBehindStore: shutdown left {} ops unpersisted across {} keys (e.g. {}); {}",
+              left.pendingOps(), left.pendingKeys(),
+              left.keys().stream().limit(10).map(KeyStats::key).toList(),
+              journaled ? "they stay in the journal at " + journalCfg.getDir() + " and are replayed on next start"
+                        : "the journal is disabled, so they are lost");
+    }
+    return new ShutdownReport(flushed.size(), left.pendingOps(), left.keys(), journaled, elapsed);
+  }
 
-  public void shutdown() {
-    exec.shutdown();
+  /** One shutdown write for the key, bounded by the deadline; retires its Pending when nothing is left. */
+  private boolean flushFinal(String key, long deadline) throws InterruptedException {
+    Pending p = pendingByKey.get(key);
+    if (p == null) return true;
+    boolean clean = drainKeyBy(key, p, deadline);
+    if (clean) {
+      synchronized (p) {
+        if (pendingIsEmpty(p) && p.inFlight == null) {
+          p.retired = true;
+          pendingByKey.remove(key, p);
+        }
+      }
+    }
+    return clean;
   }
-}
\ No newline at end of file
+}
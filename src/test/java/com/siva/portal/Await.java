@@ -0,0 +1,21 @@
+package com.siva.portal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Polls until work handed to a background thread shows its effect; fails after five seconds. */
+public final class Await {
+
+	private Await() {
+	}
+
+	public static void await(BooleanSupplier condition, String what) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.nanoTime() < deadline, "timed out waiting for: " + what);
+			Thread.sleep(10);
+		}
+	}
+}
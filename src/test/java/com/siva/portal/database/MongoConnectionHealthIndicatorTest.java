@@ -0,0 +1,38 @@
+package com.siva.portal.database;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.health.Status;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MongoConnectionHealthIndicatorTest {
+
+	private final AbstractMongoDataSource ds = mock(AbstractMongoDataSource.class);
+	private final MongoConnectionHealthIndicator indicator = new MongoConnectionHealthIndicator(ds);
+
+	@Test
+	void upWhileAWritableServerAnswersHeartbeats() {
+		when(ds.health()).thenReturn(new MongoConnectionHealth.Status(true, 0, 800, 3, null));
+
+		var health = indicator.health();
+
+		assertEquals(Status.UP, health.getStatus());
+		assertEquals(3L, health.getDetails().get("roundTripMillis"));
+		assertFalse(health.getDetails().containsKey("lastError"));
+	}
+
+	@Test
+	void downWithTheOutageLengthAndLastHeartbeatError() {
+		when(ds.health()).thenReturn(new MongoConnectionHealth.Status(false, 42_000, 45_000, 3,
+				"com.mongodb.MongoSocketOpenException: connection refused"));
+
+		var health = indicator.health();
+
+		assertEquals(Status.DOWN, health.getStatus());
+		assertEquals(42_000L, health.getDetails().get("downForMillis"));
+		assertEquals("com.mongodb.MongoSocketOpenException: connection refused", health.getDetails().get("lastError"));
+	}
+}
@@ -0,0 +1,65 @@
+package com.siva.portal.database;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionId;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MongoPoolCheckoutListenerTest {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final MongoPoolCheckoutListener listener = new MongoPoolCheckoutListener(registry, MongoCommandTags::origin);
+	private final ServerId server = new ServerId(new ClusterId(), new ServerAddress("db1", 27017));
+
+	@Test
+	void checkoutsAreTimedByServerOutcomeAndCallingThread() throws Exception {
+		onThread("lookup-writebehind-0", () -> {
+			listener.connectionCheckedOut(new ConnectionCheckedOutEvent(new ConnectionId(server), 1, TimeUnit.MILLISECONDS.toNanos(5)));
+			listener.connectionCheckedOut(new ConnectionCheckedOutEvent(new ConnectionId(server), 2, TimeUnit.MILLISECONDS.toNanos(15)));
+		});
+		onThread("http-nio-8080-exec-1", () -> listener.connectionCheckOutFailed(new ConnectionCheckOutFailedEvent(server, 3,
+				ConnectionCheckOutFailedEvent.Reason.TIMEOUT, TimeUnit.MILLISECONDS.toNanos(120))));
+
+		var drains = registry.get(MongoPoolCheckoutListener.NAME)
+				.tags("server.address", "db1:27017", "outcome", "success", "origin", MongoCommandTags.WRITE_BEHIND).timer();
+		assertEquals(2, drains.count());
+		assertEquals(20.0, drains.totalTime(TimeUnit.MILLISECONDS));
+		var requests = registry.get(MongoPoolCheckoutListener.NAME)
+				.tags("server.address", "db1:27017", "outcome", "timeout", "origin", MongoCommandTags.REQUEST).timer();
+		assertEquals(1, requests.count());
+		assertEquals(120.0, requests.totalTime(TimeUnit.MILLISECONDS));
+		assertEquals(2, registry.get(MongoPoolCheckoutListener.NAME).timers().size());
+	}
+
+	@Test
+	void originComesFromTheThreadName() throws Exception {
+		assertOrigin(MongoCommandTags.WRITE_BEHIND, "lookup-writebehind-3");
+		assertOrigin(MongoCommandTags.LOAD, "lookup-loader-1");
+		assertOrigin(MongoCommandTags.LOAD, "lookup-warmup");
+		assertOrigin(MongoCommandTags.SYNC, "lookup-change-stream");
+		assertOrigin(MongoCommandTags.REQUEST, "http-nio-8080-exec-7");
+		assertOrigin(MongoCommandTags.OTHER, "main");
+	}
+
+	/* ---- helpers ---- */
+
+	private static void assertOrigin(String expected, String threadName) throws InterruptedException {
+		String[] origin = new String[1];
+		onThread(threadName, () -> origin[0] = MongoCommandTags.origin());
+		assertEquals(expected, origin[0], threadName);
+	}
+
+	private static void onThread(String name, Runnable task) throws InterruptedException {
+		var t = new Thread(task, name);
+		t.start();
+		t.join();
+	}
+}
@@ -0,0 +1,160 @@
+package com.siva.portal.repo;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.siva.portal.configuration.LookupConfig;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.siva.portal.Await.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The change stream against a real server. MongoDBContainer starts a single-node replica set, so
+ * change streams, resume tokens and the server-side origin filter all behave as in production.
+ * Needs Docker; runs with {@code ./gradlew integrationTest}.
+ */
+@Tag("integration")
+@Testcontainers(disabledWithoutDocker = true)
+class MongoBucketChangeStreamContainerTest {
+
+	@Container
+	private static final MongoDBContainer MONGO = new MongoDBContainer(DockerImageName.parse("mongo:7.0"));
+
+	private static MongoClient client;
+	private final AtomicLong seq = new AtomicLong();
+	private MongoCollection<Document> col;
+	private MongoCollection<Document> state;
+	private MongoBucketChangeStream stream;
+
+	@BeforeAll
+	static void connect() {
+		client = MongoClients.create(MONGO.getReplicaSetUrl("lookup_it"));
+	}
+
+	@AfterAll
+	static void disconnect() {
+		client.close();
+	}
+
+	@BeforeEach
+	void cleanCollections() {
+		var db = client.getDatabase("lookup_it");
+		col = db.getCollection(LookupConfig.COLLECTION);
+		state = db.getCollection(LookupConfig.SYNC_STATE_COLLECTION);
+		col.drop();
+		state.drop();
+	}
+
+	@AfterEach
+	void close() {
+		if (stream != null) stream.close();
+	}
+
+	@Test
+	void ownOriginWritesAreFilteredOnTheServer() throws Exception {
+		var listener = new RecordingListener();
+		stream = start(listener);
+
+		write("node-a", "colors", delta("red"));   // insert tagged with our own id
+		write("node-b", "shapes", delta("square"));
+		write("node-a", "shapes", delta("circle")); // update tagged with our own id
+		write("node-b", "fruits", delta("pear"));
+
+		await(() -> listener.deltaKeys.contains("fruits"), "the last write from node-b");
+		assertEquals(List.of("shapes", "fruits"), listener.deltaKeys);
+		assertEquals(List.of(delta("square"), delta("pear")), listener.deltas);
+		assertEquals(List.of(), listener.changeKeys); // tagged deltas, never whole documents
+		assertEquals(0, listener.gaps.get());
+	}
+
+	@Test
+	void restartedStreamResumesAfterTheSavedToken() throws Exception {
+		var before = new RecordingListener();
+		stream = start(before);
+		write("node-b", "colors", delta("red"));
+		await(() -> before.deltaKeys.equals(List.of("colors")), "the first write");
+		stream.close(); // saves the position past the first write
+
+		write("node-b", "shapes", delta("square")); // while no stream is open
+
+		var after = new RecordingListener();
+		stream = new MongoBucketChangeStream(() -> col, () -> state, "node-a", after, MongoBucketChangeStreamContainerTest::toChange,
+				MongoLookupValueDao::toDelta);
+		write("node-b", "fruits", delta("pear"));
+
+		await(() -> after.deltaKeys.contains("fruits"), "the write after the restart");
+		assertEquals(List.of("shapes", "fruits"), after.deltaKeys); // nothing replayed, nothing missed
+		assertEquals(0, after.gaps.get());
+	}
+
+	/* ---- helpers ---- */
+
+	/** Starts from now and returns once the cursor is open (its first position is saved). */
+	private MongoBucketChangeStream start(RecordingListener listener) throws InterruptedException {
+		var started = new MongoBucketChangeStream(() -> col, () -> state, "node-a", listener,
+				MongoBucketChangeStreamContainerTest::toChange, MongoLookupValueDao::toDelta);
+		await(() -> state.find(Filters.eq("_id", "node-a")).first() != null, "the change stream to open");
+		return started;
+	}
+
+	/** A delta write as the DAO tags it: create-if-missing with the change field set. */
+	private void write(String origin, String key, LookupValueDao.Delta delta) {
+		col.updateOne(Filters.eq("key", key),
+				Updates.combine(Updates.set("updatedAt", Instant.now()),
+						Updates.set("change", MongoLookupValueDao.changeOf(origin, seq.incrementAndGet(), key, delta))),
+				new UpdateOptions().upsert(true));
+	}
+
+	private static LookupValueDao.Delta delta(String value) {
+		return new LookupValueDao.Delta(List.of(new LookupValueDao.DocValue(value, value, 1, 1_000L)), Map.of(), Set.of());
+	}
+
+	private static LookupValueDao.BucketChange toChange(Document d) {
+		return new LookupValueDao.BucketChange(d.getString("key"), List.of(), norm -> true);
+	}
+
+	private static final class RecordingListener implements LookupValueDao.ChangeListener {
+		final List<String> changeKeys = new CopyOnWriteArrayList<>();
+		final List<String> deltaKeys = new CopyOnWriteArrayList<>();
+		final List<LookupValueDao.Delta> deltas = new CopyOnWriteArrayList<>();
+		final AtomicInteger gaps = new AtomicInteger();
+
+		@Override
+		public void onChange(LookupValueDao.BucketChange change) {
+			changeKeys.add(change.key());
+		}
+
+		@Override
+		public void onDelta(String key, LookupValueDao.Delta delta) {
+			deltaKeys.add(key);
+			deltas.add(delta);
+		}
+
+		@Override
+		public void onGap() {
+			gaps.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package com.siva.portal.repo;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCommandException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.siva.portal.Await.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@SuppressWarnings("unchecked")
+class MongoBucketChangeStreamTest {
+
+	private static final BsonDocument SAVED = BsonDocument.parse("{\"_data\": \"A\"}");
+	private static final BsonDocument LATEST = BsonDocument.parse("{\"_data\": \"B\"}");
+
+	private final MongoCollection<Document> col = mock(MongoCollection.class);
+	private final MongoCollection<Document> state = mock(MongoCollection.class);
+	private final ChangeStreamIterable<Document> watch = mock(ChangeStreamIterable.class);
+	private final RecordingListener listener = new RecordingListener();
+	private MongoBucketChangeStream stream;
+
+	@AfterEach
+	void close() {
+		if (stream != null) stream.close();
+	}
+
+	@Test
+	void deltaIsHandedOverFromTheUpdateDescription() throws Exception {
+		var delta = new LookupValueDao.Delta(List.of(new LookupValueDao.DocValue("Gamma", "gamma", 2, 5_000L)),
+				Map.of("alpha", 3), Set.of("beta"));
+		start(null, cursor(LATEST, update(MongoLookupValueDao.changeOf("node-b", 7, "colors", delta))));
+
+		await(() -> listener.deltas.size() == 1, "delta");
+		assertEquals("colors", listener.deltaKeys.get(0));
+		assertEquals(delta, listener.deltas.get(0));
+		assertTrue(listener.changes.isEmpty());
+	}
+
+	@Test
+	void rewriteIsHandedOverAsTheWholeDocument() throws Exception {
+		var doc = new Document("key", "colors").append("values", List.of())
+				.append("change", MongoLookupValueDao.changeOf("node-b", 8, "colors", null));
+		start(null, cursor(LATEST, replace(doc)));
+
+		await(() -> listener.changes.size() == 1, "full change");
+		assertEquals("colors", listener.changes.get(0).key());
+		assertTrue(listener.deltas.isEmpty());
+	}
+
+	@Test
+	void pipelineFiltersOutThisNodesWrites() {
+		String json = MongoBucketChangeStream.pipeline("node-a").get(0)
+				.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry()).toJson();
+
+		assertEquals(2, json.split("\"\\$ne\": \"node-a\"", -1).length - 1, json); // tagged updates and rewrites
+		assertTrue(json.contains("updateDescription.updatedFields.change"), json);
+	}
+
+	@Test
+	void resumesFromTheSavedTokenAndSavesTheLatestOnClose() throws Exception {
+		var cursor = cursor(LATEST);
+		start(SAVED, cursor);
+		verify(watch, timeout(2_000)).cursor();
+		verify(cursor, timeout(2_000).atLeastOnce()).getResumeToken();
+
+		stream.close();
+
+		verify(watch).resumeAfter(SAVED);
+		var saved = ArgumentCaptor.forClass(Document.class);
+		verify(state, atLeastOnce()).replaceOne(any(Bson.class), saved.capture(), any(ReplaceOptions.class));
+		assertEquals("node-a", saved.getValue().get("_id"));
+		assertEquals(LATEST, saved.getValue().get("token"));
+		assertEquals(0, listener.gaps.get());
+	}
+
+	@Test
+	void lostPositionRestartsFromNowAndReportsAGap() throws Exception {
+		var lost = cursor(null);
+		when(lost.tryNext()).thenThrow(new MongoCommandException(new BsonDocument("ok", new BsonInt32(0))
+				.append("code", new BsonInt32(286)).append("errmsg", new BsonString("history lost")), new ServerAddress()));
+		start(SAVED, lost, cursor(LATEST));
+
+		await(() -> listener.gaps.get() == 1, "gap");
+		verify(watch, times(2)).cursor();
+		verify(watch, times(1)).resumeAfter(any(BsonDocument.class)); // the second cursor starts from now
+	}
+
+	@Test
+	void invalidateRestartsFromNowAndReportsAGap() throws Exception {
+		var invalidate = mock(ChangeStreamDocument.class);
+		when(invalidate.getOperationType()).thenReturn(OperationType.INVALIDATE);
+		var first = cursor(LATEST, invalidate);
+		start(null, first, cursor(LATEST));
+
+		await(() -> listener.gaps.get() == 1, "gap");
+		verify(watch, timeout(2_000).times(2)).cursor();
+		verify(watch, never()).resumeAfter(any(BsonDocument.class));
+		verify(first).close();
+	}
+
+	/* ---- helpers ---- */
+
+	@SafeVarargs
+	private void start(BsonDocument savedToken, MongoChangeStreamCursor<ChangeStreamDocument<Document>> first,
+	                   MongoChangeStreamCursor<ChangeStreamDocument<Document>>... more) {
+		FindIterable<Document> found = mock(FindIterable.class);
+		when(state.find(any(Bson.class))).thenReturn(found);
+		when(found.first()).thenReturn(savedToken == null ? null
+				: new Document("_id", "node-a").append("token", Document.parse(savedToken.toJson())));
+		when(col.watch(anyList())).thenReturn(watch);
+		when(watch.maxAwaitTime(anyLong(), any(TimeUnit.class))).thenReturn(watch);
+		when(watch.resumeAfter(any(BsonDocument.class))).thenReturn(watch);
+		when(watch.cursor()).thenReturn(first, more);
+		stream = new MongoBucketChangeStream(() -> col, () -> state, "node-a", listener,
+				d -> new LookupValueDao.BucketChange(d.getString("key"), List.of(), norm -> true),
+				MongoLookupValueDao::toDelta);
+	}
+
+	/** A cursor that returns the events, then nothing (after a short wait, like maxAwaitTime). */
+	@SafeVarargs
+	private static MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor(BsonDocument token,
+	                                                                              ChangeStreamDocument<Document>... events) {
+		MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = mock(MongoChangeStreamCursor.class);
+		var queue = new ArrayDeque<>(List.of(events));
+		when(cursor.tryNext()).thenAnswer(inv -> {
+			var next = queue.poll();
+			if (next == null) Thread.sleep(5);
+			return next;
+		});
+		when(cursor.getResumeToken()).thenReturn(token);
+		return cursor;
+	}
+
+	private static ChangeStreamDocument<Document> update(Document change) {
+		ChangeStreamDocument<Document> event = mock(ChangeStreamDocument.class);
+		UpdateDescription description = mock(UpdateDescription.class);
+		when(event.getOperationType()).thenReturn(OperationType.UPDATE);
+		when(event.getUpdateDescription()).thenReturn(description);
+		when(description.getUpdatedFields()).thenReturn(new BsonDocument("change",
+				change.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry())));
+		return event;
+	}
+
+	private static ChangeStreamDocument<Document> replace(Document doc) {
+		ChangeStreamDocument<Document> event = mock(ChangeStreamDocument.class);
+		when(event.getOperationType()).thenReturn(OperationType.REPLACE);
+		when(event.getFullDocument()).thenReturn(doc);
+		return event;
+	}
+
+	private static final class RecordingListener implements LookupValueDao.ChangeListener {
+		final List<LookupValueDao.BucketChange> changes = new CopyOnWriteArrayList<>();
+		final List<String> deltaKeys = new CopyOnWriteArrayList<>();
+		final List<LookupValueDao.Delta> deltas = new CopyOnWriteArrayList<>();
+		final AtomicInteger gaps = new AtomicInteger();
+
+		@Override
+		public void onChange(LookupValueDao.BucketChange change) {
+			changes.add(change);
+		}
+
+		@Override
+		public void onDelta(String key, LookupValueDao.Delta delta) {
+			deltaKeys.add(key);
+			deltas.add(delta);
+		}
+
+		@Override
+		public void onGap() {
+			gaps.incrementAndGet();
+		}
+	}
+}
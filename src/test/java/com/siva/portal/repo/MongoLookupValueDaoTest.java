@@ -0,0 +1,86 @@
+package com.siva.portal.repo;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.siva.portal.configuration.LookupConfig;
+import com.siva.portal.database.AbstractMongoDataSource;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@SuppressWarnings("unchecked")
+class MongoLookupValueDaoTest {
+
+	private final AbstractMongoDataSource ds = mock(AbstractMongoDataSource.class);
+	private final MongoCollection<Document> col = mock(MongoCollection.class);
+
+	@Test
+	void mongoDownAtBootLeavesIndexCreationToTheFirstWrite() {
+		when(ds.getCollection(LookupConfig.COLLECTION)).thenThrow(new IllegalStateException("Mongo client is not available yet"));
+
+		var dao = new MongoLookupValueDao(ds); // the bean is created anyway
+		assertThrows(IllegalStateException.class, dao::ensureIndexes); // LookupService.init logs this and goes on
+
+		doReturn(col).when(ds).getCollection(LookupConfig.COLLECTION); // Mongo is back
+		dao.applyDeltas(Map.of());
+		dao.applyDeltas(Map.of());
+
+		verify(col, times(2)).createIndex(any(Bson.class), any(IndexOptions.class)); // key and (bucket, chunk), once
+	}
+
+	@Test
+	void indexesCreatedAtStartupAreNotCreatedAgainByWrites() {
+		when(ds.getCollection(LookupConfig.COLLECTION)).thenReturn(col);
+		var dao = new MongoLookupValueDao(ds);
+		verify(col, never()).createIndex(any(Bson.class), any(IndexOptions.class));
+
+		dao.ensureIndexes();
+		dao.applyDeltas(Map.of());
+
+		verify(col, times(2)).createIndex(any(Bson.class), any(IndexOptions.class));
+	}
+
+	@Test
+	void chunkedDeltaWritesOnlyTheChunkDocumentOfItsNorm() {
+		when(ds.getCollection(LookupConfig.COLLECTION)).thenReturn(col);
+		var dao = new MongoLookupValueDao(ds, 4);
+		var delta = new LookupValueDao.Delta(List.of(new LookupValueDao.DocValue("Red", "red", 1, 1_000L)), Map.of(), Set.of());
+
+		assertTrue(dao.applyDeltas(Map.of("colors", delta)).isEmpty());
+		dao.close();
+
+		ArgumentCaptor<List<WriteModel<Document>>> phases = ArgumentCaptor.forClass(List.class);
+		verify(col, atLeastOnce()).bulkWrite(phases.capture(), any(BulkWriteOptions.class));
+		String chunk = "\"chunk\": " + Math.floorMod("red".hashCode(), 4);
+		for (var phase : phases.getAllValues()) {
+			for (var op : phase) {
+				String filter = ((UpdateOneModel<Document>) op).getFilter()
+						.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry()).toJson();
+				assertTrue(filter.contains("\"bucket\": \"colors\"") && filter.contains(chunk), filter);
+			}
+		}
+		assertEquals(2, phases.getAllValues().size()); // create-if-missing, then the guarded push
+	}
+}
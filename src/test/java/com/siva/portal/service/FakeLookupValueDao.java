@@ -0,0 +1,122 @@
+package com.siva.portal.service;
+
+import com.siva.portal.repo.BucketVersionConflictException;
+import com.siva.portal.repo.LookupValueDao;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory {@link LookupValueDao} for store tests. Applies deltas and rewrites like the Mongo DAO
+ * (pull, then push of new norms, then increments). {@link #beforeWrite} runs ahead of every write
+ * and {@link #beforeRead} ahead of every bucket read, with the keys involved, so a test can slow
+ * one down or fail it; {@link #conflicts} makes the next full rewrites fail as if another node had
+ * written the bucket first.
+ */
+final class FakeLookupValueDao implements LookupValueDao {
+
+	/** Runs before a read or write; throw to fail it. */
+	interface Hook {
+		void before(Set<String> keys) throws Exception;
+	}
+
+	private final Map<String, Map<String, DocValue>> buckets = new LinkedHashMap<>();
+	final AtomicInteger deltaCalls = new AtomicInteger();
+	final AtomicInteger upserts = new AtomicInteger();
+	/** Full rewrites still to be refused with a version conflict. */
+	final AtomicInteger conflicts = new AtomicInteger();
+	final AtomicInteger reads = new AtomicInteger();
+	volatile Hook beforeWrite = keys -> {};
+	volatile Hook beforeRead = keys -> {};
+
+	@Override
+	public void ensureIndexes() {
+	}
+
+	@Override
+	public synchronized List<String> findAllValues(String key) {
+		return values(key).stream().map(DocValue::value).toList();
+	}
+
+	@Override
+	public void upsertBucket(String key, List<DocValue> values) throws Exception {
+		beforeWrite.before(Set.of(key));
+		if (conflicts.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+			throw new BucketVersionConflictException(key, "bucket was written by another node");
+		}
+		upserts.incrementAndGet();
+		synchronized (this) {
+			Map<String, DocValue> byNorm = new LinkedHashMap<>();
+			for (DocValue v : values) byNorm.put(v.norm(), v);
+			buckets.put(key, byNorm);
+		}
+	}
+
+	@Override
+	public void applyDelta(String key, Delta delta) throws Exception {
+		applyOne(key, delta);
+	}
+
+	@Override
+	public Map<String, Exception> applyDeltas(Map<String, Delta> deltas) {
+		deltaCalls.incrementAndGet();
+		try {
+			beforeWrite.before(deltas.keySet());
+		} catch (Exception e) {
+			Map<String, Exception> failures = new LinkedHashMap<>();
+			for (String key : deltas.keySet()) failures.put(key, e);
+			return failures;
+		}
+		deltas.forEach(this::applyOne);
+		return Map.of();
+	}
+
+	private synchronized void applyOne(String key, Delta delta) {
+		var bucket = buckets.computeIfAbsent(key, k -> new LinkedHashMap<>());
+		delta.deletes().forEach(bucket::remove);
+		for (DocValue v : delta.adds()) bucket.putIfAbsent(v.norm(), v);
+		delta.increments().forEach((norm, n) -> bucket.computeIfPresent(norm, (k, v) ->
+				new DocValue(v.value(), v.norm(), v.frequency() + n, v.createdAt())));
+	}
+
+	@Override
+	public Optional<Bucket> getBucket(String key) {
+		reads.incrementAndGet();
+		try {
+			beforeRead.before(Set.of(key));
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		synchronized (this) {
+			var bucket = buckets.get(key);
+			return bucket == null ? Optional.empty() : Optional.of(new Bucket(key, new ArrayList<>(bucket.values())));
+		}
+	}
+
+	@Override
+	public synchronized List<String> listKeys() {
+		return new ArrayList<>(buckets.keySet());
+	}
+
+	/** Stored values of the key (empty if it has no bucket). */
+	synchronized List<DocValue> values(String key) {
+		var bucket = buckets.get(key);
+		return bucket == null ? List.of() : new ArrayList<>(bucket.values());
+	}
+
+	synchronized Set<String> norms(String key) {
+		var bucket = buckets.get(key);
+		return bucket == null ? Set.of() : Set.copyOf(bucket.keySet());
+	}
+
+	/** Stores values as if another node had written them. */
+	synchronized void put(String key, DocValue... values) {
+		var bucket = buckets.computeIfAbsent(key, k -> new LinkedHashMap<>());
+		for (DocValue v : values) bucket.put(v.norm(), v);
+	}
+}
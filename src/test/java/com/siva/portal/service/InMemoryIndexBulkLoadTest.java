@@ -0,0 +1,101 @@
+package com.siva.portal.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class InMemoryIndexBulkLoadTest {
+
+	@Test
+	void bulkBuildMatchesOneByOneLoad() {
+		List<InMemoryIndex.Entry> entries = randomEntries(5_000, 42);
+
+		InMemoryIndex bulk = new InMemoryIndex();
+		bulk.preloadEntries(entries);
+		InMemoryIndex loop = new InMemoryIndex();
+		loop.preloadEntries(entries.subList(0, 1));
+		loop.preloadEntries(entries.subList(1, entries.size())); // non-empty: merged entry by entry from the root
+
+		assertEquals(loop.size(), bulk.size());
+		assertEquals(loop.snapshot(), bulk.snapshot());
+		for (String prefix : List.of("", "a", "ab", "ka", "zz", "mar", "quo")) {
+			assertEquals(loop.suggest(prefix, 8), bulk.suggest(prefix, 8), prefix);
+			assertEquals(loop.suggest(prefix, 50), bulk.suggest(prefix, 50), prefix);
+		}
+		for (String needle : List.of("an", "ora", "ket", "xq")) {
+			assertEquals(loop.suggestContains(needle, 20), bulk.suggestContains(needle, 20), needle);
+		}
+	}
+
+	@Test
+	void streamedBuildMatchesTheListBuild() {
+		Map<String, InMemoryIndex.Entry> byNorm = new LinkedHashMap<>(); // one value per norm, as in a stored bucket
+		for (var e : randomEntries(5_000, 7)) byNorm.putIfAbsent(InMemoryIndex.normalize(e.value()), e);
+		List<InMemoryIndex.Entry> entries = new ArrayList<>(byNorm.values());
+		InMemoryIndex list = new InMemoryIndex();
+		list.preloadEntries(entries);
+
+		// mostly in norm order, as the DAO's sort on stored norms gives, with a few stragglers
+		List<InMemoryIndex.Entry> sorted = new ArrayList<>(entries);
+		sorted.sort(Comparator.comparing(e -> InMemoryIndex.normalize(e.value())));
+		Collections.swap(sorted, 10, 2_500);
+		Collections.swap(sorted, 777, 4_000);
+		InMemoryIndex pulled = new InMemoryIndex();
+		assertEquals(entries.size(), pulled.preloadFrom(sink -> sorted.forEach(sink)));
+
+		List<InMemoryIndex.Entry> shuffled = new ArrayList<>(entries);
+		Collections.shuffle(shuffled, new Random(7));
+		InMemoryIndex pushed = new InMemoryIndex();
+		var preload = pushed.preload();
+		shuffled.forEach(preload::accept);
+		assertEquals(entries.size(), preload.finish());
+
+		for (InMemoryIndex streamed : List.of(pulled, pushed)) {
+			assertEquals(list.size(), streamed.size());
+			assertEquals(new HashSet<>(list.snapshot()), new HashSet<>(streamed.snapshot()));
+			for (String prefix : List.of("", "a", "ka", "zz", "mar")) {
+				assertEquals(list.suggest(prefix, 20), streamed.suggest(prefix, 20), prefix);
+			}
+			for (String needle : List.of("an", "ora", "ket")) {
+				assertEquals(list.suggestContains(needle, 20), streamed.suggestContains(needle, 20), needle);
+			}
+		}
+	}
+
+	@Test
+	void sourceFailureIsRethrownToTheCaller() {
+		var failure = new IOException("cursor lost");
+		var thrown = assertThrows(IOException.class, () -> new InMemoryIndex().preloadFrom(sink -> {
+			sink.accept(new InMemoryIndex.Entry("red", null, 1, 1_000L));
+			throw failure;
+		}));
+		assertSame(failure, thrown);
+	}
+
+	/** Values over a small alphabet so prefixes are heavily shared; includes duplicate norms. */
+	private static List<InMemoryIndex.Entry> randomEntries(int n, long seed) {
+		Random rnd = new Random(seed);
+		String alphabet = "abekmnoqrtz";
+		List<InMemoryIndex.Entry> out = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			StringBuilder sb = new StringBuilder();
+			int len = 2 + rnd.nextInt(10);
+			for (int j = 0; j < len; j++) sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+			String value = rnd.nextInt(8) == 0 ? sb.toString().toUpperCase() : sb.toString();
+			out.add(new InMemoryIndex.Entry(value, null, 1 + rnd.nextInt(20), 1_000L + rnd.nextInt(5_000)));
+		}
+		return out;
+	}
+}
@@ -0,0 +1,298 @@
+package com.siva.portal.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static com.siva.portal.Await.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InMemoryIndexTest {
+
+	@Test
+	void remoteDeltaTouchesOnlyTheListedNorms() {
+		InMemoryIndex idx = new InMemoryIndex();
+		idx.preloadEntries(List.of(entry("Alpha", 3), entry("Beta", 1), entry("Gamma", 5), entry("Delta", 2)));
+
+		int changed = idx.applyDelta(
+				List.of(entry("Epsilon", 1), entry("ALPHA", 9)),  // new value; existing one takes the higher frequency
+				List.of("beta", "missing"),
+				Map.of("gamma", 4, "delta", 1),
+				Set.of("delta"));                                   // local op pending: left alone
+
+		assertEquals(2, changed); // epsilon added, beta removed
+		assertEquals(4, idx.size());
+		assertFalse(idx.containsNorm("beta"));
+		assertEquals(Map.of("alpha", 9, "gamma", 9, "delta", 2, "epsilon", 1), frequencies(idx));
+		assertEquals("Alpha", idx.snapshot().stream().filter(e -> e.norm().equals("alpha")).findFirst().orElseThrow().value());
+		assertEquals(List.of("Epsilon"), idx.suggestContains("psi", 5));
+	}
+
+	@Test
+	void remoteDeltaSkipsKeptNormsForEveryOp() {
+		InMemoryIndex idx = new InMemoryIndex();
+		idx.preloadEntries(List.of(entry("kept", 1)));
+
+		int changed = idx.applyDelta(List.of(entry("added", 1)), List.of("kept"), Map.of("kept", 3),
+				Set.of("kept", "added"));
+
+		assertEquals(0, changed);
+		assertTrue(idx.containsNorm("kept"));
+		assertFalse(idx.containsNorm("added"));
+		assertEquals(Map.of("kept", 1), frequencies(idx));
+	}
+
+	@Test
+	void removedIdsAreRenumberedAndContainsSearchesStayExact() {
+		InMemoryIndex idx = new InMemoryIndex();
+		List<InMemoryIndex.Entry> values = new ArrayList<>();
+		for (int i = 0; i < 6_000; i++) values.add(entry("value-" + i, 1 + i % 7));
+		idx.preloadEntries(values);
+		for (int i = 0; i < 6_000; i++) {
+			if (i % 10 != 0) idx.removeValue("value-" + i);
+		}
+		for (int i = 0; i < 300; i++) idx.upsertValue("extra-" + i, 2_000L);
+
+		assertEquals(900, idx.size());
+		assertTrue(idx.idLimit() <= 2 * idx.size() + 1024, "id watermark " + idx.idLimit());
+		for (String needle : List.of("5", "-0", "e-", "lue-1", "xtra-2", "value-5990")) {
+			List<String> expected = idx.snapshot().stream()
+					.filter(e -> e.norm().contains(needle))
+					.sorted((a, b) -> InMemoryIndex.compareWorseFirst(b, a))
+					.limit(20)
+					.map(InMemoryIndex.Entry::value)
+					.toList();
+			assertEquals(expected, idx.suggestContains(needle, 20), needle);
+		}
+	}
+
+	@Test
+	void shortNeedlesReadTheirGramPostingsAndMatchAScan() {
+		InMemoryIndex idx = new InMemoryIndex();
+		idx.preloadEntries(List.of(entry("Banana", 3), entry("Cab", 1), entry("a", 2), entry("Xy", 5)));
+		idx.upsertValue("aaa", 4_000L);    // repeated grams in one value
+		idx.upsertValue("Abba", 5_000L);
+		idx.removeValue("cab");
+
+		for (String needle : List.of("a", "A", "b", "aa", "an", "ab", "ba", "y", "xy", "q", "zz")) {
+			String norm = needle.toLowerCase();
+			List<String> expected = idx.snapshot().stream()
+					.filter(e -> e.norm().contains(norm))
+					.sorted((a, b) -> InMemoryIndex.compareWorseFirst(b, a))
+					.limit(20)
+					.map(InMemoryIndex.Entry::value)
+					.toList();
+			assertEquals(expected, idx.suggestContains(needle, 20), needle);
+		}
+		assertEquals(List.of(), idx.suggestContains("c", 20)); // only the removed value had it
+	}
+
+	@Test
+	void combinedWriteThatThrowsFailsOnlyItsOwnCaller() throws Exception {
+		InMemoryIndex idx = new InMemoryIndex();
+		idx.preloadEntries(List.of(entry("seed", 1)));
+		var release = new CountDownLatch(1);
+		var holder = holdWriteLock(idx, release, "first");
+
+		var failure = new CompletableFuture<Throwable>();
+		var failing = new Thread(() -> {
+			try {
+				idx.preloadFrom(sink -> {
+					throw new AssertionError("broken source");
+				});
+				failure.complete(null);
+			} catch (Throwable t) {
+				failure.complete(t);
+			}
+		});
+		var adding = new Thread(() -> idx.upsertValue("second"));
+		failing.start();
+		adding.start();
+		await(() -> failing.getState() == Thread.State.WAITING && adding.getState() == Thread.State.WAITING,
+				"both writers queued behind the lock");
+
+		release.countDown();
+		holder.get(2, TimeUnit.SECONDS); // ran both queued writes; the failure is not its own
+		adding.join(2_000);
+		assertTrue(failure.get(2, TimeUnit.SECONDS) instanceof AssertionError);
+		assertTrue(idx.containsNorm("first"));
+		assertTrue(idx.containsNorm("second")); // queued after the failing write, still applied
+	}
+
+	@Test
+	void addQueuedBehindARemovalOfTheSameValueInsertsItAgain() throws Exception {
+		InMemoryIndex idx = new InMemoryIndex();
+		idx.preloadEntries(List.of(entry("Gamma", 4)));
+		var release = new CountDownLatch(1);
+		var holder = holdWriteLock(idx, release, "first");
+
+		var removing = new Thread(() -> idx.removeValue("gamma"));
+		removing.start();
+		await(() -> removing.getState() == Thread.State.WAITING, "removal queued");
+		var added = new AtomicBoolean();
+		var adding = new Thread(() -> added.set(idx.addIfAbsent("gamma"))); // gamma is still published
+		adding.start();
+		await(() -> adding.getState() == Thread.State.WAITING, "add queued behind it");
+
+		release.countDown();
+		holder.get(2, TimeUnit.SECONDS);
+		adding.join(2_000);
+		assertTrue(added.get());
+		assertTrue(idx.containsNorm("gamma"));
+		assertEquals(Map.of("first", 1, "gamma", 1), frequencies(idx)); // inserted afresh, not a bump of the removed entry
+	}
+
+	@Test
+	void removedValuesPruneTheirNodesAndEveryLabelStaysReachable() {
+		InMemoryIndex idx = new InMemoryIndex();
+		List<String> letters = new ArrayList<>();
+		for (char c = 'z'; c >= 'a'; c--) letters.add(String.valueOf(c)); // labels arrive out of order
+		idx.preloadAll(letters);
+		idx.upsertValue("car", 1_000L);
+		idx.upsertValue("cart", 1_000L);
+		var before = idx.footprint();
+
+		idx.upsertValue("carpet", 2_000L);
+		idx.upsertValue("carpool", 2_000L);
+		assertEquals(before.nodes() + 6, idx.footprint().nodes()); // p-e-t, and o-o-l under the shared p
+		idx.removeValue("carpet");
+		idx.removeValue("carpool");
+
+		var after = idx.footprint();
+		assertEquals(before.nodes(), after.nodes());
+		assertEquals(before.edges(), after.edges());
+		assertEquals(List.of("car", "cart"), idx.suggest("car", 5).stream().sorted().toList());
+		for (String letter : letters) assertEquals(letter, idx.suggest(letter, 1).get(0), letter);
+		assertTrue(after.trieBytes() < after.legacyTrieBytes());
+	}
+
+	@Test
+	void cachedTopListsMatchASubtreeScanAfterUpdates() {
+		InMemoryIndex idx = new InMemoryIndex();
+		Random rnd = new Random(7);
+		String alphabet = "abkmr";
+		List<String> norms = new ArrayList<>();
+		for (int i = 0; i < 2_000; i++) {
+			StringBuilder sb = new StringBuilder();
+			for (int j = 1 + rnd.nextInt(6); j > 0; j--) sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+			norms.add(sb.toString());
+			idx.upsertValue(sb.toString(), 1_000L + rnd.nextInt(50)); // few distinct createdAt: ties go to frequency
+		}
+		for (int i = 0; i < 300; i++) idx.removeValue(norms.get(rnd.nextInt(norms.size())));
+		for (int i = 0; i < 500; i++) idx.bumpFrequency(norms.get(rnd.nextInt(norms.size())));
+
+		List<InMemoryIndex.Entry> all = idx.snapshot(); // folds the pending bumps
+		for (String prefix : List.of("", "a", "ab", "kmr", "rr", "mab")) {
+			for (int limit : List.of(1, 5, InMemoryIndex.CACHE_K, InMemoryIndex.CACHE_K + 10)) {
+				List<String> expected = all.stream()
+						.filter(e -> e.norm().startsWith(prefix))
+						.sorted((a, b) -> InMemoryIndex.compareWorseFirst(b, a))
+						.limit(limit)
+						.map(InMemoryIndex.Entry::value)
+						.toList();
+				assertEquals(expected, idx.suggest(prefix, limit), prefix + " / " + limit);
+			}
+		}
+	}
+
+	@Test
+	void rankingComparesCreatedAtThenFrequencyThenNorm() {
+		var newer = new InMemoryIndex.Entry("Beta", "beta", 1, 2_000L);
+		var frequent = new InMemoryIndex.Entry("Gamma", "gamma", 9, 1_000L);
+		var alpha = new InMemoryIndex.Entry("Alpha", "alpha", 3, 1_000L);
+		var delta = new InMemoryIndex.Entry("Delta", "delta", 3, 1_000L);
+
+		List<InMemoryIndex.Entry> worstFirst = new ArrayList<>(List.of(newer, frequent, alpha, delta));
+		worstFirst.sort(InMemoryIndex::compareWorseFirst);
+
+		assertEquals(List.of(delta, alpha, frequent, newer), worstFirst);
+		assertEquals(0, InMemoryIndex.compareWorseFirst(alpha, new InMemoryIndex.Entry("ALPHA", "alpha", 3, 1_000L)));
+
+		InMemoryIndex idx = new InMemoryIndex();
+		idx.preloadEntries(List.of(newer, frequent, alpha, delta));
+		idx.bumpFrequency("delta"); // 4 once folded: ahead of alpha
+		idx.snapshot();              // folds the striped hit into delta's entry
+		assertEquals(List.of("Beta", "Gamma", "Delta", "Alpha"), idx.suggest("", 4));
+		assertEquals(List.of("Beta", "Gamma", "Delta", "Alpha"), idx.suggestContains("a", 4));
+	}
+
+	@Test
+	void frequencyBumpsDoNotWaitForTheWriteLockAndAreAllCounted() throws Exception {
+		InMemoryIndex idx = new InMemoryIndex();
+		idx.preloadEntries(List.of(entry("hot", 1)));
+		var release = new CountDownLatch(1);
+		var holder = holdWriteLock(idx, release, "other");
+
+		var bumpers = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			var bumper = new Thread(() -> {
+				for (int i = 0; i < 1_000; i++) idx.bumpFrequency("hot");
+			});
+			bumper.start();
+			bumpers.add(bumper);
+		}
+		for (var bumper : bumpers) bumper.join(2_000);
+		for (var bumper : bumpers) assertFalse(bumper.isAlive()); // done while the lock is still held
+
+		release.countDown();
+		holder.get(2, TimeUnit.SECONDS);
+		assertEquals(Map.of("hot", 4_001, "other", 1), frequencies(idx));
+	}
+
+	@Test
+	void readersSeeThePublishedVersionWhileAWriteIsInProgress() throws Exception {
+		InMemoryIndex idx = new InMemoryIndex();
+		idx.preloadEntries(List.of(entry("seed", 1)));
+		var release = new CountDownLatch(1);
+		var holder = holdWriteLock(idx, release, "second");
+
+		assertEquals(List.of("seed"), idx.suggest("", 5)); // no lock taken, nothing half-built visible
+		assertEquals(List.of("seed"), idx.suggestContains("ee", 5));
+		assertEquals(1, idx.size());
+
+		release.countDown();
+		holder.get(2, TimeUnit.SECONDS);
+		assertEquals(List.of("second", "seed"), idx.suggest("s", 5).stream().sorted().toList());
+	}
+
+	/** Holds the index's write lock (inside a preload) until released, so other writes queue up. */
+	private static CompletableFuture<Void> holdWriteLock(InMemoryIndex idx, CountDownLatch release, String value)
+			throws InterruptedException {
+		var holding = new CountDownLatch(1);
+		var holder = CompletableFuture.runAsync(() -> idx.preloadFrom(sink -> {
+			holding.countDown();
+			awaitQuietly(release);
+			sink.accept(entry(value, 1));
+		}));
+		assertTrue(holding.await(2, TimeUnit.SECONDS));
+		return holder;
+	}
+
+	private static InMemoryIndex.Entry entry(String value, int frequency) {
+		return new InMemoryIndex.Entry(value, null, frequency, 1_000L);
+	}
+
+	private static void awaitQuietly(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static Map<String, Integer> frequencies(InMemoryIndex idx) {
+		return idx.snapshot().stream()
+				.collect(Collectors.toMap(InMemoryIndex.Entry::norm, InMemoryIndex.Entry::frequency));
+	}
+}
@@ -0,0 +1,191 @@
+package com.siva.portal.service;
+
+import com.siva.portal.configuration.LookupProperties;
+import com.siva.portal.repo.LookupValueDao;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.siva.portal.Await.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LookupServiceTest {
+
+	private static final int VALUES = 500;
+
+	private final FakeLookupValueDao dao = new FakeLookupValueDao();
+	private final LookupProperties props = new LookupProperties();
+	private LookupService service;
+
+	@AfterEach
+	void close() {
+		if (service != null) service.close();
+	}
+
+	@Test
+	void addsThatOutgrowTheCapEvictTheLeastRecentlyUsedKey() throws Exception {
+		service = start();
+		long w = load("old");
+		load("hot");
+		props.getCache().setMaxBytes(DataSize.ofBytes(w * 5 / 2));
+
+		add("hot", VALUES * 4 / 5); // about 1.8 × w; with old resident that is over the cap
+
+		await(() -> !service.isResident("old"), "old evicted");
+		assertTrue(service.isResident("hot"));
+	}
+
+	@Test
+	void pinnedWarmUpKeysAreMatchedAfterTrimming() throws Exception {
+		props.getWarmup().setKeys(List.of(" old "));
+		service = start();
+		long w = load("old");
+		load("hot");
+		props.getCache().setMaxBytes(DataSize.ofBytes(w * 5 / 2));
+
+		add("hot", VALUES * 4 / 5);
+
+		await(() -> !service.isResident("hot"), "hot evicted instead"); // the only key that may go
+		assertTrue(service.isResident("old"));
+	}
+
+	@Test
+	void removedValuesGiveTheirWeightBack() throws Exception {
+		service = start();
+		long w = load("old");
+		load("hot");
+		props.getCache().setMaxBytes(DataSize.ofBytes(w * 5 / 2));
+
+		for (int i = 0; i < VALUES; i++) service.deleteValue("hot", "hot-value-" + i);
+		load("other"); // about 2 × w resident; 3 × w if hot still counted its old size
+
+		Thread.sleep(200); // eviction would run on a loader thread
+		assertTrue(service.isResident("old"));
+	}
+
+	@Test
+	void warmUpRunsInTheBackgroundAndReportsWhenEveryKeyIsTried() {
+		seed("a");
+		seed("b");
+		props.getWarmup().setKeys(List.of("a"));
+		service = start();
+		props.getWarmup().setEnabled(true);
+
+		service.init(); // returns right away; the keys load on the warm-up thread
+
+		assertTrue(service.awaitWarmup());
+		var report = service.warmupReport();
+		assertTrue(report.complete());
+		assertEquals(Set.of("a", "b", LookupService.DEFAULT_KEY), report.loadMillis().keySet());
+		assertTrue(report.failed().isEmpty());
+		assertTrue(service.isResident("b"));
+	}
+
+	@Test
+	void warmUpLoadsAtMostMaxKeysDiscoveredKeys() {
+		seed("a");
+		seed("b");
+		seed("c");
+		props.getWarmup().setMaxKeys(1);
+		service = start();
+		props.getWarmup().setEnabled(true);
+
+		service.init();
+
+		assertTrue(service.awaitWarmup());
+		assertEquals(Set.of(LookupService.DEFAULT_KEY, "a"), service.warmupReport().loadMillis().keySet());
+		assertFalse(service.isResident("b"));
+	}
+
+	@Test
+	void keyWithPendingWritesIsEvictedOnceItsLaneHasWrittenThem() throws Exception {
+		service = start();
+		long w = load("old");
+		load("hot");
+		var release = new CountDownLatch(1);
+		dao.beforeWrite = keys -> {
+			if (keys.contains("old")) release.await();
+		};
+		props.getCache().setMaxBytes(DataSize.ofBytes(w * 5 / 2));
+
+		service.addIfAbsent("old", "old-extra"); // queued; its write waits for the latch
+		add("hot", VALUES * 4 / 5);              // over the cap: old is least recently used
+
+		Thread.sleep(300); // an eviction pass runs and skips old
+		assertTrue(service.isResident("old"));
+		release.countDown();
+		await(() -> !service.isResident("old"), "old evicted after its write");
+		assertTrue(dao.norms("old").contains("old-extra"));
+	}
+
+	@Test
+	void concurrentFirstReadsShareOneLoadAndOtherKeysDoNotWait() throws Exception {
+		seed("slow");
+		seed("fast");
+		var reading = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+		dao.beforeRead = keys -> {
+			if (keys.contains("slow")) {
+				reading.countDown();
+				release.await();
+			}
+		};
+		service = start();
+		var readers = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<List<String>>> results = new ArrayList<>();
+			for (int i = 0; i < 4; i++) results.add(readers.submit(() -> service.suggest("slow", "slow-value-1", 1)));
+			assertTrue(reading.await(2, TimeUnit.SECONDS));
+
+			assertEquals(List.of("fast-value-1"), service.suggest("fast", "fast-value-1", 1)); // slow's read holds no map lock
+			release.countDown();
+			for (var result : results) assertEquals(List.of("slow-value-1"), result.get(2, TimeUnit.SECONDS));
+			assertEquals(2, dao.reads.get()); // one read per key
+		} finally {
+			release.countDown();
+			readers.shutdownNow();
+		}
+	}
+
+	/* ---- helpers ---- */
+
+	private LookupService start() {
+		var wb = props.getWriteBehind();
+		wb.setDrainThreads(1);
+		wb.setMinFlushDelay(Duration.ofMillis(10));
+		wb.setMaxFlushDelay(Duration.ofMillis(10));
+		wb.getJournal().setEnabled(false);
+		props.getWarmup().setEnabled(false);
+		return new LookupService(dao, props, new SimpleMeterRegistry());
+	}
+
+	private void seed(String key) {
+		for (int i = 0; i < VALUES; i++) {
+			String v = key + "-value-" + i;
+			dao.put(key, new LookupValueDao.DocValue(v, InMemoryIndex.normalize(v), 1, 1_000L));
+		}
+	}
+
+	/** Seeds and loads the key; returns its estimated weight (about the same for every seeded key). */
+	private long load(String key) {
+		seed(key);
+		service.suggest(key, "", 1);
+		return service.footprint(key).totalBytes();
+	}
+
+	private void add(String key, int count) {
+		for (int i = 0; i < count; i++) service.addIfAbsent(key, key + "-extra-" + i);
+	}
+}
@@ -0,0 +1,141 @@
+package com.siva.portal.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteAheadJournalTest {
+
+	private static final long SEGMENT_BYTES = 64 * 1024; // the smallest the journal allows
+	private static final String VALUE = "v".repeat(100);
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void replayReturnsEveryRecordInOrderAcrossRolledSegments() throws IOException {
+		var journal = open(new ArrayList<>());
+		appendDurably(journal, 3_000);
+		journal.close();
+		assertTrue(segments().size() > 2, "segments " + segments());
+
+		List<WriteAheadJournal.Record> replayed = new ArrayList<>();
+		var reopened = open(replayed);
+		assertEquals(3_000, replayed.size());
+		for (int i = 0; i < replayed.size(); i++) {
+			var r = replayed.get(i);
+			assertEquals(i + 1, r.lsn());
+			assertEquals(i % 3 == 0 ? WriteAheadJournal.Op.DELETE : WriteAheadJournal.Op.ADD, r.op());
+			assertEquals("k" + i % 7, r.key());
+		}
+		assertEquals(3_001, reopened.nextLsn());
+		reopened.close();
+	}
+
+	@Test
+	void truncateDeletesOnlySegmentsBelowThePersistedLsn() throws IOException {
+		var journal = open(new ArrayList<>());
+		appendDurably(journal, 3_000);
+		journal.close(); // seals the active segment too
+
+		List<WriteAheadJournal.Record> replayed = new ArrayList<>();
+		var reopened = open(replayed);
+		int before = segments().size();
+		reopened.truncate(1_500);
+		assertTrue(segments().size() < before, "nothing truncated");
+		reopened.truncate(1_500); // idempotent
+		reopened.close();
+
+		replayed.clear();
+		open(replayed).close();
+		long first = replayed.get(0).lsn();
+		assertTrue(first > 1 && first <= 1_500, "first kept lsn " + first);
+		assertEquals(3_000 - first + 1, replayed.size()); // the segment holding 1500 and all after it
+		assertEquals(3_000, replayed.get(replayed.size() - 1).lsn());
+
+		var drained = open(new ArrayList<>());
+		drained.truncate(drained.nextLsn());
+		drained.close(); // its own (empty) segment is removed on close
+		assertEquals(List.of(), segments());
+	}
+
+	@Test
+	void tornTailIsCutOffAndNewAppendsFollowTheLastIntactRecord() throws IOException {
+		var journal = open(new ArrayList<>());
+		appendDurably(journal, 10);
+		journal.close();
+		Path segment = segments().get(0);
+		try (var ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+			ch.truncate(ch.size() - 20); // crash in the middle of the last record
+		}
+
+		List<WriteAheadJournal.Record> replayed = new ArrayList<>();
+		var reopened = open(replayed);
+		assertEquals(9, replayed.size());
+		long lsn = reopened.append(WriteAheadJournal.Op.ADD, "k", "after");
+		assertEquals(10, lsn);
+		reopened.awaitDurable(lsn);
+		reopened.close();
+
+		replayed.clear();
+		open(replayed).close();
+		assertEquals(10, replayed.size());
+		assertEquals("after", replayed.get(9).value());
+	}
+
+	@Test
+	void replaySkipsOpsBelowTheCheckpointInTheActiveSegment() throws IOException {
+		var journal = open(new ArrayList<>());
+		appendDurably(journal, 10);
+		journal.checkpoint(7); // 1..6 are in Mongo
+		journal.checkpoint(4); // an older checkpoint changes nothing
+		long lsn = journal.append(WriteAheadJournal.Op.ADD, "k", "after");
+		journal.awaitDurable(lsn); // the checkpoint goes out with this group commit
+		journal.truncate(7);
+		assertEquals(1, segments().size()); // one segment, holding persisted and pending ops
+		journal.close();
+
+		List<WriteAheadJournal.Record> replayed = new ArrayList<>();
+		var reopened = open(replayed);
+		assertEquals(List.of(7L, 8L, 9L, 10L, lsn), replayed.stream().map(WriteAheadJournal.Record::lsn).toList());
+		assertEquals(lsn + 1, reopened.nextLsn());
+		reopened.close();
+	}
+
+	/* ---- helpers ---- */
+
+	private WriteAheadJournal open(List<WriteAheadJournal.Record> replayed) throws IOException {
+		var journal = new WriteAheadJournal(dir, SEGMENT_BYTES);
+		journal.replay(replayed::add);
+		return journal;
+	}
+
+	/** Appends in groups that are each fsynced, so the journal rolls at the segment size. */
+	private static void appendDurably(WriteAheadJournal journal, int count) {
+		for (int i = 0; i < count; i += 100) {
+			long lsn = 0;
+			for (int j = i; j < Math.min(count, i + 100); j++) {
+				var op = j % 3 == 0 ? WriteAheadJournal.Op.DELETE : WriteAheadJournal.Op.ADD;
+				lsn = journal.append(op, "k" + j % 7, VALUE + j);
+			}
+			journal.awaitDurable(lsn);
+		}
+	}
+
+	private List<Path> segments() throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.filter(f -> f.toString().endsWith(".wal")).sorted().toList();
+		}
+	}
+}
@@ -0,0 +1,398 @@
+package com.siva.portal.service;
+
+import com.siva.portal.configuration.LookupProperties;
+import com.siva.portal.repo.LookupValueDao;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static com.siva.portal.Await.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteBehindStoreTest {
+
+	private final FakeLookupValueDao dao = new FakeLookupValueDao();
+	private final Map<String, List<LookupValueDao.DocValue>> memory = new ConcurrentHashMap<>();
+	private WriteBehindStore store;
+
+	@AfterEach
+	void shutdown() {
+		if (store != null) store.shutdown(Duration.ofSeconds(2));
+	}
+
+	@Test
+	void earlyFlushWhileTheWindowTimerIsPendingDoesNotStallTheLane() throws Exception {
+		var cfg = config();
+		cfg.setMinFlushDelay(Duration.ofMillis(200));
+		cfg.setMaxFlushDelay(Duration.ofMillis(200));
+		cfg.setMaxOpsPerFlush(5);
+		var slowWriteStarted = new CountDownLatch(1);
+		var slowed = new AtomicBoolean();
+		dao.beforeWrite = keys -> {
+			if (keys.contains("slow") && slowed.compareAndSet(false, true)) {
+				slowWriteStarted.countDown();
+				Thread.sleep(600); // holds the only lane while both of hot's tasks come due
+			}
+		};
+		store = start(cfg);
+
+		store.enqueueAdd("slow", "s");
+		assertTrue(slowWriteStarted.await(2, TimeUnit.SECONDS));
+		store.enqueueAdd("hot", "v0"); // window timer, due in 200 ms
+		for (int i = 1; i < 5; i++) store.enqueueAdd("hot", "v" + i); // full batch: early flush, timer still pending
+
+		await(() -> dao.norms("hot").size() == 5, "hot key persisted");
+		store.enqueueAdd("later", "x");
+		await(() -> dao.norms("later").size() == 1, "lane still draining");
+		await(() -> store.stats(0).pendingKeys() == 0, "nothing left pending");
+	}
+
+	@Test
+	void opsArePersistedAsOneDeltaWithoutRewritingTheBucket() {
+		dao.put("k", dv("A"), dv("B"));
+		store = start(queued());
+
+		add("k", "C");
+		delete("k", "A");
+		store.enqueueTouch("k", "B");
+		store.enqueueTouch("k", "B");
+		assertTrue(store.flush("k"));
+
+		assertEquals(Set.of("b", "c"), dao.norms("k"));
+		assertEquals(3, dao.values("k").stream().filter(v -> v.norm().equals("b")).findFirst().orElseThrow().frequency());
+		assertEquals(1, dao.deltaCalls.get());
+		assertEquals(0, dao.upserts.get());
+	}
+
+	@Test
+	void failedWriteIsMergedBackUnderOpsQueuedMeanwhile() throws Exception {
+		dao.put("k", dv("C"));
+		var writeStarted = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+		var failed = new AtomicBoolean();
+		dao.beforeWrite = keys -> {
+			if (failed.compareAndSet(false, true)) {
+				writeStarted.countDown();
+				release.await();
+				throw new IllegalStateException("mongo down");
+			}
+		};
+		store = start(config());
+
+		add("k", "A");
+		add("k", "B");
+		delete("k", "C");
+		assertTrue(writeStarted.await(2, TimeUnit.SECONDS));
+		delete("k", "A"); // newer than the add being written
+		add("k", "D");
+		var pending = store.pendingFor("k");
+		assertEquals(List.of("B", "D"), pending.adds());
+		assertEquals(Set.of("a", "c"), pending.deletes());
+
+		release.countDown();
+		await(() -> dao.norms("k").equals(Set.of("b", "d")), "retry after backoff");
+		await(() -> store.stats(0).pendingKeys() == 0, "nothing left pending");
+		assertEquals(0, store.overflowStats().pendingBytes());
+	}
+
+	@Test
+	void rejectRefusesANewNormOnceTheKeyIsFull() {
+		var cfg = queued();
+		cfg.getOverflow().setPolicy(LookupProperties.WriteBehind.Overflow.Policy.REJECT);
+		cfg.getOverflow().setMaxPendingPerKey(2);
+		store = start(cfg);
+
+		add("k", "a");
+		add("k", "b");
+		assertThrows(WriteBehindOverflowException.class, () -> add("k", "c"));
+		add("k", "B"); // replaces a pending op, so it always fits
+		assertEquals(1, store.overflowStats().rejected());
+		assertEquals(List.of("a", "B"), store.pendingFor("k").adds());
+
+		assertTrue(store.flush("k"));
+		add("k", "c");
+		assertEquals(Set.of("a", "b"), dao.norms("k"));
+	}
+
+	@Test
+	void blockWaitsForADrainAndRejectsAfterTheTimeout() throws Exception {
+		var cfg = queued();
+		cfg.getOverflow().setPolicy(LookupProperties.WriteBehind.Overflow.Policy.BLOCK);
+		cfg.getOverflow().setMaxPendingPerKey(2);
+		cfg.getOverflow().setBlockTimeout(Duration.ofSeconds(1));
+		store = start(cfg);
+		add("k", "a");
+		add("k", "b");
+
+		var blocked = CompletableFuture.runAsync(() -> add("k", "c"));
+		Thread.sleep(200);
+		assertFalse(blocked.isDone());
+		store.flush("k"); // the waiter gets in once the ops are taken, possibly before the write lands
+		blocked.get(2, TimeUnit.SECONDS);
+		assertEquals(List.of("c"), store.pendingFor("k").adds());
+
+		add("k", "d");
+		long started = System.nanoTime();
+		assertThrows(WriteBehindOverflowException.class, () -> add("k", "e"));
+		assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(900), "gave up before the timeout");
+		assertEquals(1, store.overflowStats().rejected());
+	}
+
+	@Test
+	void spillKeepsTheOpInTheJournalAndRewritesTheBucket(@TempDir Path dir) {
+		var cfg = queued();
+		cfg.getOverflow().setPolicy(LookupProperties.WriteBehind.Overflow.Policy.SPILL);
+		cfg.getOverflow().setMaxPendingPerKey(2);
+		cfg.getJournal().setEnabled(true);
+		cfg.getJournal().setDir(dir.toString());
+		store = start(cfg);
+
+		add("k", "a");
+		add("k", "b");
+		add("k", "c"); // past the limit: only in the journal and in memory
+		assertEquals(1, store.overflowStats().spilled());
+		assertEquals(List.of("a", "b"), store.pendingFor("k").adds());
+		assertTrue(store.pendingFor("k").rewrite());
+
+		dao.beforeWrite = keys -> {
+			throw new IllegalStateException("mongo down");
+		};
+		var report = store.shutdown(Duration.ofSeconds(1));
+		assertTrue(report.journaled());
+		assertEquals(1, report.unpersisted().size());
+
+		dao.beforeWrite = keys -> {};
+		store = start(cfg);
+		assertEquals(List.of("a", "b", "c"), store.pendingFor("k").adds());
+		assertTrue(store.flush("k"));
+		assertEquals(Set.of("a", "b", "c"), dao.norms("k"));
+	}
+
+	@Test
+	void dropDiscardsTheOpAndCountsIt() {
+		var cfg = queued();
+		cfg.getOverflow().setPolicy(LookupProperties.WriteBehind.Overflow.Policy.DROP);
+		cfg.getOverflow().setMaxPendingPerKey(2);
+		store = start(cfg);
+
+		add("k", "a");
+		add("k", "b");
+		add("k", "c");
+		add("k", "d");
+		assertEquals(2, store.overflowStats().dropped());
+		assertEquals(List.of("a", "b"), store.pendingFor("k").adds());
+		assertFalse(store.pendingFor("k").rewrite());
+
+		assertTrue(store.flush("k"));
+		assertEquals(Set.of("a", "b"), dao.norms("k")); // memory still has c and d
+		assertEquals(0, dao.upserts.get());
+		assertEquals(1, dao.deltaCalls.get());
+	}
+
+	@Test
+	void conflictingRewriteIsMergedOntoTheStoredBucket() {
+		var cfg = queued();
+		cfg.setCompactionInterval(Duration.ZERO); // every drain is a full rewrite
+		store = start(cfg);
+		dao.put("k", dv("A"), dv("C")); // C was added by another node
+		memory.put("k", List.of(dv("A")));
+
+		delete("k", "A");
+		add("k", "D");
+		dao.conflicts.set(2); // the snapshot write and the first merge both lose the race
+		assertTrue(store.flush("k"));
+
+		assertEquals(Set.of("c", "d"), dao.norms("k"));
+		assertEquals(Set.of("c", "d"), norms(memory.get("k"))); // handed back to memory
+		assertEquals(1, dao.upserts.get());
+	}
+
+	@Test
+	void conflictRetriesGiveUpAndKeepTheOps() throws Exception {
+		var cfg = queued();
+		cfg.setCompactionInterval(Duration.ZERO);
+		store = start(cfg);
+		dao.put("k", dv("C"));
+
+		add("k", "D");
+		dao.conflicts.set(10);
+		assertFalse(store.flush("k"));
+		assertEquals(6, dao.conflicts.get()); // the snapshot write plus three merges
+		assertEquals(List.of("D"), store.pendingFor("k").adds());
+
+		dao.conflicts.set(1); // this node's view of the bucket is still stale
+		await(() -> store.flush("k"), "flush after backoff");
+		assertEquals(Set.of("c", "d"), dao.norms("k"));
+		assertEquals(Set.of("c", "d"), norms(memory.get("k")));
+	}
+
+	@Test
+	void finalFlushThatThrowsLeavesOnlyItsOwnKeyUnpersisted() {
+		store = start(queued());
+		for (String key : List.of("a", "b", "c", "d", "e", "f")) add(key, "v");
+		dao.beforeWrite = keys -> {
+			if (keys.contains("c")) throw new AssertionError("driver bug"); // an Error escapes the write
+		};
+
+		var report = store.shutdown(Duration.ofSeconds(2));
+
+		assertEquals(5, report.flushedKeys());
+		assertEquals(List.of("c"), report.unpersisted().stream().map(WriteBehindStore.KeyStats::key).toList());
+		for (String key : List.of("a", "b", "d", "e", "f")) assertEquals(Set.of("v"), dao.norms(key));
+	}
+
+	@Test
+	void enqueuedOpsAndWritesAreMeteredPerKeyUpToTheTagCap() {
+		var registry = new SimpleMeterRegistry();
+		var metrics = new LookupProperties.Metrics();
+		metrics.setMaxKeyTags(1);
+		store = new WriteBehindStore(dao, key -> memory.getOrDefault(key, List.of()), memory::put, queued(), registry, metrics);
+		store.recover();
+
+		add("k", "a");
+		add("k", "b");
+		delete("k", "c");
+		add("other", "x"); // past the cap: tagged _other
+		assertEquals(4.0, registry.get("lookup.writebehind.pending.ops").gauge().value());
+		assertTrue(store.flush("k"));
+		assertTrue(store.flush("other"));
+
+		assertEquals(2.0, registry.get("lookup.writebehind.enqueued").tags("key", "k", "op", "add").counter().count());
+		assertEquals(1.0, registry.get("lookup.writebehind.enqueued").tags("key", "k", "op", "delete").counter().count());
+		assertEquals(1.0, registry.get("lookup.writebehind.enqueued").tags("key", "_other", "op", "add").counter().count());
+		assertEquals(1, registry.get("lookup.writebehind.write").tags("key", "k", "mode", "delta", "outcome", "success").timer().count());
+		var batch = registry.get("lookup.writebehind.batch.ops").tag("key", "k").summary();
+		assertEquals(1, batch.count());
+		assertEquals(3.0, batch.totalAmount());
+		assertEquals(0.0, registry.get("lookup.writebehind.pending.ops").gauge().value());
+	}
+
+	@Test
+	void keysThatComeDueWhileTheLaneWritesShareOneBulkWrite() throws Exception {
+		var slowWriteStarted = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+		var batches = new CopyOnWriteArrayList<Set<String>>();
+		dao.beforeWrite = keys -> {
+			batches.add(Set.copyOf(keys));
+			if (keys.contains("slow")) {
+				slowWriteStarted.countDown();
+				release.await(); // holds the only lane while the other keys come due
+			}
+		};
+		store = start(config());
+
+		store.enqueueAdd("slow", "s");
+		assertTrue(slowWriteStarted.await(2, TimeUnit.SECONDS));
+		Set<String> keys = new HashSet<>();
+		for (int i = 0; i < 20; i++) {
+			store.enqueueAdd("k" + i, "v" + i);
+			keys.add("k" + i);
+		}
+		Thread.sleep(100); // well past the 10 ms window of every key
+		release.countDown();
+
+		await(() -> store.stats(0).pendingKeys() == 0, "every key persisted");
+		assertEquals(List.of(Set.of("slow"), keys), batches);
+		assertEquals(2, dao.deltaCalls.get());
+		for (String key : keys) assertEquals(1, dao.norms(key).size(), key);
+	}
+
+	@Test
+	void busyKeyWidensItsWindowWhileALoneAddStillPersistsQuickly() throws Exception {
+		var cfg = config();
+		cfg.setMinFlushDelay(Duration.ofMillis(10));
+		cfg.setMaxFlushDelay(Duration.ofMillis(400));
+		cfg.setMaxOpsPerFlush(2_000); // saturates at 5000 ops/s
+		cfg.getOverflow().setMaxPendingPerKey(20_000); // ops queued behind an in-flight write must not overflow
+		store = start(cfg);
+
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(600);
+		int n = 0;
+		while (System.nanoTime() < end) {
+			for (int i = 0; i < 20; i++) store.enqueueAdd("hot", "v" + n++);
+			Thread.sleep(2); // about 10 000 ops/s
+		}
+		int total = n;
+		await(() -> dao.norms("hot").size() == total, "hot key persisted");
+		assertEquals(0, store.overflowStats().spilled() + store.overflowStats().dropped());
+		assertTrue(dao.deltaCalls.get() <= 15, dao.deltaCalls.get() + " writes"); // a fixed 10 ms window needs ~60
+
+		long started = System.nanoTime();
+		store.enqueueAdd("cold", "lone");
+		await(() -> dao.norms("cold").size() == 1, "lone add persisted");
+		assertTrue(System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(200)); // not held for the hot key's window
+	}
+
+	/* ---- helpers ---- */
+
+	private static LookupProperties.WriteBehind config() {
+		var cfg = new LookupProperties.WriteBehind();
+		cfg.setDrainThreads(1);
+		cfg.setMinFlushDelay(Duration.ofMillis(10));
+		cfg.setMaxFlushDelay(Duration.ofMillis(10));
+		cfg.getJournal().setEnabled(false);
+		return cfg;
+	}
+
+	/** Drains only when a test flushes. */
+	private static LookupProperties.WriteBehind queued() {
+		var cfg = config();
+		cfg.setMinFlushDelay(Duration.ofMinutes(1));
+		cfg.setMaxFlushDelay(Duration.ofMinutes(1));
+		return cfg;
+	}
+
+	private WriteBehindStore start(LookupProperties.WriteBehind cfg) {
+		var s = new WriteBehindStore(dao, key -> memory.getOrDefault(key, List.of()), memory::put, cfg,
+				new SimpleMeterRegistry(), new LookupProperties.Metrics());
+		s.recover();
+		return s;
+	}
+
+	/** An add as LookupService makes it: capacity check, memory, then the queue. */
+	private void add(String key, String value) {
+		store.checkCapacity(key, value);
+		var v = dv(value);
+		memory.compute(key, (k, values) -> {
+			List<LookupValueDao.DocValue> out = new ArrayList<>(values == null ? List.of() : values);
+			out.removeIf(e -> e.norm().equals(v.norm()));
+			out.add(v);
+			return out;
+		});
+		store.enqueueAdd(key, value);
+	}
+
+	private void delete(String key, String value) {
+		store.checkCapacity(key, value);
+		String norm = InMemoryIndex.normalize(value);
+		memory.computeIfPresent(key, (k, values) -> values.stream().filter(e -> !e.norm().equals(norm)).toList());
+		store.enqueueDelete(key, value);
+	}
+
+	private static LookupValueDao.DocValue dv(String value) {
+		return new LookupValueDao.DocValue(value, InMemoryIndex.normalize(value), 1, 1_000L);
+	}
+
+	private static Set<String> norms(List<LookupValueDao.DocValue> values) {
+		return values.stream().map(LookupValueDao.DocValue::norm).collect(Collectors.toSet());
+	}
+}